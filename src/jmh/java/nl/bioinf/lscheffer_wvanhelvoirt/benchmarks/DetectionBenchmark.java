@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.bioinf.lscheffer_wvanhelvoirt.benchmarks;
+
+import ij.plugin.filter.RankFilters;
+import ij.process.ImageProcessor;
+import java.awt.Polygon;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * DetectionBenchmark
+ *
+ * Measures the steps Photon_Image_Processor performs for each frame: the despeckle median filter, finding
+ * the maxima and calculating the photon centers.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DetectionBenchmark {
+
+    /** The width and height of the frame. */
+    @Param({"256", "1024"})
+    public int size;
+    /** The bit depth of the frame. */
+    @Param({"8", "16"})
+    public int bitDepth;
+    /** The expected number of photons per pixel. */
+    @Param({"0.001", "0.01"})
+    public double density;
+
+    /** The frame as created, copied to workFrame before each median filter. */
+    private ImageProcessor rawFrame;
+    /** The frame that is filtered by the median benchmark. */
+    private ImageProcessor workFrame;
+    /** The despeckled frame, used to find maxima and centers. */
+    private ImageProcessor despeckledFrame;
+    /** The output of the fused despeckle and maximum finding. */
+    private ImageProcessor fusedFrame;
+    /** The noise tolerance. */
+    private double tolerance;
+    /** A SilentRankFilters instance. */
+    private Object rankFilters;
+    /** A SilentMaximumFinder instance. */
+    private Object maximumFinder;
+    /** A CentroidCalculator instance. */
+    private Object centroidCalculator;
+    /** The maxima in the despeckled frame. */
+    private Polygon maxima;
+    /** The x coordinates output buffer for getMaximaDespeckled and getMaximaProminence. */
+    private final int[] xPoints = new int[1 << 16];
+    /** The y coordinates output buffer for getMaximaDespeckled and getMaximaProminence. */
+    private final int[] yPoints = new int[1 << 16];
+    /** The prominences output buffer for getMaximaProminence. */
+    private final float[] prominences = new float[1 << 16];
+
+    /**
+     * Create the frames and production objects.
+     *
+     * @throws Throwable If a production method fails.
+     */
+    @Setup
+    public void setup() throws Throwable {
+        this.rawFrame = Frames.photonFrame(42, this.size, this.bitDepth, this.density);
+        this.workFrame = this.rawFrame.duplicate();
+        this.tolerance = Frames.tolerance(this.bitDepth);
+        this.rankFilters = Production.newInstance("SilentRankFilters");
+        this.maximumFinder = Production.newInstance("SilentMaximumFinder");
+        this.centroidCalculator = Production.newInstance("CentroidCalculator");
+
+        this.fusedFrame = this.rawFrame.createProcessor(this.size, this.size);
+        this.despeckledFrame = this.rawFrame.duplicate();
+        Production.RANK.invokeExact(this.rankFilters, this.despeckledFrame, 1.0, RankFilters.MEDIAN);
+        this.maxima = (Polygon) Production.GET_MAXIMA.invokeExact(this.maximumFinder, this.despeckledFrame,
+                this.tolerance, true);
+    }
+
+    /**
+     * The despeckle step: a median filter with radius 1. The original frame is copied back first, which
+     * costs a small fraction of the filter time.
+     *
+     * @return Object The filtered pixels.
+     * @throws Throwable If the filter fails.
+     */
+    @Benchmark
+    public Object rankMedianRadius1() throws Throwable {
+        System.arraycopy(this.rawFrame.getPixels(), 0, this.workFrame.getPixels(), 0,
+                this.size * this.size);
+        Production.RANK.invokeExact(this.rankFilters, this.workFrame, 1.0, RankFilters.MEDIAN);
+        return this.workFrame.getPixels();
+    }
+
+    /**
+     * Finding the photons in a despeckled frame.
+     *
+     * @return Polygon The maxima.
+     * @throws Throwable If the maximum finder fails.
+     */
+    @Benchmark
+    public Polygon getMaxima() throws Throwable {
+        return (Polygon) Production.GET_MAXIMA.invokeExact(this.maximumFinder, this.despeckledFrame,
+                this.tolerance, true);
+    }
+
+    /**
+     * Despeckling a frame while finding its photons, in one pass. Compare with rankMedianRadius1 plus getMaxima.
+     *
+     * @return int The number of maxima.
+     * @throws Throwable If the maximum finder fails.
+     */
+    @Benchmark
+    public int getMaximaDespeckled() throws Throwable {
+        return (int) Production.GET_MAXIMA_DESPECKLED.invokeExact(this.maximumFinder, this.rawFrame, this.fusedFrame,
+                this.tolerance, true, this.xPoints, this.yPoints);
+    }
+
+    /**
+     * Finding the photons in a despeckled frame, skipping the pixels below the background level.
+     *
+     * @return Polygon The maxima.
+     * @throws Throwable If the maximum finder fails.
+     */
+    @Benchmark
+    public Polygon getMaximaSparse() throws Throwable {
+        return (Polygon) Production.GET_MAXIMA_SPARSE.invokeExact(this.maximumFinder, this.despeckledFrame,
+                this.tolerance, Frames.backgroundLevel(this.bitDepth), true);
+    }
+
+    /**
+     * Finding all maxima of a despeckled frame with their prominence, as done for a tolerance sweep.
+     *
+     * @return int The number of maxima.
+     * @throws Throwable If the maximum finder fails.
+     */
+    @Benchmark
+    public int getMaximaProminence() throws Throwable {
+        return (int) Production.GET_MAXIMA_PROMINENCE.invokeExact(this.maximumFinder, this.despeckledFrame, true,
+                this.xPoints, this.yPoints, this.prominences);
+    }
+
+    /**
+     * Calculating the centers of all photons in a despeckled frame with the flood fill.
+     *
+     * @param blackhole Consumes the centers.
+     * @throws Throwable If the centroid calculation fails.
+     */
+    @Benchmark
+    public void centroids(final Blackhole blackhole) throws Throwable {
+        for (int i = 0; i < this.maxima.npoints; i++) {
+            boolean found = (boolean) Production.CALCULATE_CENTER.invokeExact(this.centroidCalculator,
+                    this.despeckledFrame, this.maxima.xpoints[i], this.maxima.ypoints[i], this.tolerance);
+            blackhole.consume(found);
+            blackhole.consume((double) Production.GET_CENTER_X.invokeExact(this.centroidCalculator));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.bioinf.lscheffer_wvanhelvoirt.benchmarks;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Frames
+ *
+ * Creates the input frames for the benchmarks with SyntheticPhotonStack: a noisy background with Gaussian
+ * light blobs at random positions, so the benchmarks do not depend on camera data.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+final class Frames {
+
+    /**
+     * This class only has static members.
+     */
+    private Frames() {
+    }
+
+    /**
+     * Get a noise tolerance that separates the photons of photonFrame from the background.
+     *
+     * @param bitDepth 8 or 16.
+     * @return double The noise tolerance.
+     */
+    static double tolerance(final int bitDepth) {
+        return bitDepth == 8 ? 25 : 100;
+    }
+
+    /**
+     * Get a background level above the background noise of photonFrame, for the sparse maximum finder.
+     *
+     * @param bitDepth 8 or 16.
+     * @return double The background level.
+     */
+    static double backgroundLevel(final int bitDepth) {
+        return bitDepth == 8 ? 40 : 200;
+    }
+
+    /**
+     * Create a frame with single photon events.
+     *
+     * @param seed     The seed of the random generator, the same seed gives the same frame.
+     * @param size     The width and height of the frame.
+     * @param bitDepth 8 or 16.
+     * @param density  The expected number of photons per pixel.
+     * @return ImageProcessor The frame.
+     * @throws Throwable If the generator fails.
+     */
+    static ImageProcessor photonFrame(final long seed, final int size, final int bitDepth, final double density)
+            throws Throwable {
+        Object generator = Production.newInstance("SyntheticPhotonStack", size, size, bitDepth, seed);
+        Production.SYNTHETIC_SET_PHOTONS.invokeExact(generator, size * size * density);
+        return (ImageProcessor) Production.SYNTHETIC_CREATE_FRAME.invokeExact(generator, 1);
+    }
+}
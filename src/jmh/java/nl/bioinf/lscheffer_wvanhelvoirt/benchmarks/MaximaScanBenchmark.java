@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.bioinf.lscheffer_wvanhelvoirt.benchmarks;
+
+import ij.plugin.filter.RankFilters;
+import ij.process.ImageProcessor;
+import java.awt.Polygon;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MaximaScanBenchmark
+ *
+ * Compares finding the photons with the scalar local maximum scan and with VectorMaximaScanner. Only
+ * meaningful when the jar is built with both the 'benchmark' and the 'vector' profile; the forked JVM is
+ * started with the Vector API module, so it needs Java 17 or later.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class MaximaScanBenchmark {
+
+    /** The width and height of the frame. */
+    @Param({"256", "1024"})
+    public int size;
+    /** The bit depth of the frame. */
+    @Param({"8", "16"})
+    public int bitDepth;
+    /** Whether the vectorized scan is used. */
+    @Param({"false", "true"})
+    public boolean vectorScan;
+
+    /** The despeckled frame. */
+    private ImageProcessor despeckledFrame;
+    /** The noise tolerance. */
+    private double tolerance;
+    /** A SilentMaximumFinder instance. */
+    private Object maximumFinder;
+
+    /**
+     * Create the frame and the maximum finder.
+     *
+     * @throws Throwable If a production method fails, or the vectorized scan is not available.
+     */
+    @Setup
+    public void setup() throws Throwable {
+        if (this.vectorScan && !(boolean) Production.IS_VECTOR_SCAN_AVAILABLE.invokeExact()) {
+            throw new IllegalStateException("The vectorized scan is not available, build with -P benchmark,vector.");
+        }
+        this.despeckledFrame = Frames.photonFrame(42, this.size, this.bitDepth, 0.01);
+        Production.RANK.invokeExact(Production.newInstance("SilentRankFilters"), this.despeckledFrame, 1.0,
+                RankFilters.MEDIAN);
+        this.tolerance = Frames.tolerance(this.bitDepth);
+        this.maximumFinder = Production.newInstance("SilentMaximumFinder");
+        Production.SET_VECTOR_SCAN.invokeExact(this.maximumFinder, this.vectorScan);
+    }
+
+    /**
+     * Finding the photons in a despeckled frame.
+     *
+     * @return Polygon The maxima.
+     * @throws Throwable If the maximum finder fails.
+     */
+    @Benchmark
+    public Polygon getMaxima() throws Throwable {
+        return (Polygon) Production.GET_MAXIMA.invokeExact(this.maximumFinder, this.despeckledFrame,
+                this.tolerance, true);
+    }
+}
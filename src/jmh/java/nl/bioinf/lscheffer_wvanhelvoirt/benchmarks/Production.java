@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.bioinf.lscheffer_wvanhelvoirt.benchmarks;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.awt.Polygon;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Production
+ *
+ * The plugin classes live in the default package (ImageJ needs this), which can not be imported from a named
+ * package, and JMH does not allow benchmarks in the default package. This class looks the benchmarked methods
+ * up once as method handles. The handles are static final and have fixed types, so the JIT compiler inlines
+ * them like normal calls and the benchmarks measure the production code, not the reflection.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+final class Production {
+
+    /** SilentRankFilters.rank(ImageProcessor, double, int), type (Object, ImageProcessor, double, int)void. */
+    static final MethodHandle RANK = find("SilentRankFilters", "rank",
+            MethodType.methodType(void.class, ImageProcessor.class, double.class, int.class));
+    /** SilentRankFilters.rank(ImageStack, double, int), type (Object, ImageStack, double, int)void. */
+    static final MethodHandle RANK_STACK = find("SilentRankFilters", "rank",
+            MethodType.methodType(void.class, ImageStack.class, double.class, int.class));
+    /** SilentRankFilters.setStackStrategy, type (Object, int)void. */
+    static final MethodHandle SET_STACK_STRATEGY = find("SilentRankFilters", "setStackStrategy",
+            MethodType.methodType(void.class, int.class));
+    /** SilentRankFilters.getLastStackStrategy, type (Object)int. */
+    static final MethodHandle GET_LAST_STACK_STRATEGY = find("SilentRankFilters", "getLastStackStrategy",
+            MethodType.methodType(int.class));
+    /** SilentMaximumFinder.getMaxima, type (Object, ImageProcessor, double, boolean)Polygon. */
+    static final MethodHandle GET_MAXIMA = find("SilentMaximumFinder", "getMaxima",
+            MethodType.methodType(Polygon.class, ImageProcessor.class, double.class, boolean.class));
+    /** SilentMaximumFinder.getMaximaSparse, type (Object, ImageProcessor, double, double, boolean)Polygon. */
+    static final MethodHandle GET_MAXIMA_SPARSE = find("SilentMaximumFinder", "getMaximaSparse",
+            MethodType.methodType(Polygon.class, ImageProcessor.class, double.class, double.class, boolean.class));
+    /** SilentMaximumFinder.getMaximaProminence, type (Object, ImageProcessor, boolean, int[], int[], float[])int. */
+    static final MethodHandle GET_MAXIMA_PROMINENCE = find("SilentMaximumFinder", "getMaximaProminence",
+            MethodType.methodType(int.class, ImageProcessor.class, boolean.class, int[].class, int[].class,
+                    float[].class));
+    /**
+     * SilentMaximumFinder.getMaximaDespeckled, type (Object, ImageProcessor, ImageProcessor, double, boolean, int[],
+     * int[])int.
+     */
+    static final MethodHandle GET_MAXIMA_DESPECKLED = find("SilentMaximumFinder", "getMaximaDespeckled",
+            MethodType.methodType(int.class, ImageProcessor.class, ImageProcessor.class, double.class, boolean.class,
+                    int[].class, int[].class));
+    /** SilentMaximumFinder.setVectorScan, type (Object, boolean)void. */
+    static final MethodHandle SET_VECTOR_SCAN = find("SilentMaximumFinder", "setVectorScan",
+            MethodType.methodType(void.class, boolean.class));
+    /** The static SilentMaximumFinder.isVectorScanAvailable, type ()boolean. */
+    static final MethodHandle IS_VECTOR_SCAN_AVAILABLE = findStatic("SilentMaximumFinder", "isVectorScanAvailable",
+            MethodType.methodType(boolean.class));
+    /** CentroidCalculator.calculateCenter, type (Object, ImageProcessor, int, int, double)boolean. */
+    static final MethodHandle CALCULATE_CENTER = find("CentroidCalculator", "calculateCenter",
+            MethodType.methodType(boolean.class, ImageProcessor.class, int.class, int.class, double.class));
+    /** CentroidCalculator.getCenterX, type (Object)double. */
+    static final MethodHandle GET_CENTER_X = find("CentroidCalculator", "getCenterX",
+            MethodType.methodType(double.class));
+    /** DctCalculator.tryModification, type (Object, int, int, int)double. */
+    static final MethodHandle DCT_TRY_MODIFICATION = find("DctCalculator", "tryModification",
+            MethodType.methodType(double.class, int.class, int.class, int.class));
+    /** DctCalculator.performModification, type (Object)void. */
+    static final MethodHandle DCT_PERFORM_MODIFICATION = find("DctCalculator", "performModification",
+            MethodType.methodType(void.class));
+    /** DctCalculator.getTotalSparsity, type (Object)double. */
+    static final MethodHandle DCT_TOTAL_SPARSITY = find("DctCalculator", "getTotalSparsity",
+            MethodType.methodType(double.class));
+    /** LogLikelihoodCalculator.tryModification, type (Object, int, int, int)double. */
+    static final MethodHandle LL_TRY_MODIFICATION = find("LogLikelihoodCalculator", "tryModification",
+            MethodType.methodType(double.class, int.class, int.class, int.class));
+    /** LogLikelihoodCalculator.performModification, type (Object)void. */
+    static final MethodHandle LL_PERFORM_MODIFICATION = find("LogLikelihoodCalculator", "performModification",
+            MethodType.methodType(void.class));
+    /** LogLikelihoodCalculator.getTotalLogLikelihood, type (Object)double. */
+    static final MethodHandle LL_TOTAL_LOG_LIKELIHOOD = find("LogLikelihoodCalculator", "getTotalLogLikelihood",
+            MethodType.methodType(double.class));
+    /** SyntheticPhotonStack.setPhotonsPerFrame, type (Object, double)void. */
+    static final MethodHandle SYNTHETIC_SET_PHOTONS = find("SyntheticPhotonStack", "setPhotonsPerFrame",
+            MethodType.methodType(void.class, double.class));
+    /** SyntheticPhotonStack.createFrame, type (Object, int)ImageProcessor. */
+    static final MethodHandle SYNTHETIC_CREATE_FRAME = find("SyntheticPhotonStack", "createFrame",
+            MethodType.methodType(ImageProcessor.class, int.class));
+
+    /**
+     * This class only has static members.
+     */
+    private Production() {
+    }
+
+    /**
+     * Create an instance of a production class with the public constructor that matches the arguments.
+     *
+     * @param className The name of the class in the default package.
+     * @param args      The constructor arguments, primitives are boxed.
+     * @return Object The new instance.
+     */
+    static Object newInstance(final String className, final Object... args) {
+        try {
+            for (Constructor<?> constructor : Class.forName(className).getConstructors()) {
+                if (constructor.getParameterCount() == args.length) {
+                    return constructor.newInstance(args);
+                }
+            }
+            throw new IllegalArgumentException("No constructor of " + className + " has " + args.length
+                    + " parameters.");
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException ex) {
+            throw new IllegalStateException("Could not create " + className, ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException("Could not create " + className, ex.getCause());
+        }
+    }
+
+    /**
+     * Look up a public instance method of a production class. The receiver type is changed to Object, so
+     * the handle can be called with invokeExact without knowing the class.
+     *
+     * @param className  The name of the class in the default package.
+     * @param methodName The name of the method.
+     * @param type       The type of the method, without receiver.
+     * @return MethodHandle The handle.
+     */
+    private static MethodHandle find(final String className, final String methodName, final MethodType type) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup().findVirtual(Class.forName(className), methodName, type);
+            return handle.asType(handle.type().changeParameterType(0, Object.class));
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    /**
+     * Look up a public static method of a production class.
+     *
+     * @param className  The name of the class in the default package.
+     * @param methodName The name of the method.
+     * @param type       The type of the method.
+     * @return MethodHandle The handle.
+     */
+    private static MethodHandle findStatic(final String className, final String methodName, final MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findStatic(Class.forName(className), methodName, type);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.bioinf.lscheffer_wvanhelvoirt.benchmarks;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ReconstructionBenchmark
+ *
+ * Measures the steps of Image_Reconstructor: trying a modification with DctCalculator and
+ * LogLikelihoodCalculator, and a full iteration of the reconstruction loop (try a random modification with
+ * both calculators and accept it if the merit value improves). The iteration is the same as the loop body
+ * of Image_Reconstructor.run, without updating the image window.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReconstructionBenchmark {
+
+    /** The number of random modifications that are prepared. */
+    private static final int MODIFICATIONS = 1 << 16;
+    /** The DCT block size used by Image_Reconstructor. */
+    private static final int DCT_BLOCK_SIZE = 8;
+    /** The default dark count rate of Image_Reconstructor. */
+    private static final double DARK_COUNT_RATE = 0.1;
+    /** The default regularization factor of Image_Reconstructor. */
+    private static final double REGULARIZATION_FACTOR = 0.5;
+
+    /** The width and height of the photon count image. */
+    @Param({"64", "256"})
+    public int size;
+    /** The bit depth of the frames the photon count image was made from. */
+    @Param({"8", "16"})
+    public int bitDepth;
+    /** The expected number of photons per pixel per frame. */
+    @Param({"0.001", "0.01"})
+    public double density;
+
+    /** The output matrix that is modified. */
+    private int[][] outMatrix;
+    /** A DctCalculator for the output matrix. */
+    private Object dctCalculator;
+    /** A LogLikelihoodCalculator for the input and output matrix. */
+    private Object logLikelihoodCalculator;
+    /** The x coordinates of the prepared modifications. */
+    private int[] xCoordinates;
+    /** The y coordinates of the prepared modifications. */
+    private int[] yCoordinates;
+    /** The new values of the prepared modifications. */
+    private int[] newValues;
+    /** The index of the next prepared modification. */
+    private int next;
+    /** The best merit value so far. */
+    private double bestMerit;
+
+    /**
+     * Create a photon count image by adding the local maxima of a number of frames, and prepare the
+     * calculators the same way Image_Reconstructor does. Repeated for each iteration, because the
+     * reconstruction benchmark modifies the output matrix.
+     *
+     * @throws Throwable If a production method fails.
+     */
+    @Setup(Level.Iteration)
+    public void setup() throws Throwable {
+        // Count the brightest pixel of each photon blob over 50 frames.
+        int[][] inMatrix = new int[this.size][this.size];
+        Object maximumFinder = Production.newInstance("SilentMaximumFinder");
+        for (int frame = 0; frame < 50; frame++) {
+            ImageProcessor ip = Frames.photonFrame(frame, this.size, this.bitDepth, this.density);
+            Polygon maxima = (Polygon) Production.GET_MAXIMA.invokeExact(maximumFinder,
+                    ip, Frames.tolerance(this.bitDepth), true);
+            for (int i = 0; i < maxima.npoints; i++) {
+                inMatrix[maxima.xpoints[i]][maxima.ypoints[i]]++;
+            }
+        }
+
+        // The output starts as blurred input, like in Image_Reconstructor.
+        ShortProcessor outIp = new ShortProcessor(this.size, this.size);
+        outIp.setIntArray(inMatrix);
+        new GaussianBlur().blurGaussian(outIp, 2.0);
+        this.outMatrix = outIp.getIntArray();
+        this.dctCalculator = Production.newInstance("DctCalculator", DCT_BLOCK_SIZE, this.outMatrix);
+        this.logLikelihoodCalculator = Production.newInstance("LogLikelihoodCalculator", inMatrix,
+                this.outMatrix, DARK_COUNT_RATE);
+        this.bestMerit = (double) Production.LL_TOTAL_LOG_LIKELIHOOD.invokeExact(this.logLikelihoodCalculator)
+                - REGULARIZATION_FACTOR * (double) Production.DCT_TOTAL_SPARSITY.invokeExact(this.dctCalculator);
+
+        // Prepare random modifications the same way as Image_Reconstructor.selectNewModification.
+        Random random = new Random(42);
+        int maxValue = 1;
+        for (int[] column : this.outMatrix) {
+            for (int value : column) {
+                maxValue = Math.max(maxValue, value);
+            }
+        }
+        double scalingValue = maxValue / 2.0;
+        this.xCoordinates = new int[MODIFICATIONS];
+        this.yCoordinates = new int[MODIFICATIONS];
+        this.newValues = new int[MODIFICATIONS];
+        for (int i = 0; i < MODIFICATIONS; i++) {
+            this.xCoordinates[i] = random.nextInt(this.size);
+            this.yCoordinates[i] = random.nextInt(this.size);
+            this.newValues[i] = (int) Math.abs((random.nextDouble() - 0.5) * scalingValue
+                    + this.outMatrix[this.xCoordinates[i]][this.yCoordinates[i]]);
+        }
+        this.next = 0;
+    }
+
+    /**
+     * Get the index of the next prepared modification.
+     *
+     * @return int The index.
+     */
+    private int nextModification() {
+        int index = this.next;
+        this.next = (index + 1) & (MODIFICATIONS - 1);
+        return index;
+    }
+
+    /**
+     * DctCalculator.tryModification for a random pixel.
+     *
+     * @return double The sparsity of the modified image.
+     * @throws Throwable If the calculation fails.
+     */
+    @Benchmark
+    public double dctTryModification() throws Throwable {
+        int i = this.nextModification();
+        return (double) Production.DCT_TRY_MODIFICATION.invokeExact(this.dctCalculator, this.xCoordinates[i],
+                this.yCoordinates[i], this.newValues[i]);
+    }
+
+    /**
+     * LogLikelihoodCalculator.tryModification for a random pixel.
+     *
+     * @return double The log likelihood of the modified image.
+     * @throws Throwable If the calculation fails.
+     */
+    @Benchmark
+    public double logLikelihoodTryModification() throws Throwable {
+        int i = this.nextModification();
+        return (double) Production.LL_TRY_MODIFICATION.invokeExact(this.logLikelihoodCalculator,
+                this.xCoordinates[i], this.yCoordinates[i], this.newValues[i]);
+    }
+
+    /**
+     * One iteration of the reconstruction loop of Image_Reconstructor.
+     *
+     * @return double The best merit value so far.
+     * @throws Throwable If the calculation fails.
+     */
+    @Benchmark
+    public double reconstructorIteration() throws Throwable {
+        int i = this.nextModification();
+        int x = this.xCoordinates[i];
+        int y = this.yCoordinates[i];
+        int value = this.newValues[i];
+
+        double merit = (double) Production.LL_TRY_MODIFICATION.invokeExact(this.logLikelihoodCalculator, x, y, value)
+                - REGULARIZATION_FACTOR
+                * (double) Production.DCT_TRY_MODIFICATION.invokeExact(this.dctCalculator, x, y, value);
+        if (merit > this.bestMerit) {
+            this.bestMerit = merit;
+            this.outMatrix[x][y] = value;
+            Production.DCT_PERFORM_MODIFICATION.invokeExact(this.dctCalculator);
+            Production.LL_PERFORM_MODIFICATION.invokeExact(this.logLikelihoodCalculator);
+        }
+        return this.bestMerit;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.bioinf.lscheffer_wvanhelvoirt.benchmarks;
+
+import ij.ImageStack;
+import ij.plugin.filter.RankFilters;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StackFilterBenchmark
+ *
+ * Compares the ways SilentRankFilters filters a stack in parallel: the lines of each slice with all threads
+ * (strategy 0), one thread per slice (strategy 1) or the automatic choice (strategy -1). The median filter is
+ * applied to the same stack over and over; after the first time it hardly changes the pixels, but the filter
+ * does the same work.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StackFilterBenchmark {
+
+    /** The width and height of the slices. */
+    @Param({"64", "256", "1024"})
+    public int size;
+    /** The radius of the median filter. */
+    @Param({"1", "3"})
+    public double radius;
+    /** SilentRankFilters.PARALLEL_AUTO, PARALLEL_LINES or PARALLEL_SLICES. */
+    @Param({"-1", "0", "1"})
+    public int strategy;
+
+    /** The stack, with about 16 megapixels in total. */
+    private ImageStack stack;
+    /** A SilentRankFilters instance. */
+    private Object rankFilters;
+
+    /**
+     * Create the stack and the filter.
+     *
+     * @throws Throwable If a production method fails.
+     */
+    @Setup
+    public void setup() throws Throwable {
+        this.stack = new ImageStack(this.size, this.size);
+        for (int slice = 0; slice < (1 << 24) / (this.size * this.size); slice++) {
+            this.stack.addSlice(Frames.photonFrame(slice, this.size, 16, 0.01));
+        }
+        this.rankFilters = Production.newInstance("SilentRankFilters");
+        Production.SET_STACK_STRATEGY.invokeExact(this.rankFilters, this.strategy);
+    }
+
+    /**
+     * Median filter of all slices.
+     *
+     * @return int The strategy that was used.
+     * @throws Throwable If the filter fails.
+     */
+    @Benchmark
+    public int rankStackMedian() throws Throwable {
+        Production.RANK_STACK.invokeExact(this.rankFilters, this.stack, this.radius, RankFilters.MEDIAN);
+        return (int) Production.GET_LAST_STACK_STRATEGY.invokeExact(this.rankFilters);
+    }
+}
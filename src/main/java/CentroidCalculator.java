@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+/**
+ * CentroidCalculator
+ *
+ * This class can be used to calculate the center of a photon without creating any objects per photon.
+ * Starting at the maximum of the photon, all 4-connected pixels with a value within the tolerance are
+ * found with a flood fill that works directly on the pixel array of the image. The center of the bounding
+ * box of these pixels is the same center as the one found by outlining the photon with the Wand tool, and
+ * like the Wand outline, the original coordinates are used when the pixels cover the full height of the
+ * image. The intensity weighted centroid of the pixels is calculated as well.
+ *
+ * The scratch buffers are reused for every photon, so one instance should only be used by one thread.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class CentroidCalculator {
+
+    /** For each pixel of the image, the number of the last calculation that visited it. */
+    private int[] visited = new int[0];
+    /** The number of the current calculation, used to mark visited pixels without clearing them. */
+    private int visitMark = 0;
+    /** The stack with pixel offsets that still have to be checked by the flood fill. */
+    private int[] pixelStack = new int[64];
+    /** The byte pixels of the current image, or null. */
+    private byte[] bytePixels;
+    /** The short pixels of the current image, or null. */
+    private short[] shortPixels;
+    /** The float pixels of the current image, or null. */
+    private float[] floatPixels;
+    /** The x coordinate of the center of the bounding box. */
+    private double centerX;
+    /** The y coordinate of the center of the bounding box. */
+    private double centerY;
+    /** The x coordinate of the intensity weighted centroid. */
+    private double centroidX;
+    /** The y coordinate of the intensity weighted centroid. */
+    private double centroidY;
+
+    /**
+     * Calculate the center of the photon at the given coordinates. All 4-connected pixels with a value within
+     * the tolerance of the value at (xCor, yCor) are part of the photon. If the photon covers the full height
+     * of the image, the background has been selected and the original coordinates are used as center instead,
+     * just like the Wand outline does.
+     *
+     * @param ip        The image processor with the photon, must be 8-bit, 16-bit or 32-bit.
+     * @param xCor      Original x coordinate as found by MaximumFinder.
+     * @param yCor      Original y coordinate as found by MaximumFinder.
+     * @param tolerance The maximum difference in value with the original coordinate.
+     * @return boolean True if a center was calculated, false if the original coordinates are used.
+     */
+    public boolean calculateCenter(final ImageProcessor ip, final int xCor, final int yCor, final double tolerance) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        this.setPixels(ip.getPixels());
+        this.prepareVisited(width * height);
+
+        int offset0 = xCor + yCor * width;
+        double value0 = this.getValue(offset0);
+        double lower = value0 - tolerance;
+        double upper = value0 + tolerance;
+        int xMin = xCor;
+        int xMax = xCor;
+        int yMin = yCor;
+        int yMax = yCor;
+        double weightSum = 0;
+        double weightedX = 0;
+        double weightedY = 0;
+        int stackSize = 0;
+
+        this.visited[offset0] = this.visitMark;
+        this.pixelStack[stackSize++] = offset0;
+
+        // Flood fill the photon, stop as soon as it covers the full height of the image.
+        while (stackSize > 0 && yMax - yMin + 1 < height) {
+            int offset = this.pixelStack[--stackSize];
+            int x = offset % width;
+            int y = offset / width;
+            double weight = this.getValue(offset) - lower;
+
+            weightSum += weight;
+            weightedX += weight * x;
+            weightedY += weight * y;
+            if (x < xMin) {
+                xMin = x;
+            } else if (x > xMax) {
+                xMax = x;
+            }
+            if (y < yMin) {
+                yMin = y;
+            } else if (y > yMax) {
+                yMax = y;
+            }
+
+            // Check the 4 neighbors, add those within the tolerance to the stack.
+            if (y > 0) {
+                stackSize = this.visit(offset - width, lower, upper, stackSize);
+            }
+            if (x < width - 1) {
+                stackSize = this.visit(offset + 1, lower, upper, stackSize);
+            }
+            if (y < height - 1) {
+                stackSize = this.visit(offset + width, lower, upper, stackSize);
+            }
+            if (x > 0) {
+                stackSize = this.visit(offset - 1, lower, upper, stackSize);
+            }
+        }
+
+        // If the photon is too big, the background has been selected, so use the original coordinates.
+        if (yMax - yMin + 1 == height) {
+            this.centerX = xCor;
+            this.centerY = yCor;
+            this.centroidX = xCor;
+            this.centroidY = yCor;
+            return false;
+        }
+
+        // Pixel (x, y) covers the area from x to x + 1, so add a half pixel to get to the pixel centers.
+        this.centerX = (xMin + xMax + 1) / 2.0;
+        this.centerY = (yMin + yMax + 1) / 2.0;
+        if (weightSum > 0) {
+            this.centroidX = weightedX / weightSum + 0.5;
+            this.centroidY = weightedY / weightSum + 0.5;
+        } else {
+            this.centroidX = this.centerX;
+            this.centroidY = this.centerY;
+        }
+        return true;
+    }
+
+    /**
+     * Add the pixel at the given offset to the stack if it has not been visited and is within the range.
+     *
+     * @param offset    The offset of the pixel in the pixel array.
+     * @param lower     The lowest value allowed.
+     * @param upper     The highest value allowed.
+     * @param stackSize The current size of the stack.
+     * @return int The new size of the stack.
+     */
+    private int visit(final int offset, final double lower, final double upper, final int stackSize) {
+        if (this.visited[offset] == this.visitMark) {
+            return stackSize;
+        }
+        this.visited[offset] = this.visitMark;
+        double value = this.getValue(offset);
+        if (value < lower || value > upper) {
+            return stackSize;
+        }
+        if (stackSize == this.pixelStack.length) {
+            int[] newStack = new int[stackSize * 2];
+            System.arraycopy(this.pixelStack, 0, newStack, 0, stackSize);
+            this.pixelStack = newStack;
+        }
+        this.pixelStack[stackSize] = offset;
+        return stackSize + 1;
+    }
+
+    /**
+     * Set the pixel array that is used by this calculation.
+     *
+     * @param pixels The pixel array of the image.
+     */
+    private void setPixels(final Object pixels) {
+        this.bytePixels = pixels instanceof byte[] ? (byte[]) pixels : null;
+        this.shortPixels = pixels instanceof short[] ? (short[]) pixels : null;
+        this.floatPixels = pixels instanceof float[] ? (float[]) pixels : null;
+        if (this.bytePixels == null && this.shortPixels == null && this.floatPixels == null) {
+            throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit images are supported!");
+        }
+    }
+
+    /**
+     * Make sure the visited array is big enough and get a new mark for this calculation.
+     *
+     * @param nPixels The number of pixels in the image.
+     */
+    private void prepareVisited(final int nPixels) {
+        if (this.visited.length != nPixels) {
+            this.visited = new int[nPixels];
+            this.visitMark = 0;
+        }
+        this.visitMark++;
+        if (this.visitMark == Integer.MAX_VALUE) {
+            // Old marks could be mistaken for new ones, so start over.
+            Arrays.fill(this.visited, 0);
+            this.visitMark = 1;
+        }
+    }
+
+    /**
+     * Get the (uncalibrated) value of the pixel at the given offset.
+     *
+     * @param offset The offset of the pixel in the pixel array.
+     * @return double The pixel value.
+     */
+    private double getValue(final int offset) {
+        if (this.shortPixels != null) {
+            return this.shortPixels[offset] & 0xffff;
+        } else if (this.bytePixels != null) {
+            return this.bytePixels[offset] & 0xff;
+        } else {
+            return this.floatPixels[offset];
+        }
+    }
+
+    /**
+     * Get the x coordinate of the center of the bounding box of the last photon.
+     *
+     * @return double The x coordinate.
+     */
+    public double getCenterX() {
+        return this.centerX;
+    }
+
+    /**
+     * Get the y coordinate of the center of the bounding box of the last photon.
+     *
+     * @return double The y coordinate.
+     */
+    public double getCenterY() {
+        return this.centerY;
+    }
+
+    /**
+     * Get the x coordinate of the intensity weighted centroid of the last photon.
+     *
+     * @return double The x coordinate.
+     */
+    public double getCentroidX() {
+        return this.centroidX;
+    }
+
+    /**
+     * Get the y coordinate of the intensity weighted centroid of the last photon.
+     *
+     * @return double The y coordinate.
+     */
+    public double getCentroidY() {
+        return this.centroidY;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * MaximaScanner
+ *
+ * A scanner marks the local maxima in a part of a row of an 8-bit or 16-bit image: the pixels that have no
+ * higher neighbor among their 8 neighbors. SilentMaximumFinder uses it for the inner pixels of each row, when
+ * a scanner is available (see SilentMaximumFinder.isVectorScanAvailable), and checks the edge pixels itself.
+ *
+ * The only implementation is VectorMaximaScanner, which compares many pixels at once with the Java Vector API.
+ * It is only built with the 'vector' profile, so the plugin itself still runs on Java 8.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public interface MaximaScanner {
+
+    /**
+     * Mark the local maxima in a part of a row of an 8-bit image, and update the minimum and maximum value.
+     *
+     * @param pixels The pixels of the image.
+     * @param width  The width of the image.
+     * @param from   The offset of the first pixel, which is not on an edge of the image.
+     * @param to     The offset after the last pixel, in the same row and not on an edge of the image.
+     * @param types  The pixel types, where the local maxima are marked as SilentMaximumFinder.MAXIMUM.
+     * @param minMax The minimum and maximum value so far, lowered or raised by the values of the pixels.
+     * @return int The number of local maxima marked.
+     */
+    int scanBytes(byte[] pixels, int width, int from, int to, byte[] types, int[] minMax);
+
+    /**
+     * Mark the local maxima in a part of a row of a 16-bit image, and update the minimum and maximum value.
+     *
+     * @param pixels The pixels of the image.
+     * @param width  The width of the image.
+     * @param from   The offset of the first pixel, which is not on an edge of the image.
+     * @param to     The offset after the last pixel, in the same row and not on an edge of the image.
+     * @param types  The pixel types, where the local maxima are marked as SilentMaximumFinder.MAXIMUM.
+     * @param minMax The minimum and maximum value so far, lowered or raised by the values of the pixels.
+     * @return int The number of local maxima marked.
+     */
+    int scanShorts(short[] pixels, int width, int from, int to, byte[] types, int[] minMax);
+}
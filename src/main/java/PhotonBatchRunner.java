@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * PhotonBatchRunner
+ *
+ * This class can be used to process single photon event data from the command line, without ImageJ windows,
+ * dialogs or progress bar. The input is a directory with TIFF files (searched recursively, like 'Open TIFF
+ * Files', each file is one frame) or a single TIFF stack. Each frame is processed by Photon_Image_Processor,
+ * using all available cores, and the photon count image is saved as TIFF file.
+ *
+ * Usage: java -cp Photon_Imaging.jar:ij.jar PhotonBatchRunner [options] input output.tif
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class PhotonBatchRunner {
+
+    /** The input directory or TIFF stack. */
+    private String inputPath;
+    /** The path of the output TIFF file. */
+    private String outputPath;
+    /** The path of the photon event list, or null if no event list should be saved. */
+    private String eventsPath;
+    /** Noise tolerance, default is 100. */
+    private double tolerance = 100;
+    /** Pixels at or below this level are skipped when finding photons, 0 to analyze all pixels. */
+    private double backgroundLevel = 0;
+    /** The output method, default is simple. */
+    private String method = "Simple";
+    /** The centroid calculation used by the accurate methods, default is flood fill. */
+    private String centroidMethod = "Flood fill";
+    /** This boolean tells whether the frames should be preprocessed. */
+    private boolean preprocessing = true;
+    /** The path of the timing statistics file, or null if no statistics should be collected. */
+    private String statsPath;
+    /** The number of frames in each time bin, 0 if no time bins are made. */
+    private int binFrames = 0;
+    /** The number of frames between the first frames of two time bins, 0 for bins that do not overlap. */
+    private int binStep = 0;
+    /** The noise tolerances of the tolerance sweep, or null if no tolerance sweep is made. */
+    private double[] sweepTolerances;
+    /** The tile size for finding the photons of a frame on all cores, 0 for no tiles, -1 to decide per input. */
+    private int tileSize = -1;
+    /** The number of threads used for processing frames, default is the number of cores. */
+    private int nThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Read the command line arguments.
+     *
+     * @param args The command line arguments.
+     */
+    private void parseArguments(final String[] args) {
+        List<String> paths = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--tolerance":
+                    this.tolerance = Double.parseDouble(this.getValue(args, ++i));
+                    break;
+                case "--background":
+                    this.backgroundLevel = Double.parseDouble(this.getValue(args, ++i));
+                    break;
+                case "--method":
+                    this.method = this.parseMethod(this.getValue(args, ++i));
+                    break;
+                case "--centroid":
+                    this.centroidMethod = this.parseCentroidMethod(this.getValue(args, ++i));
+                    break;
+                case "--no-preprocessing":
+                    this.preprocessing = false;
+                    break;
+                case "--events":
+                    this.eventsPath = this.getValue(args, ++i);
+                    break;
+                case "--stats":
+                    this.statsPath = this.getValue(args, ++i);
+                    break;
+                case "--time-bins":
+                    this.binFrames = Integer.parseInt(this.getValue(args, ++i));
+                    break;
+                case "--time-step":
+                    this.binStep = Integer.parseInt(this.getValue(args, ++i));
+                    break;
+                case "--tolerance-sweep":
+                    this.sweepTolerances = Photon_Image_Processor.parseTolerances(this.getValue(args, ++i));
+                    break;
+                case "--tile-size":
+                    this.tileSize = Integer.parseInt(this.getValue(args, ++i));
+                    if (this.tileSize < 0) {
+                        throw new IllegalArgumentException("The tile size should be at least 0.");
+                    }
+                    break;
+                case "--threads":
+                    this.nThreads = Integer.parseInt(this.getValue(args, ++i));
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                    paths.add(args[i]);
+            }
+        }
+
+        if (paths.size() != 2) {
+            throw new IllegalArgumentException("Please give one input and one output path.");
+        }
+        if (this.nThreads < 1) {
+            throw new IllegalArgumentException("The number of threads should be at least 1.");
+        }
+        if (this.binFrames < 0 || this.binStep < 0 || (this.binStep > 0 && this.binFrames == 0)) {
+            throw new IllegalArgumentException("The time bin size should be at least 1 when a time step is given.");
+        }
+        if (this.tileSize > 0 && this.tileSize < 16) {
+            throw new IllegalArgumentException("The tile size should be 0 or at least 16.");
+        }
+        if (this.sweepTolerances != null && (this.sweepTolerances.length == 0
+                || Arrays.stream(this.sweepTolerances).min().getAsDouble() < 0)) {
+            throw new IllegalArgumentException("The tolerance sweep should have tolerances of at least 0.");
+        }
+        this.inputPath = paths.get(0);
+        this.outputPath = paths.get(1);
+    }
+
+    /**
+     * Get the value of an option.
+     *
+     * @param args The command line arguments.
+     * @param i    The index of the value.
+     * @return String The value.
+     */
+    private String getValue(final String[] args, final int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for option " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    /**
+     * Translate a method given on the command line to one of Photon_Image_Processor.METHODS.
+     *
+     * @param value The method given by the user.
+     * @return String The method name.
+     */
+    private String parseMethod(final String value) {
+        switch (value.toLowerCase()) {
+            case "simple":
+                return "Simple";
+            case "accurate":
+                return "Accurate";
+            case "subpixel":
+                return "Subpixel resolution";
+            default:
+                throw new IllegalArgumentException("Unknown method '" + value + "', use simple, accurate or subpixel.");
+        }
+    }
+
+    /**
+     * Translate a centroid method given on the command line to one of Photon_Image_Processor.CENTROID_METHODS.
+     *
+     * @param value The centroid method given by the user.
+     * @return String The centroid method name.
+     */
+    private String parseCentroidMethod(final String value) {
+        switch (value.toLowerCase()) {
+            case "wand":
+                return "Wand outline";
+            case "floodfill":
+                return "Flood fill";
+            case "weighted":
+                return "Weighted centroid";
+            default:
+                throw new IllegalArgumentException("Unknown centroid '" + value
+                        + "', use wand, floodfill or weighted.");
+        }
+    }
+
+    /**
+     * Process the input and save the output image.
+     *
+     * @throws IOException If the input could not be read or the output could not be written.
+     */
+    private void run() throws IOException {
+        long startTime = System.currentTimeMillis();
+        // ImageJ does not resolve relative paths against the working directory.
+        Path input = Paths.get(this.inputPath).toAbsolutePath();
+        String output = Paths.get(this.outputPath).toAbsolutePath().toString();
+        List<String> tiffFiles = null;
+        ImageStack stack = null;
+        ImageProcessor firstFrame;
+        int nFrames;
+
+        // Open the input, a directory with TIFF files or a (virtual) TIFF stack.
+        if (Files.isDirectory(input)) {
+            tiffFiles = this.searchDirectory(input);
+            if (tiffFiles.isEmpty()) {
+                throw new IOException("No TIFF files found in " + this.inputPath);
+            }
+            nFrames = tiffFiles.size();
+            firstFrame = this.openFrame(tiffFiles.get(0), null);
+        } else {
+            ImagePlus imp = IJ.openVirtual(input.toString());
+            if (imp == null) {
+                imp = IJ.openImage(input.toString());
+            }
+            if (imp == null) {
+                throw new IOException("Could not open " + this.inputPath);
+            }
+            stack = imp.getStack();
+            nFrames = stack.getSize();
+            firstFrame = stack.getProcessor(1);
+        }
+        if (firstFrame.getBitDepth() != 8 && firstFrame.getBitDepth() != 16) {
+            throw new IOException("Only 8-bit and 16-bit images are supported.");
+        }
+
+        Photon_Image_Processor processor = new Photon_Image_Processor();
+        processor.setupHeadless(firstFrame.getWidth(), firstFrame.getHeight(), this.tolerance, this.method,
+                this.centroidMethod, this.preprocessing);
+        if (this.backgroundLevel > 0) {
+            processor.setupSparseDetection(this.backgroundLevel);
+        }
+        if (this.tileSize != 0) {
+            processor.setupTiledDetection(this.tileSize > 0 ? this.tileSize : Photon_Image_Processor.getAutoTileSize(
+                    firstFrame.getWidth(), firstFrame.getHeight(), nFrames, this.nThreads));
+        }
+        if (this.binFrames > 0) {
+            processor.setupTimeBins(nFrames, this.binFrames, this.binStep);
+        }
+        if (this.sweepTolerances != null) {
+            processor.setupToleranceSweep(firstFrame.getWidth(), firstFrame.getHeight(), this.sweepTolerances);
+        }
+        if (this.statsPath != null) {
+            processor.setupStats();
+        }
+        if (this.eventsPath != null) {
+            processor.setupEventList(Paths.get(this.eventsPath).toAbsolutePath().toString(),
+                    firstFrame.getWidth(), firstFrame.getHeight());
+        }
+        try {
+            this.processFrames(processor, tiffFiles, stack, firstFrame, nFrames);
+        } finally {
+            processor.closeEventList();
+        }
+        if (this.statsPath != null) {
+            // Print the table and save the statistics as JSON or CSV.
+            String stats = Paths.get(this.statsPath).toAbsolutePath().toString();
+            processor.getStats().finish();
+            processor.getStats().log();
+            processor.getStats().save(stats);
+            System.out.println("Timing statistics saved to " + stats);
+        }
+
+        ImagePlus outputImage = processor.getOutputImage();
+        if (!IJ.saveAsTiff(outputImage, output)) {
+            throw new IOException("Could not save " + output);
+        }
+        if (this.binFrames > 0) {
+            // Save the time bins next to the output image.
+            String binOutput = output.replaceFirst("(?i)\\.tiff?$", "") + "_bins.tif";
+            if (!IJ.saveAsTiff(processor.getTimeBinImage(), binOutput)) {
+                throw new IOException("Could not save " + binOutput);
+            }
+            System.out.println("Time bins saved to " + binOutput);
+        }
+        if (this.sweepTolerances != null) {
+            // Save the tolerance sweep next to the output image.
+            String sweepOutput = output.replaceFirst("(?i)\\.tiff?$", "") + "_sweep.tif";
+            if (!IJ.saveAsTiff(processor.getToleranceSweepImage(), sweepOutput)) {
+                throw new IOException("Could not save " + sweepOutput);
+            }
+            System.out.println("Tolerance sweep saved to " + sweepOutput);
+        }
+        System.out.println("Processed " + nFrames + " frames in " + (System.currentTimeMillis() - startTime)
+                + " ms, output saved to " + output);
+    }
+
+    /**
+     * Process all frames with a fixed number of threads. Each thread takes the next unprocessed frame
+     * until all frames are done.
+     *
+     * @param processor The headless Photon_Image_Processor.
+     * @param tiffFiles The TIFF files with one frame each, or null if the stack is used.
+     * @param stack      The stack with all frames, or null if the TIFF files are used.
+     * @param firstFrame The first frame, all TIFF files must have the same size and bit depth.
+     * @param nFrames    The number of frames.
+     * @throws IOException If a frame could not be read or does not match the first frame.
+     */
+    private void processFrames(final Photon_Image_Processor processor, final List<String> tiffFiles,
+                               final ImageStack stack, final ImageProcessor firstFrame, final int nFrames)
+            throws IOException {
+        final AtomicInteger nextFrame = new AtomicInteger(1);
+        final AtomicInteger framesDone = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.nThreads, nFrames));
+        List<Future<Void>> workers = new ArrayList<>();
+
+        for (int t = 0; t < Math.min(this.nThreads, nFrames); t++) {
+            workers.add(executor.submit(() -> {
+                for (int frame = nextFrame.getAndIncrement(); frame <= nFrames; frame = nextFrame.getAndIncrement()) {
+                    ImageProcessor ip = tiffFiles != null
+                            ? this.openFrame(tiffFiles.get(frame - 1), firstFrame)
+                            : stack.getProcessor(frame);
+                    ip.setSliceNumber(frame);
+                    processor.run(ip);
+                    int done = framesDone.incrementAndGet();
+                    if (done % 1000 == 0) {
+                        System.out.println("Processed " + done + " of " + nFrames + " frames");
+                    }
+                }
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Processing was interrupted.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Processing failed: " + ex.getCause(), ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Open a single frame from a TIFF file.
+     *
+     * Frames of another size or bit depth than the first frame are not accepted, since their photons would be
+     * counted at the wrong pixels.
+     *
+     * @param path       The path of the TIFF file.
+     * @param firstFrame The first frame to compare with, or null when the first frame is opened.
+     * @return ImageProcessor The frame.
+     * @throws IOException If the file could not be opened or does not match the first frame.
+     */
+    private ImageProcessor openFrame(final String path, final ImageProcessor firstFrame) throws IOException {
+        ImagePlus imp = IJ.openImage(path);
+        if (imp == null) {
+            throw new IOException("Could not open " + path);
+        }
+        ImageProcessor ip = imp.getProcessor();
+        if (firstFrame != null && (ip.getWidth() != firstFrame.getWidth() || ip.getHeight() != firstFrame.getHeight()
+                || ip.getBitDepth() != firstFrame.getBitDepth())) {
+            throw new IOException(path + " is a " + ip.getWidth() + "x" + ip.getHeight() + " " + ip.getBitDepth()
+                    + "-bit image, but the first frame is " + firstFrame.getWidth() + "x" + firstFrame.getHeight()
+                    + " " + firstFrame.getBitDepth() + "-bit.");
+        }
+        return ip;
+    }
+
+    /**
+     * Search the given directory and the directories below for TIFF files (not hidden), in sorted order.
+     *
+     * @param dir The directory.
+     * @return List with the paths of the TIFF files.
+     * @throws IOException If the directory could not be read.
+     */
+    private List<String> searchDirectory(final Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir, Integer.MAX_VALUE)) {
+            return files.filter(filePath -> !filePath.toFile().isHidden()
+                    && filePath.toString().matches(".*\\.[Tt]+?[Ii]+?[Ff]+?[Ff]?"))
+                    .map(Path::toString)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Print how to use the batch runner.
+     */
+    private static void printUsage() {
+        System.err.println("Usage: PhotonBatchRunner [options] <input directory or TIFF stack> <output.tif>\n"
+                + "Options:\n"
+                + "  --tolerance <value>      noise tolerance (default 100)\n"
+                + "  --background <level>     only look for photons above this level (default 0: all pixels)\n"
+                + "  --method <name>          simple, accurate or subpixel (default simple)\n"
+                + "  --centroid <name>        wand, floodfill or weighted, for accurate and subpixel (default floodfill)\n"
+                + "  --no-preprocessing       do not despeckle the frames\n"
+                + "  --events <file>          also save all photons as binary event list\n"
+                + "  --stats <file>           save timing statistics as JSON (.json) or CSV file\n"
+                + "  --time-bins <frames>     also save a stack with a count image per bin of frames\n"
+                + "  --time-step <frames>     frames between the starts of two time bins (default: bin size)\n"
+                + "  --tolerance-sweep <list> also save a stack with a count image per tolerance, e.g. 50,100,200\n"
+                + "  --tile-size <pixels>     split frames into tiles processed on all cores, 0 for no tiles\n"
+                + "                           (default: 256 for frames of 1 megapixel, if fewer frames than threads)\n"
+                + "  --threads <number>       number of threads (default: number of cores)");
+    }
+
+    /**
+     * Main method, runs the batch runner without any ImageJ windows.
+     *
+     * @param args The command line arguments, see printUsage.
+     */
+    public static void main(final String[] args) {
+        // Make sure no AWT windows are created.
+        System.setProperty("java.awt.headless", "true");
+
+        PhotonBatchRunner runner = new PhotonBatchRunner();
+        try {
+            runner.parseArguments(args);
+            runner.run();
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            printUsage();
+            System.exit(2);
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
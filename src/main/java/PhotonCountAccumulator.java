@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+/**
+ * PhotonCountAccumulator
+ *
+ * This class can be used to count photons from multiple threads at the same time. Each thread that adds
+ * a photon gets its own count buffer, so threads never write to the same memory and no counts are lost.
+ * The buffers are only combined once, when all slices have been processed and the count matrix is requested.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class PhotonCountAccumulator {
+
+    /** Count matrices with at least this many pixels get their histogram calculated in parallel. */
+    private static final int PARALLEL_HISTOGRAM_PIXELS = 1 << 20;
+
+    /** The width of the count matrix. */
+    private final int width;
+    /** The height of the count matrix. */
+    private final int height;
+    /** All count buffers handed out so far, one for each thread that added photons. */
+    private final Queue<int[]> countBuffers;
+    /** The count buffer of the calling thread, stored column by column (x * height + y). */
+    private final ThreadLocal<int[]> localCounts;
+
+    /**
+     * Create a new PhotonCountAccumulator.
+     *
+     * @param width  The width of the count matrix.
+     * @param height The height of the count matrix.
+     */
+    public PhotonCountAccumulator(final int width, final int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Your count matrix size (" + width + "x" + height
+                    + ") should be at least 1x1!");
+        }
+
+        this.width = width;
+        this.height = height;
+        this.countBuffers = new ConcurrentLinkedQueue<>();
+        this.localCounts = ThreadLocal.withInitial(() -> {
+            int[] counts = new int[this.width * this.height];
+            this.countBuffers.add(counts);
+            return counts;
+        });
+    }
+
+    /**
+     * Add a photon to the count buffer of the calling thread.
+     *
+     * @param x The x coordinate in the count matrix.
+     * @param y The y coordinate in the count matrix.
+     */
+    public void addPhoton(final int x, final int y) {
+        this.localCounts.get()[x * this.height + y]++;
+    }
+
+    /**
+     * Merge the count buffers of all threads into a single count matrix. This should only be called when no
+     * thread is adding photons anymore. Columns are merged in parallel.
+     *
+     * @return int[][] The photon count matrix, indexed as [x][y].
+     */
+    public int[][] getCountMatrix() {
+        final int[][] countMatrix = new int[this.width][this.height];
+        final int[][] buffers = this.countBuffers.toArray(new int[0][]);
+
+        IntStream.range(0, this.width).parallel().forEach(x -> {
+            int[] column = countMatrix[x];
+            int offset = x * this.height;
+            for (int[] buffer : buffers) {
+                for (int y = 0; y < this.height; y++) {
+                    column[y] += buffer[offset + y];
+                }
+            }
+        });
+
+        return countMatrix;
+    }
+
+    /**
+     * Calculate the histogram of a count matrix in a single pass. Large matrices are split into column
+     * ranges that are counted in parallel, after which the partial histograms are added together.
+     *
+     * @param countMatrix The photon count matrix, indexed as [x][y].
+     * @return int[] The histogram, element i is the number of pixels with count i. The length is the
+     * highest count + 1.
+     */
+    public static int[] calculateHistogram(final int[][] countMatrix) {
+        int width = countMatrix.length;
+        int nChunks = 1;
+        if ((long) width * countMatrix[0].length >= PARALLEL_HISTOGRAM_PIXELS) {
+            nChunks = Math.min(width, Runtime.getRuntime().availableProcessors() * 4);
+        }
+        final int chunks = nChunks;
+
+        int[][] partialHistograms = IntStream.range(0, chunks).parallel()
+                .mapToObj(c -> calculateHistogram(countMatrix, c * width / chunks, (c + 1) * width / chunks))
+                .toArray(int[][]::new);
+
+        // Add the partial histograms to the longest one.
+        int[] histogram = partialHistograms[0];
+        for (int[] partialHistogram : partialHistograms) {
+            if (partialHistogram.length > histogram.length) {
+                histogram = partialHistogram;
+            }
+        }
+        for (int[] partialHistogram : partialHistograms) {
+            if (partialHistogram != histogram) {
+                for (int i = 0; i < partialHistogram.length; i++) {
+                    histogram[i] += partialHistogram[i];
+                }
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Calculate the histogram of a range of columns of a count matrix.
+     *
+     * @param countMatrix The photon count matrix, indexed as [x][y].
+     * @param xStart      The first column (inclusive).
+     * @param xEnd        The last column (exclusive).
+     * @return int[] The histogram of the columns, the length is the highest count + 1.
+     */
+    private static int[] calculateHistogram(final int[][] countMatrix, final int xStart, final int xEnd) {
+        int[] histogram = new int[16];
+        int maxCount = 0;
+
+        for (int x = xStart; x < xEnd; x++) {
+            for (int count : countMatrix[x]) {
+                if (count >= histogram.length) {
+                    histogram = Arrays.copyOf(histogram, Math.max(count + 1, histogram.length * 2));
+                }
+                if (count > maxCount) {
+                    maxCount = count;
+                }
+                histogram[count]++;
+            }
+        }
+
+        return Arrays.copyOf(histogram, maxCount + 1);
+    }
+
+    /**
+     * Get the width of the count matrix.
+     *
+     * @return int The width.
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Get the height of the count matrix.
+     *
+     * @return int The height.
+     */
+    public int getHeight() {
+        return this.height;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PhotonEventReader
+ *
+ * This class can be used to read an event list written by PhotonEventWriter. The file is memory mapped in
+ * large parts, and the photons are read one by one like a cursor: next() moves to the next photon, after
+ * which its values can be read with the getters. No objects are created per photon.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class PhotonEventReader implements Closeable {
+
+    /** The maximum number of records that are mapped at the same time. */
+    public static final int MAX_MAPPED_RECORDS = (1 << 30) / PhotonEventWriter.RECORD_SIZE;
+
+    /** The channel of the event list file. */
+    private final FileChannel channel;
+    /** The width of the frames. */
+    private final int width;
+    /** The height of the frames. */
+    private final int height;
+    /** The number of photons in the file. */
+    private final long eventCount;
+    /** The currently mapped part of the file. */
+    private MappedByteBuffer mapped;
+    /** The index of the first photon in the mapped part. */
+    private long mappedStart;
+    /** The index of the current photon, -1 before the first call of next(). */
+    private long index;
+    /** The frame number of the current photon. */
+    private int frame;
+    /** The x coordinate of the current photon. */
+    private float x;
+    /** The y coordinate of the current photon. */
+    private float y;
+    /** The peak intensity of the current photon. */
+    private float intensity;
+
+    /**
+     * Open an event list.
+     *
+     * @param path The path of the event list file.
+     * @throws IOException If the file could not be read or is not an event list.
+     */
+    public PhotonEventReader(final String path) throws IOException {
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(PhotonEventWriter.HEADER_SIZE)
+                    .order(PhotonEventWriter.BYTE_ORDER);
+            while (header.hasRemaining() && this.channel.read(header) >= 0) {
+                continue;
+            }
+            header.flip();
+            if (header.remaining() < PhotonEventWriter.HEADER_SIZE || header.getInt() != PhotonEventWriter.MAGIC) {
+                throw new IOException(path + " is not a photon event list.");
+            }
+            int version = header.getInt();
+            if (version != PhotonEventWriter.VERSION) {
+                throw new IOException("Unsupported photon event list version " + version + ".");
+            }
+            this.width = header.getInt();
+            this.height = header.getInt();
+            if (header.getInt() != PhotonEventWriter.RECORD_SIZE) {
+                throw new IOException(path + " has an unsupported record size.");
+            }
+            this.eventCount = (this.channel.size() - PhotonEventWriter.HEADER_SIZE) / PhotonEventWriter.RECORD_SIZE;
+        } catch (IOException ex) {
+            this.channel.close();
+            throw ex;
+        }
+        this.reset();
+    }
+
+    /**
+     * Move to the next photon.
+     *
+     * @return boolean False if there are no more photons.
+     * @throws IOException If the file could not be mapped.
+     */
+    public boolean next() throws IOException {
+        if (this.index + 1 >= this.eventCount) {
+            return false;
+        }
+        this.index++;
+
+        // Map the next part of the file when the current part has been read.
+        if (this.mapped == null || this.index - this.mappedStart >= MAX_MAPPED_RECORDS) {
+            this.mappedStart = this.index;
+            long records = Math.min(MAX_MAPPED_RECORDS, this.eventCount - this.index);
+            this.mapped = this.channel.map(FileChannel.MapMode.READ_ONLY,
+                    PhotonEventWriter.HEADER_SIZE + this.index * PhotonEventWriter.RECORD_SIZE,
+                    records * PhotonEventWriter.RECORD_SIZE);
+            this.mapped.order(PhotonEventWriter.BYTE_ORDER);
+        }
+
+        this.frame = this.mapped.getInt();
+        this.x = this.mapped.getFloat();
+        this.y = this.mapped.getFloat();
+        this.intensity = this.mapped.getFloat();
+        return true;
+    }
+
+    /**
+     * Map a range of records of the event list, independent of the cursor. The records can be read from the
+     * returned buffer with getInt() and getFloat() in the order frame, x, y, intensity. Can be used by
+     * multiple threads at the same time.
+     *
+     * @param first The index of the first record.
+     * @param count The number of records.
+     * @return ByteBuffer The read-only mapped records.
+     * @throws IOException If the records could not be mapped.
+     */
+    public ByteBuffer mapRecords(final long first, final int count) throws IOException {
+        if (first < 0 || count < 0 || first + count > this.eventCount || count > MAX_MAPPED_RECORDS) {
+            throw new IndexOutOfBoundsException("Your record range (" + first + ", " + count
+                    + ") should be within the event list!");
+        }
+        return this.channel.map(FileChannel.MapMode.READ_ONLY,
+                PhotonEventWriter.HEADER_SIZE + first * PhotonEventWriter.RECORD_SIZE,
+                (long) count * PhotonEventWriter.RECORD_SIZE).order(PhotonEventWriter.BYTE_ORDER);
+    }
+
+    /**
+     * Go back to the start of the event list, the next call of next() moves to the first photon.
+     */
+    public void reset() {
+        this.index = -1;
+        this.mapped = null;
+    }
+
+    /**
+     * Get the frame (slice) number of the current photon.
+     *
+     * @return int The frame number.
+     */
+    public int getFrame() {
+        return this.frame;
+    }
+
+    /**
+     * Get the x coordinate of the current photon.
+     *
+     * @return float The x coordinate.
+     */
+    public float getX() {
+        return this.x;
+    }
+
+    /**
+     * Get the y coordinate of the current photon.
+     *
+     * @return float The y coordinate.
+     */
+    public float getY() {
+        return this.y;
+    }
+
+    /**
+     * Get the peak intensity of the current photon.
+     *
+     * @return float The peak intensity.
+     */
+    public float getIntensity() {
+        return this.intensity;
+    }
+
+    /**
+     * Get the width of the frames the photons were found in.
+     *
+     * @return int The width.
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Get the height of the frames the photons were found in.
+     *
+     * @return int The height.
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Get the number of photons in the event list.
+     *
+     * @return long The number of photons.
+     */
+    public long getEventCount() {
+        return this.eventCount;
+    }
+
+    /**
+     * Close the event list.
+     *
+     * @throws IOException If the file could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        this.mapped = null;
+        this.channel.close();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PhotonEventWriter
+ *
+ * This class can be used to save every photon found by Photon_Image_Processor to a binary event list, so
+ * the photons can be rendered again later (at another resolution, or for part of the frames) without
+ * finding them again. Photons can be added by multiple threads at the same time. Each thread collects its
+ * photons in its own buffer, which is appended to the file when it is full, so the photons are not sorted
+ * by frame.
+ *
+ * The file starts with a header of HEADER_SIZE bytes (magic number, version, width and height of the
+ * frames, record size), followed by one record of RECORD_SIZE bytes per photon: the frame number (int),
+ * the x and y coordinate (float) and the peak intensity (float). All values are little endian, so the file
+ * can be memory mapped by PhotonEventReader.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class PhotonEventWriter implements Closeable {
+
+    /** The magic number at the start of each event list ('PHEV'). */
+    public static final int MAGIC = 0x50484556;
+    /** The version of the event list format. */
+    public static final int VERSION = 1;
+    /** The size of the header in bytes. */
+    public static final int HEADER_SIZE = 32;
+    /** The size of a photon record in bytes. */
+    public static final int RECORD_SIZE = 16;
+    /** The byte order of the event list. */
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    /** The number of records each thread buffers before writing them to the file. */
+    private static final int BUFFERED_RECORDS = 4096;
+
+    /** The channel of the event list file. */
+    private final FileChannel channel;
+    /** All buffers handed out so far, one for each thread that added photons. */
+    private final Queue<ByteBuffer> buffers;
+    /** The buffer of the calling thread. */
+    private final ThreadLocal<ByteBuffer> localBuffer;
+    /** The number of photons written to the file so far, counted per buffer so threads do not share it per photon. */
+    private final AtomicLong eventCount;
+
+    /**
+     * Create a new event list, an existing file is overwritten.
+     *
+     * @param path   The path of the event list file.
+     * @param width  The width of the frames.
+     * @param height The height of the frames.
+     * @throws IOException If the file could not be created.
+     */
+    public PhotonEventWriter(final String path, final int width, final int height) throws IOException {
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffers = new ConcurrentLinkedQueue<>();
+        this.eventCount = new AtomicLong();
+        this.localBuffer = ThreadLocal.withInitial(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFERED_RECORDS * RECORD_SIZE).order(BYTE_ORDER);
+            this.buffers.add(buffer);
+            return buffer;
+        });
+
+        // Write the header.
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(RECORD_SIZE);
+        header.rewind();
+        this.writeFully(header);
+    }
+
+    /**
+     * Add a photon to the event list.
+     *
+     * @param frame     The frame (slice) number the photon was found in.
+     * @param x         The x coordinate of the photon.
+     * @param y         The y coordinate of the photon.
+     * @param intensity The peak intensity of the photon.
+     */
+    public void addEvent(final int frame, final double x, final double y, final double intensity) {
+        ByteBuffer buffer = this.localBuffer.get();
+        buffer.putInt(frame).putFloat((float) x).putFloat((float) y).putFloat((float) intensity);
+        if (!buffer.hasRemaining()) {
+            try {
+                this.flush(buffer);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /**
+     * Write the records in a buffer to the file and clear it.
+     *
+     * @param buffer The buffer.
+     * @throws IOException If the records could not be written.
+     */
+    private void flush(final ByteBuffer buffer) throws IOException {
+        this.eventCount.addAndGet(buffer.position() / RECORD_SIZE);
+        buffer.flip();
+        this.writeFully(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Append all remaining bytes of a buffer to the file. Only one thread can write at the same time.
+     *
+     * @param buffer The buffer.
+     * @throws IOException If the bytes could not be written.
+     */
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        synchronized (this.channel) {
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Get the number of photons written to the file so far. Photons that are still in the buffer of a thread
+     * are not included until the buffer is full or the event list is closed.
+     *
+     * @return long The number of photons.
+     */
+    public long getEventCount() {
+        return this.eventCount.get();
+    }
+
+    /**
+     * Write the photons left in the buffers of all threads and close the file. Should only be called when
+     * no thread is adding photons anymore.
+     *
+     * @throws IOException If the photons could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (ByteBuffer buffer : this.buffers) {
+                this.flush(buffer);
+            }
+        } finally {
+            this.channel.close();
+        }
+    }
+}
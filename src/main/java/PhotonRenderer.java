@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
+
+/**
+ * PhotonRenderer
+ *
+ * This class can be used to render the photons of an event list (see PhotonEventWriter) to a photon count
+ * matrix of any magnification, for instance 2x, 4x, 8x or 3.5x the size of the original slices. Each exact
+ * photon coordinate is multiplied by the magnification and floored to a pixel of the count matrix.
+ *
+ * The event list is split into ranges of records that are counted in parallel with fork/join. A range takes a
+ * count buffer that no other range is using and returns it when it is done, so there are never more count
+ * buffers than threads. The buffers are only added together once, when all ranges have been counted.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class PhotonRenderer {
+
+    /** Ranges of the event list are not split any further below this number of records. */
+    private static final int MIN_RECORDS_PER_TASK = 1 << 18;
+
+    /** The magnification of the count matrix compared to the original slices. */
+    private final double magnification;
+    /** The width of the count matrix. */
+    private final int width;
+    /** The height of the count matrix. */
+    private final int height;
+
+    /**
+     * Create a new PhotonRenderer.
+     *
+     * @param sliceWidth    The width of the original slices.
+     * @param sliceHeight   The height of the original slices.
+     * @param magnification The magnification of the count matrix, larger than 0.
+     */
+    public PhotonRenderer(final int sliceWidth, final int sliceHeight, final double magnification) {
+        if (!(magnification > 0)) {
+            throw new IllegalArgumentException("Your magnification (" + magnification + ") should be larger than 0!");
+        }
+        long pixels = (long) Math.ceil(sliceWidth * magnification) * (long) Math.ceil(sliceHeight * magnification);
+        if (sliceWidth < 1 || sliceHeight < 1 || pixels > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Your count matrix size (" + sliceWidth + "x" + sliceHeight
+                    + " times " + magnification + ") should be at least 1x1 and fit in memory!");
+        }
+
+        this.magnification = magnification;
+        this.width = (int) Math.ceil(sliceWidth * magnification);
+        this.height = (int) Math.ceil(sliceHeight * magnification);
+    }
+
+    /**
+     * Render all photons of an event list that were found in the given range of slices.
+     *
+     * @param events     The event list.
+     * @param firstSlice The first slice to render (inclusive).
+     * @param lastSlice  The last slice to render (inclusive).
+     * @return int[][] The photon count matrix, indexed as [x][y].
+     * @throws IOException If the event list could not be read.
+     */
+    public int[][] render(final PhotonEventReader events, final int firstSlice, final int lastSlice)
+            throws IOException {
+        // Use a few ranges per core, so the number of count buffers stays small.
+        int parallelism = ForkJoinPool.commonPool().getParallelism();
+        long recordsPerTask = Math.max(MIN_RECORDS_PER_TASK, events.getEventCount() / (parallelism * 2L));
+        recordsPerTask = Math.min(recordsPerTask, PhotonEventReader.MAX_MAPPED_RECORDS);
+
+        Queue<int[]> countBuffers = new ConcurrentLinkedQueue<>();
+        try {
+            ForkJoinPool.commonPool().invoke(new RenderTask(events, 0, events.getEventCount(),
+                    (int) recordsPerTask, firstSlice, lastSlice, countBuffers));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+
+        // Merge the column by column count buffers into a count matrix, columns are merged in parallel.
+        final int[][] countMatrix = new int[this.width][this.height];
+        final int[][] buffers = countBuffers.toArray(new int[0][]);
+        IntStream.range(0, this.width).parallel().forEach(x -> {
+            int[] column = countMatrix[x];
+            int offset = x * this.height;
+            for (int[] buffer : buffers) {
+                for (int y = 0; y < this.height; y++) {
+                    column[y] += buffer[offset + y];
+                }
+            }
+        });
+        return countMatrix;
+    }
+
+    /**
+     * Add the photons in a range of records to a count buffer.
+     *
+     * @param records    The mapped records.
+     * @param counts     The count buffer, stored column by column (x * height + y).
+     * @param firstSlice The first slice to render (inclusive).
+     * @param lastSlice  The last slice to render (inclusive).
+     */
+    private void countRecords(final ByteBuffer records, final int[] counts, final int firstSlice,
+                              final int lastSlice) {
+        while (records.hasRemaining()) {
+            int slice = records.getInt();
+            float x = records.getFloat();
+            float y = records.getFloat();
+            records.getFloat(); // The intensity is not used.
+
+            if (slice >= firstSlice && slice <= lastSlice) {
+                // Photons on the right or bottom edge are added to the last column or row.
+                int xOut = Math.min(Math.max((int) (x * this.magnification), 0), this.width - 1);
+                int yOut = Math.min(Math.max((int) (y * this.magnification), 0), this.height - 1);
+                counts[xOut * this.height + yOut]++;
+            }
+        }
+    }
+
+    /**
+     * Get the width of the count matrix.
+     *
+     * @return int The width.
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Get the height of the count matrix.
+     *
+     * @return int The height.
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * RenderTask
+     *
+     * Counts the photons in a range of records. Large ranges are split in two halves that are counted in
+     * parallel. Small ranges take a free count buffer from the queue, or a new one if all buffers are in use,
+     * and put it back when they are done.
+     */
+    private final class RenderTask extends RecursiveAction {
+
+        /** The version of this class, RecursiveTask is Serializable. */
+        private static final long serialVersionUID = 1L;
+        /** The event list. */
+        private final PhotonEventReader events;
+        /** The index of the first record of the range. */
+        private final long first;
+        /** The index after the last record of the range. */
+        private final long end;
+        /** Ranges with at most this many records are not split. */
+        private final int recordsPerTask;
+        /** The first slice to render (inclusive). */
+        private final int firstSlice;
+        /** The last slice to render (inclusive). */
+        private final int lastSlice;
+        /** The count buffers that are not in use, stored column by column (x * height + y). */
+        private final Queue<int[]> countBuffers;
+
+        /**
+         * Create a new RenderTask.
+         *
+         * @param events         The event list.
+         * @param first          The index of the first record of the range.
+         * @param end            The index after the last record of the range.
+         * @param recordsPerTask Ranges with at most this many records are not split.
+         * @param firstSlice     The first slice to render (inclusive).
+         * @param lastSlice      The last slice to render (inclusive).
+         * @param countBuffers   The count buffers that are not in use.
+         */
+        RenderTask(final PhotonEventReader events, final long first, final long end, final int recordsPerTask,
+                   final int firstSlice, final int lastSlice, final Queue<int[]> countBuffers) {
+            this.events = events;
+            this.first = first;
+            this.end = end;
+            this.recordsPerTask = recordsPerTask;
+            this.firstSlice = firstSlice;
+            this.lastSlice = lastSlice;
+            this.countBuffers = countBuffers;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.first <= this.recordsPerTask) {
+                // A small range does not fork, so each thread uses at most one buffer at a time.
+                int[] counts = this.countBuffers.poll();
+                if (counts == null) {
+                    counts = new int[width * height];
+                }
+                try {
+                    countRecords(this.events.mapRecords(this.first, (int) (this.end - this.first)), counts,
+                            this.firstSlice, this.lastSlice);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                } finally {
+                    this.countBuffers.add(counts);
+                }
+                return;
+            }
+
+            long middle = this.first + (this.end - this.first) / 2;
+            invokeAll(new RenderTask(this.events, this.first, middle, this.recordsPerTask, this.firstSlice,
+                            this.lastSlice, this.countBuffers),
+                    new RenderTask(this.events, middle, this.end, this.recordsPerTask, this.firstSlice,
+                            this.lastSlice, this.countBuffers));
+        }
+    }
+}
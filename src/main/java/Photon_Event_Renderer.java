@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.IJ;
+import ij.ImageJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+import java.io.IOException;
+
+/**
+ * Photon_Event_Renderer
+ *
+ * This class can be used to render a photon event list, saved by 'Process Photon Images', to a photon count
+ * image of any magnification. The photons do not have to be found again, so different magnifications or
+ * ranges of slices can be tried quickly.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class Photon_Event_Renderer implements PlugIn {
+
+    /** The magnification of the output image, default is 4. */
+    private double magnification = 4;
+    /** The first slice to render, default is 1. */
+    private int firstSlice = 1;
+    /** The last slice to render, 0 renders all slices. */
+    private int lastSlice = 0;
+
+    /**
+     * Run method gets executed when the user selects this class via plug-ins in Fiji. Asks for the event
+     * list and the settings, renders the photons and shows the output image.
+     *
+     * @param arg String if about should be shown.
+     */
+    @Override
+    public void run(final String arg) {
+
+        // If arg is about, display help message and quit.
+        if (arg.equals("about")) {
+            this.showAbout();
+            return;
+        }
+
+        OpenDialog od = new OpenDialog("Open Photon Event List");
+        if (od.getFileName() == null) {
+            return;
+        }
+        if (!this.showDialog()) {
+            return;
+        }
+
+        try (PhotonEventReader events = new PhotonEventReader(od.getDirectory() + od.getFileName())) {
+            IJ.showStatus("Rendering " + events.getEventCount() + " photons...");
+            PhotonRenderer renderer = new PhotonRenderer(events.getWidth(), events.getHeight(), this.magnification);
+            int[][] countMatrix = renderer.render(events, this.firstSlice,
+                    this.lastSlice == 0 ? Integer.MAX_VALUE : this.lastSlice);
+
+            ImagePlus output = new ImagePlus("Photon Count Image " + this.magnification + "x",
+                    Photon_Image_Processor.createCountProcessor(countMatrix,
+                            PhotonCountAccumulator.calculateHistogram(countMatrix)));
+            output.show();
+            IJ.showStatus("");
+        } catch (IOException | IllegalArgumentException ex) {
+            IJ.error("Render Photon Events", ex.getMessage());
+        }
+    }
+
+    /**
+     * Show the dialog with the magnification and the range of slices.
+     *
+     * @return boolean False if the dialog was canceled or a field is not correct.
+     */
+    private boolean showDialog() {
+        GenericDialog gd = new GenericDialog("Render Photon Events");
+        gd.addNumericField("Magnification", this.magnification, 2);
+        gd.addNumericField("First slice", this.firstSlice, 0);
+        gd.addNumericField("Last slice (0 = all)", this.lastSlice, 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return false;
+        }
+
+        this.magnification = gd.getNextNumber();
+        this.firstSlice = (int) gd.getNextNumber();
+        this.lastSlice = (int) gd.getNextNumber();
+
+        return !gd.invalidNumber();
+    }
+
+    /**
+     * This method displays the about information of the plug-in.
+     */
+    public void showAbout() {
+        IJ.showMessage("About Render Photon Events", "<html>"
+                + "<h1>Render Photon Events</h1>"
+                + "<b>This option can be used to render a photon event list, saved by 'Process Photon Images', to a "
+                + "photon count image of any magnification.</b> The photons do not have to be found again, so "
+                + "different magnifications (for instance 2, 4, 8 or 3.5) or ranges of slices can be tried quickly. "
+                + "Use the 'Weighted centroid' when saving the event list to get the best results at high "
+                + "magnifications."
+                + "<br><br>"
+                + "<font size=-2>Created by Lonneke Scheffer and Wout van Helvoirt."
+        );
+    }
+
+    /**
+     * Main method for debugging.
+     *
+     * For debugging, it is convenient to have a method that starts ImageJ and calls the plug-in, e.g. after
+     * setting breakpoints. Main method will get executed when running this file from IDE.
+     *
+     * @param args unused.
+     */
+    public static void main(final String[] args) {
+        // set the plugins.dir property to make the plug-in appear in the Plugins menu
+        Class<?> clazz = Photon_Event_Renderer.class;
+        String url = clazz.getResource("/" + clazz.getName().replace('.', '/') + ".class").toString();
+        String pluginsDir = url.substring(5, url.length() - clazz.getName().length() - 6);
+        System.setProperty("plugins.dir", pluginsDir);
+
+        // start ImageJ
+        new ImageJ();
+
+        // run the plug-in
+        IJ.runPlugIn(clazz.getName(), "");
+    }
+}
@@ -17,13 +17,16 @@
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
 import ij.gui.ImageWindow;
 import ij.gui.PointRoi;
 import ij.gui.PolygonRoi;
 import ij.gui.ProgressBar;
 import ij.gui.Roi;
+import ij.gui.StackWindow;
 import ij.gui.Wand;
 import ij.plugin.filter.ExtendedPlugInFilter;
 import ij.plugin.filter.PlugInFilter;
@@ -35,8 +38,8 @@ import java.awt.AWTEvent;
 import java.awt.Label;
 import java.awt.Polygon;
 import java.awt.Rectangle;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Photon_Image_Processor
@@ -54,22 +57,78 @@ import java.util.List;
  */
 public final class Photon_Image_Processor implements ExtendedPlugInFilter, DialogListener {
 
+    /** The available methods for calculating the photon coordinates. */
+    public static final String[] METHODS = {"Simple", "Accurate", "Subpixel resolution"};
+    /** The available centroid calculations for the accurate methods. */
+    public static final String[] CENTROID_METHODS = {"Wand outline", "Flood fill", "Weighted centroid"};
+    /** The number of despeckled slices kept by the preview cache. */
+    private static final int PREVIEW_SLICES = 4;
+    /** The number of maxima results kept by the preview cache. */
+    private static final int PREVIEW_MAXIMA = 64;
+    /** The tile size used when the photons of a frame are found on all cores. */
+    public static final int TILE_SIZE = 256;
+    /** The halo width of the tiles, the tiles are analyzed again with a larger halo if needed. */
+    private static final int TILE_HALO = 16;
+    /** Frames with fewer pixels are not split into tiles automatically. */
+    private static final int TILED_MIN_PIXELS = 1024 * 1024;
+
     /** The ImagePlus given by the user. */
     protected ImagePlus image;
-    /** A matrix for counting photons. */
+    /** The accumulator used by all threads for counting photons. */
+    private PhotonCountAccumulator photonCounts;
+    /** A matrix with the merged photon counts, available after processing has finished. */
     private int[][] photonCountMatrix;
-    /** The 'silent' version of MaximumFinder, used to find photons. */
-    private SilentMaximumFinder maxFind;
+    /** The histogram of the photon count matrix, element i is the number of pixels with i photons. */
+    private int[] countHistogram;
+    /** The 'silent' version of MaximumFinder, used to find photons. Each thread gets its own instance. */
+    private ThreadLocal<SilentMaximumFinder> maxFind;
+    /** The tiled maximum finder of each thread, or null if the frames are not split into tiles. */
+    private ThreadLocal<TiledMaximumFinder> tiledFind;
+    /** The maxima found in the current slice, the arrays are reused for the next slice. Each thread gets its own. */
+    private final ThreadLocal<Polygon> maximaBuffer = ThreadLocal.withInitial(() -> new Polygon(new int[256],
+            new int[256], 0));
+    /** The flood fill centroid calculator, used to find the photon centers. Each thread gets its own instance. */
+    private ThreadLocal<CentroidCalculator> centroidCalc;
+    /** The accumulator for the time bins, or null if no time bins are made. */
+    private TimeBinAccumulator timeBins;
+    /** The maxima recorded for the tolerance sweep, or null if no tolerance sweep is made. */
+    private ToleranceSweep toleranceSweep;
+    /** The despeckled copy of the current slice, the slice itself is not modified. Each thread gets its own. */
+    private final ThreadLocal<ImageProcessor> frameBuffer = new ThreadLocal<>();
+    /** The exact coordinates of the photons in the current slice (x0, y0, x1, y1, ...). Each thread gets its own. */
+    private final ThreadLocal<double[]> coordinateBuffer = ThreadLocal.withInitial(() -> new double[256]);
+    /** The timing statistics, or null if no statistics are collected. */
+    private ProcessingStats stats;
+    /** The event list all found photons are written to, or null if no event list is saved. */
+    private PhotonEventWriter eventWriter;
+    /** The PlugInFilterRunner, used to get the slice number of the calling thread. */
+    private PlugInFilterRunner pfr;
     /*** The ProgressBar. */
     private ProgressBar pb;
     /** This boolean tells whether the 'previewing' window is open. */
     private boolean previewing = false;
+    /** The despeckled slices and maxima of earlier previews, only while the dialog is open. */
+    private PreviewCache previewCache;
     /** Noise tolerance, default is 100. */
     private double tolerance = 100;
+    /** Pixels at or below this level are skipped when finding photons, 0 to analyze all pixels. */
+    private double backgroundLevel = 0;
     /** This boolean tells whether the user wants to perform preprocessing. */
     private boolean preprocessing = true;
     /** The output method (simple/accurate/sub-pixel resolution) is set to simple. */
     private String method = "Simple";
+    /** The centroid calculation (Wand outline/flood fill) used by the accurate methods, default is Wand outline. */
+    private String centroidMethod = "Wand outline";
+    /** This boolean tells whether the user wants to save the found photons as event list. */
+    private boolean saveEvents = false;
+    /** This boolean tells whether the user wants to log the timing statistics. */
+    private boolean logStats = false;
+    /** The number of frames in each time bin, 0 if no time bins are made. */
+    private int binFrames = 0;
+    /** The number of frames between the first frames of two time bins, 0 for bins that do not overlap. */
+    private int binStep = 0;
+    /** The noise tolerances of the tolerance sweep as entered by the user, empty if no sweep is made. */
+    private String sweepText = "";
     /** This label is used to show the number of maxima found. */
     private Label messageArea;
     /** The number of passes for the progress bar, default is 0. */
@@ -82,6 +141,7 @@ public final class Photon_Image_Processor implements ExtendedPlugInFilter, Dialo
             | PlugInFilter.DOES_16
             | PlugInFilter.PARALLELIZE_STACKS
             | PlugInFilter.STACK_REQUIRED
+            | PlugInFilter.NO_CHANGES
             | PlugInFilter.FINAL_PROCESSING;
 
     /**
@@ -102,14 +162,42 @@ public final class Photon_Image_Processor implements ExtendedPlugInFilter, Dialo
             this.showAbout();
             return PlugInFilter.DONE;
         } else if (arg.equals("final")) {
-            this.createOutputImage();
+            // Log where the time went, if requested.
+            if (this.stats != null) {
+                this.stats.finish();
+                this.stats.log();
+            }
+
+            // Write the remaining photons to the event list, if there is one.
+            try {
+                this.closeEventList();
+            } catch (IOException ex) {
+                IJ.error("Process Photon Images", "Could not save the photon event list: " + ex.getMessage());
+            }
+
+            // Make new image window in ImageJ and set the window visible.
+            ImageWindow outputWindow = new ImageWindow(this.getOutputImage());
+            outputWindow.setVisible(true);
+
+            // Also show the time bins, if there are any.
+            if (this.timeBins != null) {
+                StackWindow binWindow = new StackWindow(this.getTimeBinImage());
+                binWindow.setVisible(true);
+            }
+
+            // And the count images of the tolerance sweep.
+            if (this.toleranceSweep != null) {
+                StackWindow sweepWindow = new StackWindow(this.getToleranceSweepImage());
+                sweepWindow.setVisible(true);
+            }
             return PlugInFilter.DONE;
         }
 
         // Check if image open, else quit.
         if (imp != null) {
             this.image = imp;
-            this.maxFind = new SilentMaximumFinder();
+            this.maxFind = ThreadLocal.withInitial(SilentMaximumFinder::new);
+            this.centroidCalc = ThreadLocal.withInitial(CentroidCalculator::new);
             this.setNPasses(this.image.getStackSize());
             this.pb = new ProgressBar(this.image.getCanvas().getWidth(), this.image.getCanvas().getHeight());
         }
@@ -118,6 +206,174 @@ public final class Photon_Image_Processor implements ExtendedPlugInFilter, Dialo
         return this.flags;
     }
 
+    /**
+     * Setup method for processing without ImageJ windows, dialog or progress bar, used by PhotonBatchRunner.
+     *
+     * After this setup, run can be called for each slice from multiple threads at the same time. When all
+     * slices have been processed, getOutputImage returns the result.
+     *
+     * @param width          The width of the slices.
+     * @param height         The height of the slices.
+     * @param tolerance      The noise tolerance.
+     * @param method         One of METHODS.
+     * @param centroidMethod One of CENTROID_METHODS.
+     * @param preprocessing  Whether the slices should be despeckled first.
+     */
+    public void setupHeadless(final int width, final int height, final double tolerance, final String method,
+                              final String centroidMethod, final boolean preprocessing) {
+        if (!Arrays.asList(METHODS).contains(method)) {
+            throw new IllegalArgumentException("Unknown method '" + method + "', use one of "
+                    + Arrays.toString(METHODS) + ".");
+        }
+        if (!Arrays.asList(CENTROID_METHODS).contains(centroidMethod)) {
+            throw new IllegalArgumentException("Unknown centroid method '" + centroidMethod + "', use one of "
+                    + Arrays.toString(CENTROID_METHODS) + ".");
+        }
+
+        this.maxFind = ThreadLocal.withInitial(SilentMaximumFinder::new);
+        this.centroidCalc = ThreadLocal.withInitial(CentroidCalculator::new);
+        this.tolerance = Math.max(tolerance, 0);
+        this.method = method;
+        this.centroidMethod = centroidMethod;
+        this.preprocessing = preprocessing;
+        this.createPhotonCounts(width, height);
+    }
+
+    /**
+     * Also count the photons per time bin, resulting in a stack with one photon count image per bin (see
+     * TimeBinAccumulator). Should be called after the setup, before any slice is processed.
+     *
+     * @param nFrames   The number of slices that will be processed.
+     * @param binFrames The number of slices in each time bin.
+     * @param binStep   The number of slices between the first slices of two bins, 0 for bins that do not
+     *                  overlap.
+     */
+    public void setupTimeBins(final int nFrames, final int binFrames, final int binStep) {
+        this.timeBins = new TimeBinAccumulator(this.photonCounts.getWidth(), this.photonCounts.getHeight(),
+                nFrames, binFrames, binStep > 0 ? binStep : binFrames);
+    }
+
+    /**
+     * Also make photon count images for a number of noise tolerances (see ToleranceSweep). Every maximum is
+     * recorded once with its prominence, so the count images for all tolerances are made without finding the
+     * photons again. The photons are counted at the same pixels as with the 'Simple' method. Should be called
+     * after the setup, before any slice is processed.
+     *
+     * @param width      The width of the slices.
+     * @param height     The height of the slices.
+     * @param tolerances The noise tolerances.
+     */
+    public void setupToleranceSweep(final int width, final int height, final double... tolerances) {
+        this.toleranceSweep = new ToleranceSweep(width, height, tolerances);
+    }
+
+    /**
+     * Parse a list of noise tolerances separated by commas or spaces, as used by the dialog and
+     * PhotonBatchRunner.
+     *
+     * @param text The noise tolerances, for instance "50,100,200".
+     * @return double[] The noise tolerances, empty if the text is empty.
+     * @throws NumberFormatException If one of the tolerances is not a number.
+     */
+    public static double[] parseTolerances(final String text) {
+        String trimmed = text.trim();
+        if (trimmed.isEmpty()) {
+            return new double[0];
+        }
+        String[] parts = trimmed.split("[,\\s]+");
+        double[] tolerances = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            tolerances[i] = Double.parseDouble(parts[i]);
+        }
+        return tolerances;
+    }
+
+    /**
+     * Only look for photons above a background level (see SilentMaximumFinder.getMaximaSparse). This is a lot
+     * faster for frames that are mostly background, and finds the same photons as long as their peaks are above
+     * the background level.
+     *
+     * @param backgroundLevel Pixels at or below this level are skipped, 0 to analyze all pixels.
+     */
+    public void setupSparseDetection(final double backgroundLevel) {
+        this.backgroundLevel = Math.max(backgroundLevel, 0);
+    }
+
+    /**
+     * Find the photons of each frame on all cores, by splitting the frame into tiles (see TiledMaximumFinder).
+     * This gives the same photons, and is faster when there are fewer frames than cores to process in parallel.
+     *
+     * @param tileSize The width and height of the tiles, 0 to find the photons of a frame on one core.
+     */
+    public void setupTiledDetection(final int tileSize) {
+        if (tileSize > 0) {
+            this.tiledFind = ThreadLocal.withInitial(() -> new TiledMaximumFinder(tileSize, TILE_HALO));
+        } else {
+            this.tiledFind = null;
+        }
+    }
+
+    /**
+     * Get the tile size that is used when it is not given: frames are only split into tiles when they are large
+     * and there are not enough frames to keep all threads busy.
+     *
+     * @param width    The width of the frames.
+     * @param height   The height of the frames.
+     * @param nFrames  The number of frames.
+     * @param nThreads The number of threads processing frames.
+     * @return int TILE_SIZE, or 0 if the frames should not be split into tiles.
+     */
+    public static int getAutoTileSize(final int width, final int height, final int nFrames, final int nThreads) {
+        if ((long) width * height >= TILED_MIN_PIXELS && nFrames < nThreads) {
+            return TILE_SIZE;
+        }
+        return 0;
+    }
+
+    /**
+     * Collect timing statistics for all slices processed from now on (see ProcessingStats).
+     */
+    public void setupStats() {
+        this.stats = new ProcessingStats();
+    }
+
+    /**
+     * Get the timing statistics.
+     *
+     * @return ProcessingStats The statistics, or null if no statistics are collected.
+     */
+    public ProcessingStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * Save all photons found from now on to a binary event list (see PhotonEventWriter). Each photon is saved
+     * with its slice number, its exact coordinates and its peak intensity. For the 'Simple' method the
+     * center of the brightest pixel is saved. The event list is completed by closeEventList.
+     *
+     * @param path   The path of the event list file.
+     * @param width  The width of the slices.
+     * @param height The height of the slices.
+     * @throws IOException If the event list could not be created.
+     */
+    public void setupEventList(final String path, final int width, final int height) throws IOException {
+        this.eventWriter = new PhotonEventWriter(path, width, height);
+    }
+
+    /**
+     * Write the remaining photons to the event list and close it. Should only be called when all slices
+     * have been processed. Does nothing if no event list is saved.
+     *
+     * @throws IOException If the photons could not be written.
+     */
+    public void closeEventList() throws IOException {
+        if (this.eventWriter != null) {
+            PhotonEventWriter writer = this.eventWriter;
+            this.eventWriter = null;
+            writer.close();
+        }
+    }
+
     /**
      * The showDialog method will be run after the setup and creates the dialog window and shows it.
      *
@@ -135,16 +391,26 @@ public final class Photon_Image_Processor implements ExtendedPlugInFilter, Dialo
 
         // Add fields to dialog.
         gd.addNumericField("Noise tolerance", this.tolerance, 0);
-        gd.addChoice("Method", new String[]{"Simple", "Accurate", "Subpixel resolution"}, "Simple");
+        gd.addNumericField("Background level (0 = off)", this.backgroundLevel, 0);
+        gd.addChoice("Method", METHODS, "Simple");
+        gd.addChoice("Centroid", CENTROID_METHODS, this.centroidMethod);
         gd.addCheckbox("Automatic preprocessing", true);
+        gd.addCheckbox("Save photon event list", false);
+        gd.addCheckbox("Log timing statistics", false);
+        gd.addNumericField("Time bin frames (0 = off)", this.binFrames, 0);
+        gd.addNumericField("Time bin step (0 = no overlap)", this.binStep, 0);
+        gd.addStringField("Tolerance sweep (e.g. 50,100,200)", this.sweepText, 15);
         gd.addPreviewCheckbox(pfr, "Enable preview...");
         gd.addMessage("    "); //space for number of maxima
         this.messageArea = (Label) gd.getMessage();
         gd.addDialogListener(this);
 
-        // Set previewing true and show the dialog.
+        // Set previewing true and show the dialog, the preview shows a single slice so it can use all cores.
+        this.setupTiledDetection(getAutoTileSize(imp.getWidth(), imp.getHeight(), 1, Prefs.getThreads()));
+        this.previewCache = new PreviewCache(PREVIEW_SLICES, PREVIEW_MAXIMA);
         this.previewing = true;
         gd.showDialog();
+        this.previewCache = null;
         if (gd.wasCanceled()) {
             return PlugInFilter.DONE;
         }
@@ -155,14 +421,50 @@ public final class Photon_Image_Processor implements ExtendedPlugInFilter, Dialo
             return PlugInFilter.DONE;
         }
 
+        this.createPhotonCounts(imp.getWidth(), imp.getHeight());
+        this.pfr = pfr;
+        this.setupTiledDetection(getAutoTileSize(imp.getWidth(), imp.getHeight(), imp.getStackSize(),
+                Prefs.getThreads()));
+        if (this.binFrames > 0) {
+            this.setupTimeBins(imp.getStackSize(), this.binFrames, this.binStep);
+        }
+        if (!this.sweepText.trim().isEmpty()) {
+            this.setupToleranceSweep(imp.getWidth(), imp.getHeight(), parseTolerances(this.sweepText));
+        }
+        if (this.logStats) {
+            this.setupStats();
+        }
+
+        // Ask where the event list should be saved.
+        if (this.saveEvents) {
+            SaveDialog sd = new SaveDialog("Save Photon Event List", imp.getShortTitle() + "_events", ".phev");
+            if (sd.getFileName() == null) {
+                return PlugInFilter.DONE;
+            }
+            try {
+                this.setupEventList(sd.getDirectory() + sd.getFileName(), imp.getWidth(), imp.getHeight());
+            } catch (IOException ex) {
+                IJ.error("Process Photon Images", "Could not create the photon event list: " + ex.getMessage());
+                return PlugInFilter.DONE;
+            }
+        }
+
+        return this.flags;
+    }
+
+    /**
+     * Create the photon count accumulator for slices of the given size and the selected method.
+     *
+     * @param width  The width of the slices.
+     * @param height The height of the slices.
+     */
+    private void createPhotonCounts(final int width, final int height) {
         // If subpixel resolution selected, make matrix twice the size.
         if (this.method.equals("Subpixel resolution")) {
-            this.photonCountMatrix = new int[imp.getWidth() * 2][imp.getHeight() * 2];
+            this.photonCounts = new PhotonCountAccumulator(width * 2, height * 2);
         } else {
-            this.photonCountMatrix = new int[imp.getWidth()][imp.getHeight()];
+            this.photonCounts = new PhotonCountAccumulator(width, height);
         }
-
-        return this.flags;
     }
 
     /**
@@ -174,17 +476,50 @@ public final class Photon_Image_Processor implements ExtendedPlugInFilter, Dialo
      */
     @Override
     public boolean dialogItemChanged(final GenericDialog gd, final AWTEvent e) {
+        // A preview that is still running for the old parameters should not show its result.
+        PreviewCache cache = this.previewCache;
+        if (cache != null) {
+            cache.nextGeneration();
+        }
+
         this.tolerance = gd.getNextNumber();
+        this.backgroundLevel = gd.getNextNumber();
         this.method = gd.getNextChoice();
+        this.centroidMethod = gd.getNextChoice();
         this.preprocessing = gd.getNextBoolean();
+        this.saveEvents = gd.getNextBoolean();
+        this.logStats = gd.getNextBoolean();
+        this.binFrames = (int) gd.getNextNumber();
+        this.binStep = (int) gd.getNextNumber();
+        this.sweepText = gd.getNextString();
 
         if (this.tolerance < 0) {
             this.tolerance = 0;
         }
+        if (this.backgroundLevel < 0) {
+            this.backgroundLevel = 0;
+        }
+        if (this.binFrames < 0) {
+            this.binFrames = 0;
+        }
+        if (this.binStep < 0) {
+            this.binStep = 0;
+        }
         if (!gd.isPreviewActive()) {
             this.messageArea.setText("");
         }
 
+        // The tolerance sweep should only contain numbers of at least 0.
+        try {
+            for (double sweepTolerance : parseTolerances(this.sweepText)) {
+                if (sweepTolerance < 0) {
+                    return false;
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+
         return (!gd.invalidNumber());
     }
 
@@ -211,130 +546,345 @@ public final class Photon_Image_Processor implements ExtendedPlugInFilter, Dialo
         this.cPass++;
         IJ.showStatus("Processing...");
 
-        Polygon rawCoordinates;
+        // The preview is shown with the results of earlier previews where possible.
+        if (this.previewing) {
+            this.runPreview(ip);
+        } else {
+            this.processSlice(ip);
+        }
+
+        // Update the progressbar, if there is one.
+        if (this.pb != null) {
+            this.pb.show(this.cPass, this.nPasses);
+        }
+    }
+
+    /**
+     * Process a slice: find the photons, calculate their exact coordinates and add them to the outputs.
+     *
+     * @param ip Image processor of the slice.
+     */
+    private void processSlice(final ImageProcessor ip) {
+        // The slice number is only known by the PlugInFilterRunner when it processes slices in parallel.
+        int slice = this.pfr != null ? this.pfr.getSliceNumber() : ip.getSliceNumber();
+        long startTime = this.stats != null ? this.stats.startFrame() : 0;
 
-        // Preprocess the current slice.
+        // Preprocess a copy of the current slice. If possible, the slice is despeckled while finding the photons,
+        // then the time the finder spent despeckling is moved from finding the photons to preprocessing.
+        ImageProcessor frame = ip;
+        ImageProcessor despeckleSource = null;
         if (this.preprocessing) {
-            this.preprocessImage(ip);
+            frame = this.getFrameBuffer(ip);
+            if (this.canDespeckleWhileFinding(ip, this.backgroundLevel)) {
+                despeckleSource = ip;
+            } else {
+                this.preprocessImage(ip, frame);
+            }
         }
+        long preprocessedTime = this.stats != null ? System.nanoTime() : 0;
 
         // Find the photon coordinates.
-        rawCoordinates = this.findPhotons(ip);
+        Polygon rawCoordinates = this.findPhotons(frame, despeckleSource, this.tolerance, this.backgroundLevel);
+        long foundTime = this.stats != null ? System.nanoTime() : 0;
+        long despeckleTime = this.stats != null && despeckleSource != null
+                ? this.maxFind.get().getLastDespeckleNanos() : 0;
 
-        // If previewing enabled, show found maxima's on slice.
-        if (this.previewing) {
-            this.runPreview(rawCoordinates);
-        } else if (this.method.equals("Simple")) {
-            this.processPhotonsSimple(rawCoordinates);
-        } else if (this.method.equals("Accurate")) {
-            processPhotonsAccurate(ip, rawCoordinates);
-        } else { // this.method equals "Subpixel resolution"
-            processPhotonsSubPixel(ip, rawCoordinates);
+        // Calculate the exact coordinates of all photons, and add them to the outputs.
+        double[] exactCoordinates = this.calculatePhotonCoordinates(frame, rawCoordinates);
+        long centroidTime = this.stats != null ? System.nanoTime() : 0;
+        this.countPhotons(frame, rawCoordinates, exactCoordinates, slice);
+        long countedTime = this.stats != null ? System.nanoTime() : 0;
+
+        // Record the maxima for the tolerance sweep, which is timed as a stage of its own.
+        if (this.toleranceSweep != null) {
+            this.toleranceSweep.addFrame(this.maxFind.get(), frame);
         }
 
-        // Update the progressbar.
-        this.pb.show(this.cPass, this.nPasses);
+        if (this.stats != null) {
+            this.stats.addFrame(rawCoordinates.npoints, preprocessedTime - startTime + despeckleTime,
+                    foundTime - preprocessedTime - despeckleTime, centroidTime - foundTime, countedTime - centroidTime,
+                    System.nanoTime() - countedTime);
+        }
     }
 
     /**
      * This method is called while previewing, it shows the found coordinates with the current settings.
      *
-     * @param rawCoordinates A polygon containing the coordinates as found by MaximumFinder.
+     * The despeckled slice and the maxima are taken from the preview cache if they were computed before, so
+     * only the parts that depend on a changed parameter are computed again. When the parameters change while
+     * computing, the PlugInFilterRunner interrupts this thread; the computation then stops and nothing is
+     * cached or shown.
+     *
+     * @param ip Image processor of the current slice.
      */
-    private void runPreview(final Polygon rawCoordinates) {
+    private void runPreview(final ImageProcessor ip) {
+        PreviewCache cache = this.previewCache;
+        long generation = cache.getGeneration();
+        int slice = this.image.getCurrentSlice();
+        boolean despeckle = this.preprocessing;
+        double previewTolerance = this.tolerance;
+        double previewBackground = this.backgroundLevel;
+
+        // Find the maxima, unless they were found with the same parameters before.
+        Polygon rawCoordinates = cache.getMaxima(slice, despeckle, previewTolerance, previewBackground);
+        if (rawCoordinates == null) {
+            // Despeckle a copy of the slice, or copy the despeckled pixels of an earlier preview.
+            ImageProcessor frame = ip;
+            ImageProcessor despeckleSource = null;
+            if (despeckle) {
+                frame = this.getFrameBuffer(ip);
+                Object despeckled = cache.getPreprocessed(slice);
+                if (despeckled != null) {
+                    System.arraycopy(despeckled, 0, frame.getPixels(), 0, ip.getPixelCount());
+                } else if (this.canDespeckleWhileFinding(ip, previewBackground)) {
+                    despeckleSource = ip;
+                } else {
+                    this.preprocessImage(ip, frame);
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    cache.putPreprocessed(slice, frame.getPixels());
+                }
+            }
+
+            Polygon found = this.findPhotons(frame, despeckleSource, previewTolerance, previewBackground);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (despeckleSource != null) {
+                cache.putPreprocessed(slice, frame.getPixels());
+            }
+            rawCoordinates = cache.putMaxima(slice, despeckle, previewTolerance, previewBackground, found);
+        }
+
+        // Only show the result if the parameters have not changed in the meantime.
+        if (!cache.isCurrent(generation)) {
+            return;
+        }
+
         // Save the coordinates in a ROI, set the ROI and change the message area.
         PointRoi p = new PointRoi(rawCoordinates.xpoints, rawCoordinates.ypoints, rawCoordinates.npoints);
         this.image.setRoi(p);
-        this.messageArea.setText((rawCoordinates.xpoints == null ? 0 : rawCoordinates.npoints) + " photons found");
+        this.messageArea.setText(rawCoordinates.npoints + " photons found");
     }
 
     /**
-     * This method is called when processing photons using the 'simple' method.
-     * All photons are added to the photon count matrix, without altering.
+     * Calculate the exact coordinates of all photons in the current slice. The 'simple' method uses the
+     * centers of the raw coordinates, the 'accurate' and 'subpixel resolution' methods use the selected
+     * centroid method.
      *
+     * @param ip             The ImageProcessor of the current image slice.
      * @param rawCoordinates A polygon containing the coordinates as found by MaximumFinder.
+     * @return double[] The exact coordinates (x0, y0, x1, y1, ...), the buffer of the calling thread.
      */
-    private void processPhotonsSimple(final Polygon rawCoordinates) {
-        // Loop through all raw coordinates and add them to the count matrix.
+    private double[] calculatePhotonCoordinates(final ImageProcessor ip, final Polygon rawCoordinates) {
+        double[] exactCoordinates = this.coordinateBuffer.get();
+        if (exactCoordinates.length < rawCoordinates.npoints * 2) {
+            exactCoordinates = new double[rawCoordinates.npoints * 2];
+            this.coordinateBuffer.set(exactCoordinates);
+        }
+
         for (int i = 0; i < rawCoordinates.npoints; i++) {
-            this.photonCountMatrix[rawCoordinates.xpoints[i]][rawCoordinates.ypoints[i]]++;
+            if (this.method.equals("Simple")) {
+                exactCoordinates[i * 2] = rawCoordinates.xpoints[i] + 0.5;
+                exactCoordinates[i * 2 + 1] = rawCoordinates.ypoints[i] + 0.5;
+            } else {
+                this.calculateExactCoordinates(rawCoordinates.xpoints[i], rawCoordinates.ypoints[i], ip,
+                        exactCoordinates, i * 2);
+            }
         }
+
+        return exactCoordinates;
     }
 
     /**
-     * This method is called when processing photons using the 'accurate' method. The exact
-     * coordinates are calculated, and then floored and added to the count matrix.
+     * Add all photons in the current slice to the photon count matrix, time bins and event list. The exact
+     * coordinates are floored, for the 'subpixel resolution' method after multiplying them by two.
      *
-     * @param ip             The ImageProcessor of the current image slice.
-     * @param rawCoordinates A polygon containing the coordinates as found by MaximumFinder.
+     * @param ip               The ImageProcessor of the current image slice.
+     * @param rawCoordinates   A polygon containing the coordinates as found by MaximumFinder.
+     * @param exactCoordinates The exact coordinates (x0, y0, x1, y1, ...).
+     * @param slice            The number of the current image slice.
      */
-    private void processPhotonsAccurate(final ImageProcessor ip, final Polygon rawCoordinates) {
+    private void countPhotons(final ImageProcessor ip, final Polygon rawCoordinates,
+                              final double[] exactCoordinates, final int slice) {
+        int scale = this.method.equals("Subpixel resolution") ? 2 : 1;
+
         for (int i = 0; i < rawCoordinates.npoints; i++) {
-            // Loop through all raw coordinates, calculate the exact coordinates,
-            // floor the coordinates, and add them to the count matrix.
-            double[] exactCoordinates = this.calculateExactCoordinates(rawCoordinates.xpoints[i],
-                    rawCoordinates.ypoints[i], ip);
-            this.photonCountMatrix[(int) exactCoordinates[0]][(int) exactCoordinates[1]]++;
+            double x = exactCoordinates[i * 2];
+            double y = exactCoordinates[i * 2 + 1];
+            this.countPhoton((int) (x * scale), (int) (y * scale));
+            this.addEvent(ip, slice, rawCoordinates.xpoints[i], rawCoordinates.ypoints[i], x, y);
+        }
+
+        // Add the photons of this slice to its time bins.
+        if (this.timeBins != null) {
+            this.timeBins.finishFrame(slice);
         }
     }
 
     /**
-     * This method is called when processing photons using the 'subpixel resolution' method.
-     * The exact coordinates are calculated, and then multiplied by two and added to the count matrix.
+     * Add a photon to the photon count matrix, and to the time bins of the current slice if there are any.
      *
-     * @param ip             The ImageProcessor of the current image slice.
-     * @param rawCoordinates A polygon containing the coordinates as found by MaximumFinder.
+     * @param x The x coordinate in the count matrix.
+     * @param y The y coordinate in the count matrix.
      */
-    private void processPhotonsSubPixel(final ImageProcessor ip, final Polygon rawCoordinates) {
-        for (int i = 0; i < rawCoordinates.npoints; i++) {
-            // Loop through all raw coordinates, calculate the exact coordinates,
-            // double the coordinates, and add them to the count matrix.
-            double[] exactCoordinates = this.calculateExactCoordinates(rawCoordinates.xpoints[i],
-                    rawCoordinates.ypoints[i],
-                    ip);
-            this.photonCountMatrix[(int) (exactCoordinates[0] * 2)][(int) (exactCoordinates[1] * 2)]++;
+    private void countPhoton(final int x, final int y) {
+        this.photonCounts.addPhoton(x, y);
+        if (this.timeBins != null) {
+            this.timeBins.addPhoton(x, y);
+        }
+    }
+
+    /**
+     * Add a photon to the event list, if an event list is saved.
+     *
+     * @param ip     The ImageProcessor of the current image slice.
+     * @param slice  The number of the current image slice.
+     * @param xCor   Original x coordinate as found by MaximumFinder, used for the peak intensity.
+     * @param yCor   Original y coordinate as found by MaximumFinder, used for the peak intensity.
+     * @param xExact The exact x coordinate of the photon.
+     * @param yExact The exact y coordinate of the photon.
+     */
+    private void addEvent(final ImageProcessor ip, final int slice, final int xCor, final int yCor,
+                          final double xExact, final double yExact) {
+        if (this.eventWriter != null) {
+            this.eventWriter.addEvent(slice, xExact, yExact, ip.getPixelValue(xCor, yCor));
+        }
+    }
+
+    /**
+     * Get the frame buffer of the calling thread, with the size, type, calibration and ROI of a slice.
+     *
+     * @param ip Image processor of the slice.
+     * @return ImageProcessor The frame buffer, its pixels are not set.
+     */
+    private ImageProcessor getFrameBuffer(final ImageProcessor ip) {
+        ImageProcessor frame = this.frameBuffer.get();
+        if (frame == null || frame.getClass() != ip.getClass() || frame.getWidth() != ip.getWidth()
+                || frame.getHeight() != ip.getHeight()) {
+            frame = ip.createProcessor(ip.getWidth(), ip.getHeight());
+            this.frameBuffer.set(frame);
         }
+        frame.setCalibrationTable(ip.getCalibrationTable());
+        frame.setRoi(ip.getRoi());
+        frame.setMask(ip.getMask());
+        return frame;
+    }
+
+    /**
+     * Check whether a slice can be despeckled while finding its photons (see
+     * SilentMaximumFinder.getMaximaDespeckled). This is not possible for tiled or sparse detection, calibrated
+     * slices and slices with a ROI.
+     *
+     * @param ip         Image processor of the slice.
+     * @param background The background level of the sparse detection, 0 if all pixels are analyzed.
+     * @return boolean true if the slice can be despeckled while finding its photons.
+     */
+    private boolean canDespeckleWhileFinding(final ImageProcessor ip, final double background) {
+        return this.tiledFind == null && background <= 0 && ip.getCalibrationTable() == null
+                && ip.getRoi().width == ip.getWidth() && ip.getRoi().height == ip.getHeight() && ip.getMask() == null;
     }
 
     /**
-     * Preprocess the images. For instance: despeckling the images to prevent false positives.
+     * Preprocess a slice. For instance: despeckling the slice to prevent false positives.
      *
-     * @param ip Image processor.
+     * @param ip    Image processor of the slice, which is not modified.
+     * @param frame The frame buffer, which gets the preprocessed pixels.
      */
-    private void preprocessImage(final ImageProcessor ip) {
-        // Perform 'despeckle' using RankFilters.
+    private void preprocessImage(final ImageProcessor ip, final ImageProcessor frame) {
+        // Perform 'despeckle' using RankFilters, on a copy of the slice.
+        System.arraycopy(ip.getPixels(), 0, frame.getPixels(), 0, ip.getPixelCount());
         SilentRankFilters r = new SilentRankFilters();
-        r.rank(ip, 1, RankFilters.MEDIAN);
+        r.rank(frame, 1, RankFilters.MEDIAN);
     }
 
     /**
      * Find the photons in the current image using MaximumFinder, and return their approximate coordinates.
      *
-     * @param ip Image processor.
-     * @return Polygon with all maxima points found.
+     * @param ip              Image processor.
+     * @param despeckleSource The slice that is despeckled into ip while finding the photons, or null if ip is
+     *                        ready.
+     * @param noiseTolerance  The noise tolerance.
+     * @param background      Pixels at or below this level are skipped, 0 to analyze all pixels.
+     * @return Polygon with all maxima points found, the buffer of the calling thread.
      */
-    private Polygon findPhotons(final ImageProcessor ip) {
-        int[][] coordinates;
+    private Polygon findPhotons(final ImageProcessor ip, final ImageProcessor despeckleSource,
+                                final double noiseTolerance, final double background) {
+        SilentMaximumFinder finder = this.maxFind.get();
+        Polygon maxima = this.maximaBuffer.get();
 
-        // Find the maxima using MaximumFinder
-        Polygon maxima = this.maxFind.getMaxima(ip, this.tolerance, true);
+        // Find the maxima using MaximumFinder, only above the background level if one is given.
+        int nMaxima;
+        TiledMaximumFinder tiled = this.tiledFind != null ? this.tiledFind.get() : null;
+        if (despeckleSource != null) {
+            finder.setDespeckleTiming(this.stats != null);
+            nMaxima = finder.getMaximaDespeckled(despeckleSource, ip, noiseTolerance, true, maxima.xpoints,
+                    maxima.ypoints);
+        } else if (tiled != null) {
+            nMaxima = tiled.getMaxima(finder, ip, noiseTolerance, background, maxima.xpoints, maxima.ypoints);
+        } else if (background > 0) {
+            nMaxima = finder.getMaximaSparse(ip, noiseTolerance, background, true, maxima.xpoints, maxima.ypoints);
+        } else {
+            nMaxima = finder.getMaxima(ip, noiseTolerance, true, maxima.xpoints, maxima.ypoints);
+        }
 
-        coordinates = new int[2][maxima.npoints];
-        coordinates[0] = maxima.xpoints; // X coordinates
-        coordinates[1] = maxima.ypoints; // y coordinates
+        // Enlarge the buffer if it was too small.
+        if (nMaxima > maxima.xpoints.length) {
+            maxima.xpoints = new int[nMaxima * 2];
+            maxima.ypoints = new int[nMaxima * 2];
+            if (tiled != null) {
+                tiled.getLastMaxima(maxima.xpoints, maxima.ypoints);
+            } else {
+                finder.getLastMaxima(maxima.xpoints, maxima.ypoints);
+            }
+        }
+        maxima.npoints = nMaxima;
 
         return maxima;
     }
 
     /**
-     * Calculate the exact sub-pixel positions of the photon events at the given coordinates.
+     * Calculate the exact sub-pixel positions of the photon events at the given coordinates, using the
+     * selected centroid method.
+     *
+     * @param xCor             Original x coordinate as found by MaximumFinder.
+     * @param yCor             Original y coordinate as found by MaximumFinder.
+     * @param ip               Image processor.
+     * @param exactCoordinates Array the new calculated coordinates are written to.
+     * @param index            The index in exactCoordinates of the x coordinate, the y coordinate follows it.
+     */
+    private void calculateExactCoordinates(final int xCor, final int yCor, final ImageProcessor ip,
+                                           final double[] exactCoordinates, final int index) {
+        if (this.centroidMethod.equals("Flood fill")) {
+            // The flood fill works on the pixel array directly and does not create any objects.
+            CentroidCalculator centroids = this.centroidCalc.get();
+            centroids.calculateCenter(ip, xCor, yCor, this.tolerance);
+            exactCoordinates[index] = centroids.getCenterX();
+            exactCoordinates[index + 1] = centroids.getCenterY();
+        } else if (this.centroidMethod.equals("Weighted centroid")) {
+            // The same flood fill, but the coordinates are not rounded to half pixels.
+            CentroidCalculator centroids = this.centroidCalc.get();
+            centroids.calculateCenter(ip, xCor, yCor, this.tolerance);
+            exactCoordinates[index] = centroids.getCentroidX();
+            exactCoordinates[index + 1] = centroids.getCentroidY();
+        } else { // this.centroidMethod equals "Wand outline"
+            double[] subPixelCoordinates = this.calculateWandCoordinates(xCor, yCor, ip);
+            exactCoordinates[index] = subPixelCoordinates[0];
+            exactCoordinates[index + 1] = subPixelCoordinates[1];
+        }
+    }
+
+    /**
+     * Calculate the exact sub-pixel positions of the photon events at the given coordinates, by outlining
+     * the photon with the Wand tool.
      *
      * @param xCor Original x coordinate as found by MaximumFinder.
      * @param yCor Original y coordinate as found by MaximumFinder.
      * @param ip   Image processor.
      * @return The new calculated coordinates.
      */
-    private double[] calculateExactCoordinates(final int xCor, final int yCor, final ImageProcessor ip) {
+    private double[] calculateWandCoordinates(final int xCor, final int yCor, final ImageProcessor ip) {
         // Wand MUST BE created here, otherwise wand object might be used for multiple photons at the same time.
         Wand wd = new Wand(ip);
         double[] subPixelCoordinates = new double[2];
@@ -362,37 +912,88 @@ public final class Photon_Image_Processor implements ExtendedPlugInFilter, Dialo
     }
 
     /**
-     * This method generates and displays the final image from the photonCountMatrix.
+     * This method merges the photon counts of all threads and generates the final image from the
+     * photonCountMatrix. Should only be called when all slices have been processed.
+     *
+     * @return ImagePlus The output image.
      */
-    private void createOutputImage() {
+    public ImagePlus getOutputImage() {
+        this.photonCountMatrix = this.photonCounts.getCountMatrix();
+        this.countHistogram = PhotonCountAccumulator.calculateHistogram(this.photonCountMatrix);
+
+        // Create new output image with title.
+        return new ImagePlus("Photon Count Image", createCountProcessor(this.photonCountMatrix, this.countHistogram));
+    }
 
+    /**
+     * Create a 16-bit image from a photon count matrix, with a display range that makes the photons visible.
+     *
+     * @param countMatrix    The photon count matrix, indexed as [x][y].
+     * @param countHistogram The histogram of the count matrix, see PhotonCountAccumulator.calculateHistogram.
+     * @return ShortProcessor The count image.
+     */
+    static ShortProcessor createCountProcessor(final int[][] countMatrix, final int[] countHistogram) {
         // Create new ShortProcessor for output image with matrix data and it's width and height.
-        ShortProcessor sp = new ShortProcessor(this.photonCountMatrix.length, this.photonCountMatrix[0].length);
-        sp.setIntArray(this.photonCountMatrix);
-
-        // Add the amount of different values in array.
-        List<Integer> diffMatrixCount = new ArrayList<>();
-        for (int[] photonCountMatrix1 : this.photonCountMatrix) {
-            for (int photonCountMatrix2 : photonCountMatrix1) {
-                if (!diffMatrixCount.contains(photonCountMatrix2)) {
-                    diffMatrixCount.add(photonCountMatrix2);
-                }
+        ShortProcessor sp = new ShortProcessor(countMatrix.length, countMatrix[0].length);
+        sp.setIntArray(countMatrix);
+
+        // Count the amount of different values in the matrix using its histogram.
+        int diffMatrixCount = 0;
+        for (int pixels : countHistogram) {
+            if (pixels > 0) {
+                diffMatrixCount++;
             }
         }
 
         // Use 0 as min and largest value in the matrix as max for grayscale mapping.
-        if (diffMatrixCount.size() == 2) {
+        if (diffMatrixCount <= 3) {
             sp.setMinAndMax(0, 1);
         } else {
-            sp.setMinAndMax(0, (diffMatrixCount.size() - 2));
+            sp.setMinAndMax(0, (diffMatrixCount - 2));
         }
 
-        // Create new output image with title.
-        ImagePlus outputImage = new ImagePlus("Photon Count Image", sp);
+        return sp;
+    }
+
+    /**
+     * Generate the stack with one photon count image per time bin. Should only be called when all slices have
+     * been processed.
+     *
+     * @return ImagePlus The time bin stack, or null if no time bins are made.
+     */
+    public ImagePlus getTimeBinImage() {
+        if (this.timeBins == null) {
+            return null;
+        }
 
-        // Make new image window in ImageJ and set the window visible.
-        ImageWindow outputWindow = new ImageWindow(outputImage);
-        outputWindow.setVisible(true);
+        ImagePlus binImage = new ImagePlus("Photon Count Time Bins", this.timeBins.getStack());
+        binImage.setDisplayRange(0, Math.max(1, this.timeBins.getMaxCount()));
+        return binImage;
+    }
+
+    /**
+     * Generate the stack with one photon count image per tolerance of the tolerance sweep. Should only be called
+     * when all slices have been processed.
+     *
+     * @return ImagePlus The tolerance sweep stack, or null if no tolerance sweep is made.
+     */
+    public ImagePlus getToleranceSweepImage() {
+        if (this.toleranceSweep == null) {
+            return null;
+        }
+
+        ImagePlus sweepImage = new ImagePlus("Photon Count Tolerance Sweep", this.toleranceSweep.getStack());
+        sweepImage.setDisplayRange(0, Math.max(1, this.toleranceSweep.getMaxCount()));
+        return sweepImage;
+    }
+
+    /**
+     * Get the histogram of the photon counts of the output image, available after processing has finished.
+     *
+     * @return int[] Element i is the number of pixels with i photons, or null if not finished yet.
+     */
+    public int[] getCountHistogram() {
+        return this.countHistogram;
     }
 
     /**
@@ -414,7 +1015,40 @@ public final class Photon_Image_Processor implements ExtendedPlugInFilter, Dialo
                 + "<li><b>Sub-pixel resolution</b> uses the accurate method to calculate the midpoints but creates "
                 + "an output image of a higher resolution (height * 2 and width * 2). This requires more input images "
                 + "and bigger lightblobs in those input images to work successfully."
-                + "</ul><br><br>"
+                + "</ul>"
+                + "The accurate methods can outline each light blob with the <b>Wand outline</b> tool, or use a "
+                + "<b>Flood fill</b> on the pixels directly, which gives the same midpoints but is a lot faster. "
+                + "The <b>Weighted centroid</b> uses the intensity weighted center of the flood filled pixels, "
+                + "which is not rounded to half pixels and works best for rendering at a high magnification."
+                + "<h2>Background level</h2>"
+                + "When <b>Background level</b> is larger than 0, only pixels above this level are analyzed when "
+                + "looking for photons. This is a lot faster for frames that are mostly dark, and finds the same "
+                + "photons as long as their peaks are above the background level."
+                + "<h2>Large frames</h2>"
+                + "When a stack has fewer slices than there are processors and the frames are large (at least one "
+                + "megapixel), each frame is split into tiles that are analyzed on all processors. The tiles overlap, "
+                + "so the same photons are found as without tiles. The preview always uses the tiles for large "
+                + "frames."
+                + "<h2>Time bins</h2>"
+                + "When <b>Time bin frames</b> is larger than 0, the photons are also counted per bin of this many "
+                + "slices, resulting in a stack with one image per bin. With a <b>Time bin step</b> smaller than the "
+                + "bin size the bins overlap (sliding window). While the stack is processed, each bin can need "
+                + "4 bytes per pixel of memory."
+                + "<h2>Tolerance sweep</h2>"
+                + "When a list of noise tolerances is entered as <b>Tolerance sweep</b>, for instance 50,100,200, "
+                + "a stack with one photon count image per tolerance is made as well. Every photon is found once "
+                + "with the noise tolerance it survives, so this is not slower for more tolerances. The photons are "
+                + "counted at the same pixels as with the simple method and each tolerance."
+                + "<h2>Timing statistics</h2>"
+                + "When <b>Log timing statistics</b> is checked, the time spent preprocessing, finding photons, "
+                + "calculating centroids, counting photons and recording the tolerance sweep is written to the log "
+                + "window, together with the "
+                + "number of frames and photons per second and the number of photons per frame."
+                + "<h2>Photon event list</h2>"
+                + "When <b>Save photon event list</b> is checked, every photon found is also saved in a binary file, "
+                + "with its slice number, exact coordinates and peak intensity. This file can be used to render the "
+                + "photons again at any magnification with 'Render Photon Events', without processing the stack."
+                + "<br><br>"
                 + "<font size=-2>Created by Lonneke Scheffer and Wout van Helvoirt."
         );
     }
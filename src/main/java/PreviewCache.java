@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.awt.Polygon;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PreviewCache
+ *
+ * This class keeps the results of the preview of Photon_Image_Processor, so changing a dialog field back and
+ * forth, or changing only the tolerance, does not repeat the work. The despeckled slices are cached per slice,
+ * separately from the maxima, which are cached per slice, preprocessing flag, tolerance and background level.
+ * Both caches drop the least recently used entries when they are full, so only a few despeckled slices are
+ * kept in memory.
+ *
+ * Every change of the dialog starts a new generation. A preview computation remembers the generation it was
+ * started in, and only shows its result if no newer parameters have arrived in the meantime. The computation
+ * itself is stopped by the PlugInFilterRunner, which interrupts the preview thread.
+ *
+ * The methods can be called from the dialog thread and the preview thread at the same time.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class PreviewCache {
+
+    /** The despeckled slice pixels, by slice number. */
+    private final Map<Integer, Object> preprocessed;
+    /** Copies of the maxima, by slice number, preprocessing flag, tolerance and background level. */
+    private final Map<String, Polygon> maxima;
+    /** The current generation, increased for every change of the parameters. */
+    private long generation = 0;
+
+    /**
+     * Create a new PreviewCache.
+     *
+     * @param maxSlices The number of despeckled slices that are kept.
+     * @param maxMaxima The number of maxima results that are kept.
+     */
+    public PreviewCache(final int maxSlices, final int maxMaxima) {
+        if (maxSlices < 1 || maxMaxima < 1) {
+            throw new IllegalArgumentException("Your cache sizes (" + maxSlices + ", " + maxMaxima
+                    + ") should be at least 1!");
+        }
+        this.preprocessed = createLruMap(maxSlices);
+        this.maxima = createLruMap(maxMaxima);
+    }
+
+    /**
+     * Create a map that removes the least recently used entry when it gets more than the given entries.
+     *
+     * @param maxEntries The number of entries that are kept.
+     * @param <K>        The key type.
+     * @param <V>        The value type.
+     * @return Map The map, in access order.
+     */
+    private static <K, V> Map<K, V> createLruMap(final int maxEntries) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Start a new generation, called when the parameters have changed. Computations of older generations
+     * should not show their results anymore.
+     *
+     * @return long The new generation.
+     */
+    public synchronized long nextGeneration() {
+        return ++this.generation;
+    }
+
+    /**
+     * Get the current generation, to be remembered by a computation that starts now.
+     *
+     * @return long The current generation.
+     */
+    public synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Check whether the parameters have not changed since a computation started.
+     *
+     * @param startGeneration The generation at the start of the computation.
+     * @return boolean true if the result of the computation is still wanted.
+     */
+    public synchronized boolean isCurrent(final long startGeneration) {
+        return this.generation == startGeneration;
+    }
+
+    /**
+     * Get the despeckled pixels of a slice.
+     *
+     * @param slice The slice number.
+     * @return Object The pixel array, which should not be modified, or null if it is not cached.
+     */
+    public synchronized Object getPreprocessed(final int slice) {
+        return this.preprocessed.get(slice);
+    }
+
+    /**
+     * Cache the despeckled pixels of a slice.
+     *
+     * @param slice  The slice number.
+     * @param pixels The pixel array, a copy is stored.
+     */
+    public synchronized void putPreprocessed(final int slice, final Object pixels) {
+        Object copy;
+        if (pixels instanceof byte[]) {
+            copy = ((byte[]) pixels).clone();
+        } else if (pixels instanceof short[]) {
+            copy = ((short[]) pixels).clone();
+        } else {
+            throw new IllegalArgumentException("Your pixels should be 8-bit or 16-bit!");
+        }
+        this.preprocessed.put(slice, copy);
+    }
+
+    /**
+     * Get the maxima found with the given parameters.
+     *
+     * @param slice           The slice number.
+     * @param preprocessing   Whether the slice was despeckled.
+     * @param tolerance       The noise tolerance.
+     * @param backgroundLevel The background level.
+     * @return Polygon The maxima, which should not be modified, or null if they are not cached.
+     */
+    public synchronized Polygon getMaxima(final int slice, final boolean preprocessing, final double tolerance,
+                                          final double backgroundLevel) {
+        return this.maxima.get(maximaKey(slice, preprocessing, tolerance, backgroundLevel));
+    }
+
+    /**
+     * Cache the maxima found with the given parameters.
+     *
+     * @param slice           The slice number.
+     * @param preprocessing   Whether the slice was despeckled.
+     * @param tolerance       The noise tolerance.
+     * @param backgroundLevel The background level.
+     * @param points          The maxima, a copy is stored.
+     * @return Polygon The stored copy.
+     */
+    public synchronized Polygon putMaxima(final int slice, final boolean preprocessing, final double tolerance,
+                                          final double backgroundLevel, final Polygon points) {
+        Polygon copy = new Polygon(Arrays.copyOf(points.xpoints, points.npoints),
+                Arrays.copyOf(points.ypoints, points.npoints), points.npoints);
+        this.maxima.put(maximaKey(slice, preprocessing, tolerance, backgroundLevel), copy);
+        return copy;
+    }
+
+    /**
+     * Remove all cached slices and maxima, for instance when the pixels of the image have changed.
+     */
+    public synchronized void clear() {
+        this.preprocessed.clear();
+        this.maxima.clear();
+    }
+
+    /**
+     * Get the key of the maxima found with the given parameters.
+     *
+     * @param slice           The slice number.
+     * @param preprocessing   Whether the slice was despeckled.
+     * @param tolerance       The noise tolerance.
+     * @param backgroundLevel The background level.
+     * @return String The key.
+     */
+    private static String maximaKey(final int slice, final boolean preprocessing, final double tolerance,
+                                    final double backgroundLevel) {
+        return slice + "/" + preprocessing + "/" + tolerance + "/" + backgroundLevel;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.IJ;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ProcessingStats
+ *
+ * This class can be used to measure where the time goes while Photon_Image_Processor processes a stack.
+ * For each frame the time spent in each stage (preprocessing, finding photons, centroid calculation,
+ * accumulation and the tolerance sweep) is added, together with the number of photons found. All counters can be
+ * updated by multiple threads at the same time without locking, so the measurements hardly slow down the processing.
+ *
+ * At the end of a run the totals, the throughput (frames and photons per second, measured from the first
+ * frame until finish was called) and the distribution of photons per frame can be written to the ImageJ log
+ * as table, or saved as JSON or CSV file.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class ProcessingStats {
+
+    /** The names of the measured stages, in the order of the stage constants. */
+    public static final String[] STAGES = {"Preprocessing", "Finding photons", "Centroid calculation", "Accumulation",
+            "Tolerance sweep"};
+    /** The preprocessing (despeckle) stage. */
+    public static final int PREPROCESS = 0;
+    /** The stage that finds the photons with SilentMaximumFinder. */
+    public static final int FIND = 1;
+    /** The stage that calculates the exact photon coordinates. */
+    public static final int CENTROID = 2;
+    /** The stage that adds the photons to the count matrix, time bins and event list. */
+    public static final int ACCUMULATE = 3;
+    /** The stage that records the maxima of the frame for the tolerance sweep. */
+    public static final int SWEEP = 4;
+    /** Frames with at least this many photons are counted in the last bin of the photons per frame histogram. */
+    private static final int HISTOGRAM_SIZE = 1024;
+
+    /** The total time in nanoseconds spent in each stage. */
+    private final LongAdder[] stageNanos;
+    /** The number of frames processed. */
+    private final LongAdder frames;
+    /** The number of photons found. */
+    private final LongAdder photons;
+    /** The highest number of photons found in one frame. */
+    private final LongAccumulator maxPhotons;
+    /** Element i is the number of frames with i photons, the last element also counts all busier frames. */
+    private final AtomicLongArray photonsPerFrame;
+    /** The time the first frame started, or 0 if no frame started yet. */
+    private final AtomicLong startNanos;
+    /** The time finish was called, or 0 if not finished yet. */
+    private volatile long endNanos = 0;
+
+    /**
+     * Create a new ProcessingStats with all counters at 0.
+     */
+    public ProcessingStats() {
+        this.stageNanos = new LongAdder[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            this.stageNanos[i] = new LongAdder();
+        }
+        this.frames = new LongAdder();
+        this.photons = new LongAdder();
+        this.maxPhotons = new LongAccumulator(Math::max, 0);
+        this.photonsPerFrame = new AtomicLongArray(HISTOGRAM_SIZE);
+        this.startNanos = new AtomicLong(0);
+    }
+
+    /**
+     * Mark the start of a frame. The first call starts the clock used for the throughput.
+     *
+     * @return long The current time in nanoseconds.
+     */
+    public long startFrame() {
+        long now = System.nanoTime();
+        this.startNanos.compareAndSet(0, now);
+        return now;
+    }
+
+    /**
+     * Add the measurements of a processed frame.
+     *
+     * @param nPhotons        The number of photons found in the frame.
+     * @param preprocessNanos The time spent preprocessing the frame.
+     * @param findNanos       The time spent finding the photons.
+     * @param centroidNanos   The time spent calculating the exact coordinates.
+     * @param accumulateNanos The time spent adding the photons to the outputs.
+     * @param sweepNanos      The time spent recording the maxima for the tolerance sweep.
+     */
+    public void addFrame(final int nPhotons, final long preprocessNanos, final long findNanos,
+                         final long centroidNanos, final long accumulateNanos, final long sweepNanos) {
+        this.stageNanos[PREPROCESS].add(preprocessNanos);
+        this.stageNanos[FIND].add(findNanos);
+        this.stageNanos[CENTROID].add(centroidNanos);
+        this.stageNanos[ACCUMULATE].add(accumulateNanos);
+        this.stageNanos[SWEEP].add(sweepNanos);
+        this.frames.increment();
+        this.photons.add(nPhotons);
+        this.maxPhotons.accumulate(nPhotons);
+        this.photonsPerFrame.incrementAndGet(Math.min(nPhotons, HISTOGRAM_SIZE - 1));
+    }
+
+    /**
+     * Stop the clock used for the throughput. Should be called when all frames have been processed.
+     */
+    public void finish() {
+        this.endNanos = System.nanoTime();
+    }
+
+    /**
+     * Get the total time spent in a stage.
+     *
+     * @param stage One of the stage constants.
+     * @return long The time in nanoseconds, summed over all threads.
+     */
+    public long getStageNanos(final int stage) {
+        return this.stageNanos[stage].sum();
+    }
+
+    /**
+     * Get the number of frames processed.
+     *
+     * @return long The number of frames.
+     */
+    public long getFrames() {
+        return this.frames.sum();
+    }
+
+    /**
+     * Get the number of photons found.
+     *
+     * @return long The number of photons.
+     */
+    public long getPhotons() {
+        return this.photons.sum();
+    }
+
+    /**
+     * Get the time from the start of the first frame until finish (or now, if not finished yet).
+     *
+     * @return long The wall clock time in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        long start = this.startNanos.get();
+        if (start == 0) {
+            return 0;
+        }
+        return (this.endNanos != 0 ? this.endNanos : System.nanoTime()) - start;
+    }
+
+    /**
+     * Get the number of frames processed per second of wall clock time.
+     *
+     * @return double The frames per second.
+     */
+    public double getFramesPerSecond() {
+        return perSecond(this.getFrames(), this.getElapsedNanos());
+    }
+
+    /**
+     * Get the number of photons found per second of wall clock time.
+     *
+     * @return double The photons per second.
+     */
+    public double getPhotonsPerSecond() {
+        return perSecond(this.getPhotons(), this.getElapsedNanos());
+    }
+
+    /**
+     * Get the histogram of the number of photons per frame.
+     *
+     * @return long[] Element i is the number of frames with i photons. The length is the highest number of
+     * photons + 1, frames with HISTOGRAM_SIZE - 1 or more photons are all counted in the last element.
+     */
+    public long[] getPhotonsPerFrameHistogram() {
+        int length = (int) Math.min(this.maxPhotons.get() + 1, HISTOGRAM_SIZE);
+        long[] histogram = new long[length];
+        for (int i = 0; i < length; i++) {
+            histogram[i] = this.photonsPerFrame.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Get a percentile of the number of photons per frame, based on the histogram.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return int The number of photons.
+     */
+    public int getPhotonsPerFramePercentile(final double percentile) {
+        long[] histogram = this.getPhotonsPerFrameHistogram();
+        long rank = (long) Math.ceil(percentile / 100 * this.getFrames());
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return i;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    /**
+     * Write the statistics to the ImageJ log as table.
+     */
+    public void log() {
+        long totalNanos = 0;
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            totalNanos += this.getStageNanos(stage);
+        }
+        long nFrames = Math.max(this.getFrames(), 1);
+
+        IJ.log("Stage\tTotal (ms)\tPer frame (us)\tShare (%)");
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            long nanos = this.getStageNanos(stage);
+            IJ.log(String.format(Locale.ROOT, "%s\t%.1f\t%.1f\t%.1f", STAGES[stage], nanos / 1e6,
+                    nanos / 1e3 / nFrames, totalNanos == 0 ? 0.0 : 100.0 * nanos / totalNanos));
+        }
+        IJ.log(String.format(Locale.ROOT, "Frames: %d in %.1f ms (%.1f frames/s)", this.getFrames(),
+                this.getElapsedNanos() / 1e6, this.getFramesPerSecond()));
+        IJ.log(String.format(Locale.ROOT, "Photons: %d (%.1f photons/s, %.2f per frame, median %d, 95%% %d, max %d)",
+                this.getPhotons(), this.getPhotonsPerSecond(), (double) this.getPhotons() / nFrames,
+                this.getPhotonsPerFramePercentile(50), this.getPhotonsPerFramePercentile(95),
+                this.maxPhotons.get()));
+    }
+
+    /**
+     * Get the statistics as JSON object.
+     *
+     * @return String The JSON text.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"stages\": {\n");
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            json.append("    \"").append(STAGES[stage]).append("\": ").append(this.getStageNanos(stage))
+                    .append(stage < STAGES.length - 1 ? ",\n" : "\n");
+        }
+        json.append("  },\n");
+        json.append("  \"frames\": ").append(this.getFrames()).append(",\n");
+        json.append("  \"photons\": ").append(this.getPhotons()).append(",\n");
+        json.append("  \"elapsedNanos\": ").append(this.getElapsedNanos()).append(",\n");
+        json.append(String.format(Locale.ROOT, "  \"framesPerSecond\": %.3f,\n", this.getFramesPerSecond()));
+        json.append(String.format(Locale.ROOT, "  \"photonsPerSecond\": %.3f,\n", this.getPhotonsPerSecond()));
+        json.append("  \"photonsPerFrame\": {\n");
+        json.append("    \"median\": ").append(this.getPhotonsPerFramePercentile(50)).append(",\n");
+        json.append("    \"p95\": ").append(this.getPhotonsPerFramePercentile(95)).append(",\n");
+        json.append("    \"p99\": ").append(this.getPhotonsPerFramePercentile(99)).append(",\n");
+        json.append("    \"max\": ").append(this.maxPhotons.get()).append(",\n");
+        json.append("    \"histogram\": [");
+        long[] histogram = this.getPhotonsPerFrameHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            json.append(i > 0 ? ", " : "").append(histogram[i]);
+        }
+        json.append("]\n  }\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Get the statistics as CSV table with a metric and value column. The stage times are in nanoseconds,
+     * the photons per frame histogram is added as one row per number of photons.
+     *
+     * @return String The CSV text.
+     */
+    public String toCsv() {
+        StringBuilder csv = new StringBuilder("metric,value\n");
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            csv.append("stage nanos ").append(STAGES[stage]).append(',').append(this.getStageNanos(stage))
+                    .append('\n');
+        }
+        csv.append("frames,").append(this.getFrames()).append('\n');
+        csv.append("photons,").append(this.getPhotons()).append('\n');
+        csv.append("elapsed nanos,").append(this.getElapsedNanos()).append('\n');
+        csv.append(String.format(Locale.ROOT, "frames per second,%.3f\n", this.getFramesPerSecond()));
+        csv.append(String.format(Locale.ROOT, "photons per second,%.3f\n", this.getPhotonsPerSecond()));
+        long[] histogram = this.getPhotonsPerFrameHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            csv.append("frames with ").append(i).append(" photons,").append(histogram[i]).append('\n');
+        }
+        return csv.toString();
+    }
+
+    /**
+     * Save the statistics as JSON file if the path ends with '.json', otherwise as CSV file.
+     *
+     * @param path The path of the file.
+     * @throws IOException If the file could not be written.
+     */
+    public void save(final String path) throws IOException {
+        String text = path.toLowerCase(Locale.ROOT).endsWith(".json") ? this.toJson() : this.toCsv();
+        Files.write(Paths.get(path), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Divide a count by a time.
+     *
+     * @param count The count.
+     * @param nanos The time in nanoseconds.
+     * @return double The count per second, 0 if no time has passed.
+     */
+    private static double perSecond(final long count, final long nanos) {
+        return nanos <= 0 ? 0 : count * 1e9 / nanos;
+    }
+}
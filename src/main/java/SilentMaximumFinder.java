@@ -18,8 +18,10 @@ import java.util.*;
  * Except for segmentation, this plugin works with ROIs, including non-rectangular ROIs. Since this plug-in creates a
  * separate output image it processes only single images or slices, no stacks.
  *
- * Notes: - When using one instance of MaximumFinder for more than one image in parallel threads, all must images have
- * the same width and height.
+ * Notes: - An instance keeps per-call state (image dimensions, neighbor offsets, work buffers and the found maxima),
+ * so it must not be shared between threads. When processing images in parallel threads, use one instance per thread,
+ * e.g. via a ThreadLocal. One instance can be used for images of different sizes; the work buffers are reused as long
+ * as the size does not change.
  *
  * version 09-Nov-2006 Michael Schmid version 21-Nov-2006 Wayne Rasband. Adds "Display Point Selection" option and
  * "Count" output type. version 28-May-2007 Michael Schmid. Preview added, bugfix: minima of calibrated images, uses
@@ -63,6 +65,10 @@ public class SilentMaximumFinder implements PlugInFilter {
      * Do not create an image, just count maxima and add count to Results table
      */
     public final static int COUNT = 5;
+    /**
+     * Edge flags of getLastEdgeRejections: a possible maximum reached the left, right, top or bottom image edge
+     */
+    public final static int EDGE_LEFT = 1, EDGE_RIGHT = 2, EDGE_TOP = 4, EDGE_BOTTOM = 8;
     /**
      * what type of output to create (see constants above)
      */
@@ -106,7 +112,32 @@ public class SilentMaximumFinder implements PlugInFilter {
      * directions to 8 neighboring pixels, clockwise: 0=North (-y), 1=NE, 2=East (+x), ... 7=NW
      */
     private int[] dirOffset;                    // pixel offsets of neighbor pixels for direct addressing
-    private Polygon points;                    // maxima found by findMaxima() when outputType is POINT_SELECTION
+    private int[] xMaxima, yMaxima;             // maxima found by the last findMaxima() when outputType is POINT_SELECTION, LIST or COUNT
+    private int[] startMaxima;                  // pixel offsets where the analysis of these maxima started
+    private int nMaxima;                        // number of maxima in xMaxima, yMaxima
+    //the following buffers are kept between calls, so frames of the same size need no new arrays
+    private ByteProcessor typeBuffer;           // pixel types, when no output image is created
+    private int[] pList;                        // points connected to the current maximum (analyzeAndMarkMaxima)
+    private long[] maxPointBuffer;              // sorted maxima of the 8-bit and 16-bit code paths
+    private int[] offsetBuffer;                 // maxima in pixel order (getSortedIntegerMaxPoints)
+    private int[] levelBuffer;                  // number of maxima per level (getSortedIntegerMaxPoints)
+    private final int[] minMax = new int[2];    // minimum and maximum value (markIntegerMaxima)
+    private float[] prominenceMaxima;           // prominence of the maxima in xMaxima, yMaxima (getMaximaProminence)
+    private int nProminences;                   // number of prominences of the last call, 0 unless getMaximaProminence
+    private boolean[] equalMaxima;              // whether these maxima have equal points (getLastEqualMaxima)
+    private int[] orderBuffer;                  // pixel offsets sorted by value (findMaximaProminence)
+    private int[] parentBuffer;                 // union-find parent of each pixel (findMaximaProminence)
+    private int[] peakBuffer;                   // highest pixel of each union-find set (findMaximaProminence)
+    private float[] prominenceBuffer;           // prominence of each peak pixel (findMaximaProminence)
+    private int edgeRejections;                 // EDGE_ flags of the edges that excluded a possible maximum
+    private MaximaScanner scanner = VECTOR_SCANNER; // scans the inner pixels of a row (markIntegerMaxima), or null
+    private ImageProcessor despeckleSource;     // despeckled into the image of findMaxima, or null
+    private boolean timeDespeckle;              // whether getMaximaDespeckled measures the time of the median
+    private long despeckleNanos;                // time of the median in the last getMaximaDespeckled, if measured
+    /**
+     * the vectorized scanner, null if it was not built or the Vector API module is not available
+     */
+    private final static MaximaScanner VECTOR_SCANNER = loadVectorScanner();
     final static int[] DIR_X_OFFSET = new int[]{0, 1, 1, 1, 0, -1, -1, -1};
     final static int[] DIR_Y_OFFSET = new int[]{-1, -1, 0, 1, 1, 1, 0, -1};
     /**
@@ -125,6 +156,49 @@ public class SilentMaximumFinder implements PlugInFilter {
     final static byte[] outputTypeMasks = new byte[]{MAX_POINT, MAX_AREA, MAX_AREA};
     final static float SQRT2 = 1.4142135624f;
 
+    /**
+     * Load the vectorized MaximaScanner. It is only built with the 'vector' profile, and needs the JVM option
+     * '--add-modules jdk.incubator.vector'.
+     *
+     * @return A VectorMaximaScanner, or null if it can not be loaded
+     */
+    private static MaximaScanner loadVectorScanner() {
+        try {
+            return (MaximaScanner) Class.forName("VectorMaximaScanner").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;                                    //not built, or no Vector API: use the scalar loop
+        }
+    }
+
+    /**
+     * Tells whether the vectorized local maximum scan (VectorMaximaScanner) can be used.
+     *
+     * @return Whether the scanner was built and the Vector API is available
+     */
+    public static boolean isVectorScanAvailable() {
+        return VECTOR_SCANNER != null;
+    }
+
+    /**
+     * Use the vectorized local maximum scan for uncalibrated 8-bit and 16-bit images if it is available (the
+     * default), or always use the scalar loop. Both find the same maxima.
+     *
+     * @param vectorScan Whether the vectorized scan should be used
+     */
+    public void setVectorScan(boolean vectorScan) {
+        scanner = vectorScan ? VECTOR_SCANNER : null;
+    }
+
+    /**
+     * Measure the time getMaximaDespeckled spends on the 3x3 median, so that it can be told apart from the time spent
+     * finding the maxima (see getLastDespeckleNanos). This is off by default, since it reads the clock for each line.
+     *
+     * @param timeDespeckle Whether the time of the median should be measured
+     */
+    public void setDespeckleTiming(boolean timeDespeckle) {
+        this.timeDespeckle = timeDespeckle;
+    }
+
     /**
      * Method to return types supported
      *
@@ -213,13 +287,589 @@ public class SilentMaximumFinder implements PlugInFilter {
     public Polygon getMaxima(ImageProcessor ip, double tolerance, boolean excludeOnEdges) {
         findMaxima(ip, tolerance, ImageProcessor.NO_THRESHOLD,
                 MaximumFinder.POINT_SELECTION, excludeOnEdges, false);
-        if (points == null) {
+        return makePolygon();
+    }
+
+    /**
+     * Finds the image maxima like getMaxima(ip, tolerance, excludeOnEdges), but stores their coordinates in the given
+     * arrays instead of creating a Polygon. The work arrays of the finder are kept between calls, so nothing is
+     * allocated when all images have the same size and the arrays are large enough.
+     *
+     * @param ip The input image
+     * @param tolerance Height tolerance: maxima are accepted only if protruding more than this value from the ridge to
+     * a higher maximum
+     * @param excludeOnEdges Whether to exclude edge maxima
+     * @param xPoints Output: the x coordinates of the maxima
+     * @param yPoints Output: the y coordinates of the maxima
+     * @return The number of maxima. If this is larger than the arrays, only the first maxima are stored and all of
+     * them can be copied to larger arrays with getLastMaxima
+     */
+    public int getMaxima(ImageProcessor ip, double tolerance, boolean excludeOnEdges, int[] xPoints, int[] yPoints) {
+        findMaxima(ip, tolerance, ImageProcessor.NO_THRESHOLD,
+                MaximumFinder.POINT_SELECTION, excludeOnEdges, false);
+        return getLastMaxima(xPoints, yPoints);
+    }
+
+    /**
+     * Despeckles an image and finds the maxima of the result, like SilentRankFilters.rank(ip, 1, MEDIAN) on a copy of
+     * the image followed by getMaxima(copy, tolerance, excludeOnEdges, xPoints, yPoints), but in one pass over the
+     * pixels: each line of the 3x3 median is calculated just before the local maxima of the line above it are marked.
+     * The image itself is not modified, so it can be a slice of a virtual stack.
+     *
+     * @param ip The image to despeckle, an uncalibrated 8-bit or 16-bit image without roi
+     * @param despeckled Output: the despeckled image, of the same type and size. Its roi is reset
+     * @param tolerance Height tolerance: maxima are accepted only if protruding more than this value from the ridge to
+     * a higher maximum
+     * @param excludeOnEdges Whether to exclude edge maxima
+     * @param xPoints Output: the x coordinates of the maxima
+     * @param yPoints Output: the y coordinates of the maxima
+     * @return The number of maxima. If this is larger than the arrays, only the first maxima are stored and all of
+     * them can be copied to larger arrays with getLastMaxima
+     */
+    public int getMaximaDespeckled(ImageProcessor ip, ImageProcessor despeckled, double tolerance,
+            boolean excludeOnEdges, int[] xPoints, int[] yPoints) {
+        if (!(ip instanceof ByteProcessor || ip instanceof ShortProcessor) || ip.getCalibrationTable() != null
+                || despeckled.getClass() != ip.getClass() || despeckled.getCalibrationTable() != null
+                || despeckled.getWidth() != ip.getWidth() || despeckled.getHeight() != ip.getHeight()
+                || despeckled.getPixels() == ip.getPixels()) {
+            throw new IllegalArgumentException("Despeckling while finding maxima needs an uncalibrated 8-bit or 16-bit "
+                    + "image and a separate output image of the same type and size!");
+        }
+        if (ip.getRoi().width != ip.getWidth() || ip.getRoi().height != ip.getHeight() || ip.getMask() != null) {
+            throw new IllegalArgumentException("Despeckling while finding maxima is not possible with a roi!");
+        }
+        despeckled.resetRoi();
+        despeckleSource = ip;
+        despeckleNanos = 0;
+        try {
+            findMaxima(despeckled, tolerance, ImageProcessor.NO_THRESHOLD,
+                    MaximumFinder.POINT_SELECTION, excludeOnEdges, false);
+        } finally {
+            despeckleSource = null;
+        }
+        return getLastMaxima(xPoints, yPoints);
+    }
+
+    /**
+     * Copies the maxima found by the last call of getMaxima or getMaximaSparse to the given arrays.
+     *
+     * @param xPoints Output: the x coordinates of the maxima
+     * @param yPoints Output: the y coordinates of the maxima
+     * @return The number of maxima, only as many as fit in the arrays are copied
+     */
+    public int getLastMaxima(int[] xPoints, int[] yPoints) {
+        int n = Math.min(nMaxima, Math.min(xPoints.length, yPoints.length));
+        if (n > 0) {
+            System.arraycopy(xMaxima, 0, xPoints, 0, n);
+            System.arraycopy(yMaxima, 0, yPoints, 0, n);
+        }
+        return nMaxima;
+    }
+
+    /**
+     * Copies the pixel offsets (y * width + x) where the analysis of the maxima of the last call started to the given
+     * array. The analysis of a maximum starts at the point with the highest offset of the highest points within the
+     * tolerance; with several highest points, this start point determines which of them is chosen as the maximum.
+     *
+     * @param starts Output: the start offsets, in the same order as the maxima
+     * @return The number of maxima, only as many as fit in the array are copied
+     */
+    public int getLastMaximaStarts(int[] starts) {
+        int n = Math.min(nMaxima, starts.length);
+        if (n > 0) {
+            System.arraycopy(startMaxima, 0, starts, 0, n);
+        }
+        return nMaxima;
+    }
+
+    /**
+     * Tells which image edges excluded maxima in the last call of getMaxima or getMaximaSparse with excludeOnEdges.
+     * A maximum is excluded when the area within the tolerance around it reaches an edge before it reaches a higher
+     * point. When the image is a part of a larger image (a tile), the maxima near an edge flagged here might be
+     * maxima of the larger image; maxima not near a flagged edge are the same as in the larger image.
+     *
+     * @return The EDGE_LEFT, EDGE_RIGHT, EDGE_TOP and EDGE_BOTTOM flags of the edges that excluded a maximum
+     */
+    public int getLastEdgeRejections() {
+        return edgeRejections;
+    }
+
+    /**
+     * Returns the time the last call of getMaximaDespeckled spent on the 3x3 median, which is included in the time of
+     * that call. The time is only measured after setDespeckleTiming(true), otherwise it is 0.
+     *
+     * @return The time spent despeckling in nanoseconds
+     */
+    public long getLastDespeckleNanos() {
+        return despeckleNanos;
+    }
+
+    /**
+     * Create a Polygon with a copy of the maxima of the last call.
+     *
+     * @return A Polygon containing the coordinates of the maxima
+     */
+    private Polygon makePolygon() {
+        if (nMaxima == 0) {
             return new Polygon();
+        }
+        return new Polygon(Arrays.copyOf(xMaxima, nMaxima), Arrays.copyOf(yMaxima, nMaxima), nMaxima);
+    }
+
+    /**
+     * Finds the image maxima above a background level and returns them as a Polygon. Meant for sparse images such as
+     * single photon frames, where almost all pixels are background: the background pixels are skipped eight at a time
+     * and only the local maxima above the background level are analyzed. Since maxima are analyzed from the highest
+     * down and lower maxima never change the outcome for higher ones, the result is the same as that of getMaxima,
+     * except that maxima at or below the background level are not found. Images other than uncalibrated 8-bit and
+     * 16-bit images are passed to getMaxima.
+     *
+     * @param ip The input image
+     * @param tolerance Height tolerance: maxima are accepted only if protruding more than this value from the ridge to
+     * a higher maximum
+     * @param backgroundLevel Pixels at or below this value are not considered as maximum
+     * @param excludeOnEdges Whether to exclude edge maxima
+     * @return A Polygon containing the coordinates of the maxima
+     */
+    public Polygon getMaximaSparse(ImageProcessor ip, double tolerance, double backgroundLevel, boolean excludeOnEdges) {
+        findMaximaSparse(ip, tolerance, backgroundLevel, excludeOnEdges);
+        return makePolygon();
+    }
+
+    /**
+     * Finds the image maxima above a background level like getMaximaSparse(ip, tolerance, backgroundLevel,
+     * excludeOnEdges), but stores their coordinates in the given arrays instead of creating a Polygon.
+     *
+     * @param ip The input image
+     * @param tolerance Height tolerance: maxima are accepted only if protruding more than this value from the ridge to
+     * a higher maximum
+     * @param backgroundLevel Pixels at or below this value are not considered as maximum
+     * @param excludeOnEdges Whether to exclude edge maxima
+     * @param xPoints Output: the x coordinates of the maxima
+     * @param yPoints Output: the y coordinates of the maxima
+     * @return The number of maxima. If this is larger than the arrays, only the first maxima are stored and all of
+     * them can be copied to larger arrays with getLastMaxima
+     */
+    public int getMaximaSparse(ImageProcessor ip, double tolerance, double backgroundLevel, boolean excludeOnEdges,
+            int[] xPoints, int[] yPoints) {
+        findMaximaSparse(ip, tolerance, backgroundLevel, excludeOnEdges);
+        return getLastMaxima(xPoints, yPoints);
+    }
+
+    /**
+     * Find the maxima above a background level, the result is kept in xMaxima, yMaxima and nMaxima.
+     *
+     * @param ip The input image
+     * @param tolerance Height tolerance
+     * @param backgroundLevel Pixels at or below this value are not considered as maximum
+     * @param excludeOnEdges Whether to exclude edge maxima
+     */
+    private void findMaximaSparse(ImageProcessor ip, double tolerance, double backgroundLevel, boolean excludeOnEdges) {
+        if (ip.getCalibrationTable() != null || !(ip instanceof ByteProcessor || ip instanceof ShortProcessor)) {
+            findMaxima(ip, tolerance, ImageProcessor.NO_THRESHOLD,
+                    MaximumFinder.POINT_SELECTION, excludeOnEdges, false);
+            return;
+        }
+        if (dirOffset == null || width != ip.getWidth() || height != ip.getHeight()) {
+            makeDirectionOffsets(ip);
+        }
+        nMaxima = 0;
+        nProminences = 0;
+        edgeRejections = 0;
+        ByteProcessor typeP = getTypeBuffer();
+        int nMax = getSparseMaxPoints(ip, (int) Math.floor(backgroundLevel), excludeOnEdges);
+        if (nMax < 0) {
+            return;
+        }
+        analyzeAndMarkMaxima(ip, typeP, maxPointBuffer, nMax, excludeOnEdges, false, 0f, tolerance, POINT_SELECTION, 0f);
+    }
+
+    /**
+     * Finds all maxima of an uncalibrated 8-bit or 16-bit image together with their prominence: how far each maximum
+     * protrudes above the highest saddle (ridge) that connects it to a higher maximum, or to the image edge if edge
+     * maxima are excluded. getMaxima with a given tolerance finds exactly the maxima with a prominence above the
+     * tolerance, so the maxima for any tolerance can be selected afterwards without analyzing the image again. The
+     * positions returned are those of the lowest tolerance. When a maximum has several points of the same height
+     * within its prominence (see getLastEqualMaxima), getMaxima may choose another of them as its position with a
+     * higher tolerance, which getMaximumPosition tells (and with a roi, that point may lie outside the roi). The
+     * highest maximum has an infinite prominence when edge maxima are not excluded.
+     *
+     * The prominences are calculated by adding the pixels from high to low to a union-find structure: when two
+     * connected sets of pixels meet at a saddle, the lower of their maxima gets its prominence. This takes about as
+     * long as getMaxima with a low tolerance.
+     *
+     * @param ip The input image, a ByteProcessor or ShortProcessor without calibration table
+     * @param excludeOnEdges Whether to exclude edge maxima
+     * @param xPoints Output: the x coordinates of the maxima, highest maximum first
+     * @param yPoints Output: the y coordinates of the maxima
+     * @param prominences Output: the prominences of the maxima
+     * @return The number of maxima. If this is larger than the arrays, only the first maxima are stored and all of
+     * them can be copied to larger arrays with getLastMaxima and getLastProminences
+     */
+    public int getMaximaProminence(ImageProcessor ip, boolean excludeOnEdges, int[] xPoints, int[] yPoints,
+            float[] prominences) {
+        findMaximaProminence(ip, excludeOnEdges);
+        getLastProminences(prominences);
+        return getLastMaxima(xPoints, yPoints);
+    }
+
+    /**
+     * Copies the prominences of the maxima found by the last call of getMaximaProminence to the given array.
+     *
+     * @param prominences Output: the prominences of the maxima
+     * @return The number of prominences, 0 if the last call was not getMaximaProminence. Only as many as fit in the
+     * array are copied
+     */
+    public int getLastProminences(float[] prominences) {
+        int n = Math.min(nProminences, prominences.length);
+        if (n > 0) {
+            System.arraycopy(prominenceMaxima, 0, prominences, 0, n);
+        }
+        return nProminences;
+    }
+
+    /**
+     * Copies for each maximum found by the last call of getMaximaProminence whether it has other points of the same
+     * height within its prominence: a plateau, or a peak of the same height that is reached with a lower tolerance.
+     * Only then the position of the maximum depends on the tolerance, see getMaximumPosition.
+     *
+     * @param equal Output: whether the maxima have points of the same height, in the same order as the maxima
+     * @return The number of maxima, 0 if the last call was not getMaximaProminence. Only as many as fit in the array
+     * are copied
+     */
+    public int getLastEqualMaxima(boolean[] equal) {
+        int n = Math.min(nProminences, equal.length);
+        if (n > 0) {
+            System.arraycopy(equalMaxima, 0, equal, 0, n);
+        }
+        return nProminences;
+    }
+
+    /**
+     * Get the position that getMaxima with the given tolerance chooses for a maximum found by the last call of
+     * getMaximaProminence, like analyzeAndMarkMaxima: all points connected to the maximum within the tolerance are
+     * listed, and the point of the same height as the maximum nearest to the average position of these equal points
+     * stands for the maximum. Should be called right after getMaximaProminence, with the same image.
+     *
+     * @param ip The image given to getMaximaProminence
+     * @param start The pixel offset where the analysis of the maximum starts, see getLastMaximaStarts
+     * @param tolerance The noise tolerance, below the prominence of the maximum
+     * @return The pixel offset (y * width + x) of the point standing for the maximum
+     */
+    public int getMaximumPosition(ImageProcessor ip, int start, double tolerance) {
+        byte[] bytePixels = ip instanceof ByteProcessor ? (byte[]) ip.getPixels() : null;
+        short[] shortPixels = bytePixels == null ? (short[]) ip.getPixels() : null;
+        byte[] types = (byte[]) typeBuffer.getPixels();
+        if (pList == null || pList.length < width * height) {
+            pList = new int[width * height];
+        }
+        int[] pList = this.pList;
+        float v0 = bytePixels != null ? bytePixels[start] & 0xff : shortPixels[start] & 0xffff;
+        pList[0] = start;
+        types[start] |= LISTED;
+        int listLen = 1;
+        double xEqual = start % width;
+        double yEqual = start / width;
+        int nEqual = 1;
+        for (int listI = 0; listI < listLen; listI++) {
+            int offset = pList[listI];
+            int x = offset % width;
+            int y = offset / width;
+            boolean isInner = (y != 0 && y != height - 1) && (x != 0 && x != width - 1);
+            for (int d = 0; d < 8; d++) {
+                int offset2 = offset + dirOffset[d];
+                if ((isInner || isWithin(x, y, d)) && (types[offset2] & LISTED) == 0) {
+                    float v2 = bytePixels != null ? bytePixels[offset2] & 0xff : shortPixels[offset2] & 0xffff;
+                    if (v2 >= v0 - (float) tolerance) {
+                        pList[listLen++] = offset2;
+                        types[offset2] |= LISTED;
+                        if (v2 == v0) {
+                            xEqual += x + DIR_X_OFFSET[d];
+                            yEqual += y + DIR_Y_OFFSET[d];
+                            nEqual++;
+                        }
+                    }
+                }
+            }
+        }
+        xEqual /= nEqual;
+        yEqual /= nEqual;
+        double minDist2 = 1e20;
+        int nearest = start;
+        for (int listI = 0; listI < listLen; listI++) {
+            int offset = pList[listI];
+            types[offset] &= ~LISTED;
+            float v = bytePixels != null ? bytePixels[offset] & 0xff : shortPixels[offset] & 0xffff;
+            if (v == v0) {
+                int x = offset % width;
+                int y = offset / width;
+                double dist2 = (xEqual - x) * (xEqual - x) + (yEqual - y) * (yEqual - y);
+                if (dist2 < minDist2) {
+                    minDist2 = dist2;
+                    nearest = offset;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Find all maxima and their prominence, the result is kept in xMaxima, yMaxima, prominenceMaxima and nMaxima.
+     *
+     * @param ip The input image
+     * @param excludeOnEdges Whether to exclude edge maxima
+     */
+    private void findMaximaProminence(ImageProcessor ip, boolean excludeOnEdges) {
+        if (ip.getCalibrationTable() != null || !(ip instanceof ByteProcessor || ip instanceof ShortProcessor)) {
+            throw new IllegalArgumentException("Prominences can only be calculated for uncalibrated 8-bit and 16-bit "
+                    + "images!");
+        }
+        if (dirOffset == null || width != ip.getWidth() || height != ip.getHeight()) {
+            makeDirectionOffsets(ip);
+        }
+        nMaxima = 0;
+        nProminences = 0;
+        Rectangle roi = ip.getRoi();
+        byte[] bytePixels = ip instanceof ByteProcessor ? (byte[]) ip.getPixels() : null;
+        short[] shortPixels = bytePixels == null ? (short[]) ip.getPixels() : null;
+        int nPixels = width * height;
+        int edge = nPixels;                         //a virtual set above all pixels, containing the image edge
+        if (orderBuffer == null || orderBuffer.length < nPixels) {
+            orderBuffer = new int[nPixels];
+            parentBuffer = new int[nPixels + 1];
+            peakBuffer = new int[nPixels + 1];
+            prominenceBuffer = new float[nPixels];
+        }
+        int[] order = orderBuffer;
+        int[] parent = parentBuffer;
+        int[] peak = peakBuffer;
+        float[] prominence = prominenceBuffer;
+        byte[] types = (byte[]) getTypeBuffer().getPixels();
+
+        //sort all pixels by value (counting sort), equal values by offset
+        int nLevels = bytePixels != null ? 256 : 65536;
+        if (levelBuffer == null || levelBuffer.length < nLevels + 1) {
+            levelBuffer = new int[nLevels + 1];
+        } else {
+            Arrays.fill(levelBuffer, 0, nLevels + 1, 0);
+        }
+        int[] levelStart = levelBuffer;
+        int globalMin = Integer.MAX_VALUE;
+        for (int i = 0; i < nPixels; i++) {
+            int v = bytePixels != null ? bytePixels[i] & 0xff : shortPixels[i] & 0xffff;
+            levelStart[v + 1]++;
+            if (globalMin > v) {
+                globalMin = v;
+            }
+        }
+        for (int level = 1; level <= nLevels; level++) {
+            levelStart[level] += levelStart[level - 1];
+        }
+        for (int i = 0; i < nPixels; i++) {
+            int v = bytePixels != null ? bytePixels[i] & 0xff : shortPixels[i] & 0xffff;
+            order[levelStart[v]++] = i;
+        }
+
+        //add the pixels from high to low, in the order in which analyzeAndMarkMaxima handles maxima
+        Arrays.fill(parent, 0, nPixels, -1);        //-1: not added yet
+        parent[edge] = edge;
+        peak[edge] = edge;
+        Thread thread = Thread.currentThread();
+        for (int k = nPixels - 1; k >= 0; k--) {
+            if (k % 100000 == 0 && thread.isInterrupted()) {
+                return;
+            }
+            int offset = order[k];
+            int v = bytePixels != null ? bytePixels[offset] & 0xff : shortPixels[offset] & 0xffff;
+            int x = offset % width;
+            int y = offset / width;
+            parent[offset] = offset;
+            peak[offset] = offset;
+            boolean isInner = (y != 0 && y != height - 1) && (x != 0 && x != width - 1);
+            for (int d = 0; d < 8; d++) {
+                if ((isInner || isWithin(x, y, d)) && parent[offset + dirOffset[d]] >= 0) {
+                    mergeSets(offset, offset + dirOffset[d], v, bytePixels, shortPixels, types);
+                }
+            }
+            if (excludeOnEdges && !isInner) {
+                mergeSets(offset, edge, v, bytePixels, shortPixels, types);
+            }
+        }
+        int lastPeak = peak[findSet(0)];
+        if (lastPeak != edge) {                     //the highest maximum never meets a higher one
+            prominence[lastPeak] = Float.POSITIVE_INFINITY;
+            types[lastPeak] |= MAX_POINT;
+        }
+
+        //collect the maxima in the roi, highest first like analyzeAndMarkMaxima
+        long[] maxPoints = getMaxPointBuffer(64);
+        int nMax = 0;
+        for (int y = roi.y; y < roi.y + roi.height; y++) {
+            for (int x = roi.x, p = x + y * width; x < roi.x + roi.width; x++, p++) {
+                if ((types[p] & MAX_POINT) != 0) {
+                    int v = bytePixels != null ? bytePixels[p] & 0xff : shortPixels[p] & 0xffff;
+                    if (v == globalMin) {
+                        continue;
+                    }
+                    if (nMax == maxPoints.length) {
+                        maxPoints = Arrays.copyOf(maxPoints, nMax * 2);
+                        maxPointBuffer = maxPoints;
+                    }
+                    maxPoints[nMax++] = (long) v << 32 | p;
+                }
+            }
+        }
+        Arrays.sort(maxPoints, 0, nMax);
+        if (prominenceMaxima == null || prominenceMaxima.length < nMax) {
+            prominenceMaxima = new float[Math.max(nMax, 256)];
+            equalMaxima = new boolean[prominenceMaxima.length];
+        }
+        for (int iMax = nMax - 1; iMax >= 0; iMax--) {
+            int offset = (int) maxPoints[iMax];
+            prominenceMaxima[nMaxima] = prominence[offset];
+            equalMaxima[nMaxima] = (types[offset] & EQUAL) != 0;
+            int center = plateauCenter(offset, bytePixels, shortPixels, types);
+            addMaximum(center % width, center / width, offset);
+        }
+        nProminences = nMaxima;
+    } //findMaximaProminence
+
+    /**
+     * Find the union-find set of a pixel, with path halving.
+     *
+     * @param offset The pixel offset
+     * @return The offset of the root of the set
+     */
+    private int findSet(int offset) {
+        int[] parent = parentBuffer;
+        while (parent[offset] != offset) {
+            parent[offset] = parent[parent[offset]];
+            offset = parent[offset];
+        }
+        return offset;
+    }
+
+    /**
+     * Merge the union-find sets of two pixels at a saddle. The lower peak of the two sets gets its prominence and is
+     * marked as MAX_POINT if it protrudes above the saddle. Peaks are compared like the sorted maxima of
+     * analyzeAndMarkMaxima: by value, then by pixel offset. The virtual edge set is higher than any pixel. When both
+     * peaks have the same height, the higher peak is marked as EQUAL: from now on, its set has more than one point of
+     * its height.
+     *
+     * @param offset1 A pixel in the first set
+     * @param offset2 A pixel in the second set
+     * @param saddle The value of the pixel where the sets meet
+     * @param bytePixels The pixels of a ByteProcessor, or null
+     * @param shortPixels The pixels of a ShortProcessor, or null
+     * @param types The pixel types
+     */
+    private void mergeSets(int offset1, int offset2, int saddle, byte[] bytePixels, short[] shortPixels,
+            byte[] types) {
+        int root1 = findSet(offset1);
+        int root2 = findSet(offset2);
+        if (root1 == root2) {
+            return;
+        }
+        int edge = width * height;
+        int peak1 = peakBuffer[root1];
+        int peak2 = peakBuffer[root2];
+        boolean firstHigher;
+        if (peak1 == edge || peak2 == edge) {
+            firstHigher = peak1 == edge;
+        } else {
+            int v1 = bytePixels != null ? bytePixels[peak1] & 0xff : shortPixels[peak1] & 0xffff;
+            int v2 = bytePixels != null ? bytePixels[peak2] & 0xff : shortPixels[peak2] & 0xffff;
+            firstHigher = v1 > v2 || (v1 == v2 && peak1 > peak2);
+            if (v1 == v2) {
+                types[firstHigher ? peak1 : peak2] |= EQUAL;
+            }
+        }
+        int lowerPeak = firstHigher ? peak2 : peak1;
+        int vLower = bytePixels != null ? bytePixels[lowerPeak] & 0xff : shortPixels[lowerPeak] & 0xffff;
+        if (vLower > saddle) {
+            prominenceBuffer[lowerPeak] = vLower - saddle;
+            types[lowerPeak] |= MAX_POINT;
+        }
+        if (firstHigher) {
+            parentBuffer[root2] = root1;
         } else {
-            return points;
+            parentBuffer[root1] = root2;
         }
     }
 
+    /**
+     * Get the position of a maximum with a plateau of equal pixels, like analyzeAndMarkMaxima: the plateau point
+     * nearest to the average position of the plateau.
+     *
+     * @param offset0 The pixel offset of the maximum
+     * @param bytePixels The pixels of a ByteProcessor, or null
+     * @param shortPixels The pixels of a ShortProcessor, or null
+     * @param types The pixel types, LISTED is used temporarily
+     * @return The pixel offset of the point standing for the maximum
+     */
+    private int plateauCenter(int offset0, byte[] bytePixels, short[] shortPixels, byte[] types) {
+        if (pList == null || pList.length < width * height) {
+            pList = new int[width * height];
+        }
+        int v0 = bytePixels != null ? bytePixels[offset0] & 0xff : shortPixels[offset0] & 0xffff;
+        pList[0] = offset0;
+        types[offset0] |= LISTED;
+        int listLen = 1;
+        double xEqual = 0;
+        double yEqual = 0;
+        for (int listI = 0; listI < listLen; listI++) {
+            int offset = pList[listI];
+            int x = offset % width;
+            int y = offset / width;
+            xEqual += x;
+            yEqual += y;
+            boolean isInner = (y != 0 && y != height - 1) && (x != 0 && x != width - 1);
+            for (int d = 0; d < 8; d++) {
+                int offset2 = offset + dirOffset[d];
+                if ((isInner || isWithin(x, y, d)) && (types[offset2] & LISTED) == 0) {
+                    int v2 = bytePixels != null ? bytePixels[offset2] & 0xff : shortPixels[offset2] & 0xffff;
+                    if (v2 == v0) {
+                        pList[listLen++] = offset2;
+                        types[offset2] |= LISTED;
+                    }
+                }
+            }
+        }
+        if (listLen == 1) {
+            types[offset0] &= ~LISTED;
+            return offset0;
+        }
+        xEqual /= listLen;
+        yEqual /= listLen;
+        double minDist2 = 1e20;
+        int nearest = offset0;
+        for (int listI = 0; listI < listLen; listI++) {
+            int offset = pList[listI];
+            types[offset] &= ~LISTED;
+            double dx = xEqual - offset % width;
+            double dy = yEqual - offset / width;
+            if (dx * dx + dy * dy < minDist2) {
+                minDist2 = dx * dx + dy * dy;
+                nearest = offset;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Get the reused pixel types image, cleared.
+     *
+     * @return A byte image of the current size, with all pixel types 0
+     */
+    private ByteProcessor getTypeBuffer() {
+        if (typeBuffer == null || typeBuffer.getWidth() != width || typeBuffer.getHeight() != height) {
+            typeBuffer = new ByteProcessor(width, height);
+        } else {
+            Arrays.fill((byte[]) typeBuffer.getPixels(), (byte) 0);
+        }
+        return typeBuffer;
+    }
+
     /**
      * Calculates peak positions of 1D array N.Vischer, 13-sep-2013
      *
@@ -360,39 +1010,69 @@ public class SilentMaximumFinder implements PlugInFilter {
      */
     public ByteProcessor findMaxima(ImageProcessor ip, double tolerance, double threshold,
             int outputType, boolean excludeOnEdges, boolean isEDM) {
-        if (dirOffset == null) {
+        if (dirOffset == null || width != ip.getWidth() || height != ip.getHeight()) {
             makeDirectionOffsets(ip);
         }
+        nMaxima = 0;                        //maxima of a previous call must not be returned for this image
+        nProminences = 0;
+        edgeRejections = 0;
         Rectangle roi = ip.getRoi();
         byte[] mask = ip.getMaskArray();
         if (threshold != ImageProcessor.NO_THRESHOLD && ip.getCalibrationTable() != null
                 && threshold > 0 && threshold < ip.getCalibrationTable().length) {
             threshold = ip.getCalibrationTable()[(int) threshold];   //convert threshold to calibrated
         }
-        ByteProcessor typeP = new ByteProcessor(width, height);     //will be a notepad for pixel types
+        boolean displayOrCount = outputType == POINT_SELECTION || outputType == LIST || outputType == COUNT;
+        ByteProcessor typeP = displayOrCount ? getTypeBuffer()      //will be a notepad for pixel types
+                : new ByteProcessor(width, height);                 //  and the output image for other types
         byte[] types = (byte[]) typeP.getPixels();
         float globalMin = Float.MAX_VALUE;
         float globalMax = -Float.MAX_VALUE;
-        for (int y = roi.y; y < roi.y + roi.height; y++) {         //find local minimum/maximum now
-            for (int x = roi.x; x < roi.x + roi.width; x++) {      //ImageStatistics won't work if we have no ImagePlus
-                float v = ip.getPixelValue(x, y);
-                if (globalMin > v) {
-                    globalMin = v;
-                }
-                if (globalMax < v) {
-                    globalMax = v;
+        //for segmentation, exclusion of edge maxima cannot be done now but has to be done after segmentation:
+        boolean excludeEdgesNow = excludeOnEdges && outputType != SEGMENTED;
+        long[] maxPoints;
+        int nMax;
+        if (!isEDM && ip.getCalibrationTable() == null
+                && (ip instanceof ByteProcessor || ip instanceof ShortProcessor)) {
+            //fast path for uncalibrated 8-bit and 16-bit images: one pass over the pixel array for min/max and maxima
+            int nCandidates = despeckleSource != null
+                    ? markDespeckledMaxima(despeckleSource, ip, types, excludeEdgesNow, minMax)
+                    : markIntegerMaxima(ip, types, excludeEdgesNow, minMax);
+            if (nCandidates < 0) {
+                return null;
+            }
+            globalMin = minMax[0];
+            globalMax = minMax[1];
+            if (threshold != ImageProcessor.NO_THRESHOLD) {
+                threshold -= (globalMax - globalMin) * 1e-6;//avoid rounding errors
+            }
+            nMax = getSortedIntegerMaxPoints(ip, types, nCandidates, minMax[0], minMax[1], threshold);
+            maxPoints = maxPointBuffer;
+        } else {
+            for (int y = roi.y; y < roi.y + roi.height; y++) {         //find local minimum/maximum now
+                for (int x = roi.x; x < roi.x + roi.width; x++) {      //ImageStatistics won't work if we have no ImagePlus
+                    float v = ip.getPixelValue(x, y);
+                    if (globalMin > v) {
+                        globalMin = v;
+                    }
+                    if (globalMax < v) {
+                        globalMax = v;
+                    }
                 }
             }
-        }
-        if (threshold != ImageProcessor.NO_THRESHOLD) {
-            threshold -= (globalMax - globalMin) * 1e-6;//avoid rounding errors
-        }        //for segmentation, exclusion of edge maxima cannot be done now but has to be done after segmentation:
-        boolean excludeEdgesNow = excludeOnEdges && outputType != SEGMENTED;
+            if (threshold != ImageProcessor.NO_THRESHOLD) {
+                threshold -= (globalMax - globalMin) * 1e-6;//avoid rounding errors
+            }
 
-        if (Thread.currentThread().isInterrupted()) {
-            return null;
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            maxPoints = getSortedMaxPoints(ip, typeP, excludeEdgesNow, isEDM, globalMin, globalMax, threshold);
+            if (maxPoints == null) {
+                return null;
+            }
+            nMax = maxPoints.length;
         }
-        long[] maxPoints = getSortedMaxPoints(ip, typeP, excludeEdgesNow, isEDM, globalMin, globalMax, threshold);
         if (Thread.currentThread().isInterrupted()) {
             return null;
         }
@@ -401,9 +1081,10 @@ public class SilentMaximumFinder implements PlugInFilter {
         {
             maxSortingError = 1.1f * (isEDM ? SQRT2 / 2f : (globalMax - globalMin) / 2e9f);
         }
-        analyzeAndMarkMaxima(ip, typeP, maxPoints, excludeEdgesNow, isEDM, globalMin, tolerance, outputType, maxSortingError);
+        analyzeAndMarkMaxima(ip, typeP, maxPoints, nMax, excludeEdgesNow, isEDM, globalMin, tolerance, outputType,
+                maxSortingError);
         //new ImagePlus("Pixel types",typeP.duplicate()).show();
-        if (outputType == POINT_SELECTION || outputType == LIST || outputType == COUNT) {
+        if (displayOrCount) {
             return null;
         }
 
@@ -414,7 +1095,7 @@ public class SilentMaximumFinder implements PlugInFilter {
             // may have a negative slope). outIp has background 0, maximum areas 255
             outIp = make8bit(ip, typeP, isEDM, globalMin, globalMax, threshold);
             //if (IJ.debugMode) new ImagePlus("pixel types precleanup", typeP.duplicate()).show();
-            cleanupMaxima(outIp, typeP, maxPoints);     //eliminate all the small maxima (i.e. those outside MAX_AREA)
+            cleanupMaxima(outIp, typeP, maxPoints, nMax);   //eliminate all the small maxima (i.e. those outside MAX_AREA)
             //if (IJ.debugMode) new ImagePlus("pixel types postcleanup", typeP).show();
             //if (IJ.debugMode) new ImagePlus("pre-watershed", outIp.duplicate()).show();
             if (!watershedSegment(outIp)) //do watershed segmentation
@@ -537,12 +1218,316 @@ public class SilentMaximumFinder implements PlugInFilter {
         return maxPoints;
     } //getSortedMaxPoints
 
+    /**
+     * Find the minimum and maximum value and mark all local maxima of an uncalibrated 8-bit or 16-bit image in a single
+     * pass, reading the pixel array directly instead of using getPixelValue. Since the minimum and threshold are not
+     * known during the pass, points at the minimum or below the threshold are marked too; they are removed by
+     * getSortedIntegerMaxPoints. With a MaximaScanner, the inner pixels of each row are left to the scanner.
+     *
+     * @param ip A ByteProcessor or ShortProcessor without calibration table
+     * @param types The pixel types, where the local maxima are marked as MAXIMUM
+     * @param excludeEdgesNow Whether to exclude edge pixels
+     * @param minMax Output: the minimum and maximum value of the image or roi
+     * @return The number of points marked as MAXIMUM, or -1 if interrupted
+     */
+    int markIntegerMaxima(ImageProcessor ip, byte[] types, boolean excludeEdgesNow, int[] minMax) {
+        Rectangle roi = ip.getRoi();
+        byte[] bytePixels = ip instanceof ByteProcessor ? (byte[]) ip.getPixels() : null;
+        short[] shortPixels = bytePixels == null ? (short[]) ip.getPixels() : null;
+        int nMax = 0;
+        minMax[0] = Integer.MAX_VALUE;
+        minMax[1] = Integer.MIN_VALUE;
+        Thread thread = Thread.currentThread();
+        for (int y = roi.y; y < roi.y + roi.height; y++) {
+            if (y % 50 == 0 && thread.isInterrupted()) {
+                return -1;
+            }
+            nMax += markIntegerLine(bytePixels, shortPixels, y, roi, types, excludeEdgesNow, minMax);
+        }
+        return thread.isInterrupted() ? -1 : nMax;
+    } //markIntegerMaxima
+
+    /**
+     * Mark the local maxima of one line of the roi of an uncalibrated 8-bit or 16-bit image, and lower or raise the
+     * minimum and maximum value by the values of the line (see markIntegerMaxima).
+     *
+     * @param bytePixels The pixels of a ByteProcessor, or null
+     * @param shortPixels The pixels of a ShortProcessor, or null
+     * @param y The line
+     * @param roi The roi of the image
+     * @param types The pixel types, where the local maxima are marked as MAXIMUM
+     * @param excludeEdgesNow Whether to exclude edge pixels
+     * @param minMax The minimum and maximum value so far
+     * @return The number of points marked as MAXIMUM
+     */
+    int markIntegerLine(byte[] bytePixels, short[] shortPixels, int y, Rectangle roi, byte[] types,
+            boolean excludeEdgesNow, int[] minMax) {
+        int globalMin = Integer.MAX_VALUE;
+        int globalMax = Integer.MIN_VALUE;
+        int nMax = 0;
+        int innerFrom = Math.max(roi.x, 1);                  //inner pixels of a row, for the scanner
+        int innerTo = Math.min(roi.x + roi.width, width - 1);
+        boolean innerRow = y != 0 && y != height - 1;
+        boolean useScanner = scanner != null && innerRow && innerFrom < innerTo;
+        for (int x = roi.x, i = x + y * width; x < roi.x + roi.width; x++, i++) {
+            if (useScanner && x == innerFrom) {                 //scan the inner pixels at once, continue after them
+                nMax += bytePixels != null
+                        ? scanner.scanBytes(bytePixels, width, i, i + innerTo - x, types, minMax)
+                        : scanner.scanShorts(shortPixels, width, i, i + innerTo - x, types, minMax);
+                i += innerTo - 1 - x;
+                x = innerTo - 1;
+                continue;
+            }
+            int v;
+            boolean isMax;
+            if (innerRow && x != 0 && x != width - 1) {         //inner pixel: compare with the 8 neighbors directly
+                if (bytePixels != null) {
+                    v = bytePixels[i] & 0xff;
+                    isMax = (bytePixels[i - 1] & 0xff) <= v && (bytePixels[i + 1] & 0xff) <= v
+                            && (bytePixels[i - width - 1] & 0xff) <= v && (bytePixels[i - width] & 0xff) <= v
+                            && (bytePixels[i - width + 1] & 0xff) <= v && (bytePixels[i + width - 1] & 0xff) <= v
+                            && (bytePixels[i + width] & 0xff) <= v && (bytePixels[i + width + 1] & 0xff) <= v;
+                } else {
+                    v = shortPixels[i] & 0xffff;
+                    isMax = (shortPixels[i - 1] & 0xffff) <= v && (shortPixels[i + 1] & 0xffff) <= v
+                            && (shortPixels[i - width - 1] & 0xffff) <= v && (shortPixels[i - width] & 0xffff) <= v
+                            && (shortPixels[i - width + 1] & 0xffff) <= v && (shortPixels[i + width - 1] & 0xffff) <= v
+                            && (shortPixels[i + width] & 0xffff) <= v && (shortPixels[i + width + 1] & 0xffff) <= v;
+                }
+            } else {                                            //edge pixel: only the neighbors within the image
+                v = bytePixels != null ? bytePixels[i] & 0xff : shortPixels[i] & 0xffff;
+                isMax = !excludeEdgesNow;
+                for (int d = 0; d < 8 && isMax; d++) {
+                    if (isWithin(x, y, d)) {
+                        int vNeighbor = bytePixels != null ? bytePixels[i + dirOffset[d]] & 0xff
+                                : shortPixels[i + dirOffset[d]] & 0xffff;
+                        isMax = vNeighbor <= v;
+                    }
+                }
+            }
+            if (globalMin > v) {
+                globalMin = v;
+            }
+            if (globalMax < v) {
+                globalMax = v;
+            }
+            if (isMax) {
+                types[i] = MAXIMUM;
+                nMax++;
+            }
+        } // for x
+        minMax[0] = Math.min(minMax[0], globalMin);
+        minMax[1] = Math.max(minMax[1], globalMax);
+        return nMax;
+    } //markIntegerLine
+
+    /**
+     * Despeckle an uncalibrated 8-bit or 16-bit image with the 3x3 median (see SilentRankFilters.median3x3Line) and
+     * mark the local maxima of the result, like markIntegerMaxima, in a single pass: each line of the median is
+     * calculated just before the local maxima of the line above are marked, so the three lines needed for that are
+     * still in the processor cache, and the despeckled image is not read again.
+     *
+     * @param source The image to despeckle, which is not modified
+     * @param ip The despeckled image (output), of the same type and size as the source and without roi
+     * @param types The pixel types, where the local maxima are marked as MAXIMUM
+     * @param excludeEdgesNow Whether to exclude edge pixels
+     * @param minMax Output: the minimum and maximum value of the despeckled image
+     * @return The number of points marked as MAXIMUM, or -1 if interrupted
+     */
+    int markDespeckledMaxima(ImageProcessor source, ImageProcessor ip, byte[] types, boolean excludeEdgesNow,
+            int[] minMax) {
+        Rectangle roi = ip.getRoi();
+        byte[] bytePixels = ip instanceof ByteProcessor ? (byte[]) ip.getPixels() : null;
+        short[] shortPixels = bytePixels == null ? (short[]) ip.getPixels() : null;
+        int nMax = 0;
+        minMax[0] = Integer.MAX_VALUE;
+        minMax[1] = Integer.MIN_VALUE;
+        Thread thread = Thread.currentThread();
+        for (int y = 0; y <= height; y++) {
+            if (y % 50 == 0 && thread.isInterrupted()) {
+                return -1;
+            }
+            if (y < height) {                                   //the median of line y, then the maxima of line y-1
+                long start = timeDespeckle ? System.nanoTime() : 0;
+                if (bytePixels != null) {
+                    SilentRankFilters.median3x3Line((byte[]) source.getPixels(), width, height, y, bytePixels);
+                } else {
+                    SilentRankFilters.median3x3Line((short[]) source.getPixels(), width, height, y, shortPixels);
+                }
+                if (timeDespeckle) {
+                    despeckleNanos += System.nanoTime() - start;
+                }
+            }
+            if (y > 0) {
+                nMax += markIntegerLine(bytePixels, shortPixels, y - 1, roi, types, excludeEdgesNow, minMax);
+            }
+        }
+        return thread.isInterrupted() ? -1 : nMax;
+    } //markDespeckledMaxima
+
+    /**
+     * Remove the points marked by markIntegerMaxima that are at the minimum or below the threshold, and sort the
+     * remaining maxima by value. Since there are at most 65536 levels, a counting sort is used: it takes linear time
+     * and, like Arrays.sort on the encoded values, sorts equal values by pixel offset.
+     *
+     * @param ip A ByteProcessor or ShortProcessor without calibration table
+     * @param types The pixel types, with the local maxima marked as MAXIMUM
+     * @param nCandidates The number of points marked as MAXIMUM
+     * @param globalMin The minimum value of the image or roi
+     * @param globalMax The maximum value of the image or roi
+     * @param threshold The threshold below which no pixels are processed. Ignored if ImageProcessor.NO_THRESHOLD
+     * @return The number of maxima, which are sorted by value in maxPointBuffer, encoded as in getSortedMaxPoints
+     */
+    int getSortedIntegerMaxPoints(ImageProcessor ip, byte[] types, int nCandidates, int globalMin,
+            int globalMax, double threshold) {
+        Rectangle roi = ip.getRoi();
+        byte[] bytePixels = ip instanceof ByteProcessor ? (byte[]) ip.getPixels() : null;
+        short[] shortPixels = bytePixels == null ? (short[]) ip.getPixels() : null;
+        boolean checkThreshold = threshold != ImageProcessor.NO_THRESHOLD;
+        if (offsetBuffer == null || offsetBuffer.length < nCandidates) {
+            offsetBuffer = new int[Math.max(nCandidates, 1024)];
+        }
+        if (levelBuffer == null || levelBuffer.length < globalMax - globalMin + 2) {
+            levelBuffer = new int[globalMax - globalMin + 2];
+        } else {
+            Arrays.fill(levelBuffer, 0, globalMax - globalMin + 2, 0);
+        }
+        int[] offsets = offsetBuffer;                           //the maxima in pixel order
+        int[] levelStart = levelBuffer;                         //first counts per level, then start index per level
+        int nMax = 0;
+        for (int y = roi.y; y < roi.y + roi.height; y++) {
+            for (int x = roi.x, p = x + y * width; x < roi.x + roi.width; x++, p++) {
+                if (types[p] == MAXIMUM) {
+                    int v = bytePixels != null ? bytePixels[p] & 0xff : shortPixels[p] & 0xffff;
+                    if (v == globalMin || (checkThreshold && v < threshold)) {
+                        types[p] = 0;                                   //not a maximum after all
+                        continue;
+                    }
+                    offsets[nMax++] = p;
+                    levelStart[v - globalMin + 1]++;
+                }
+            }
+        }
+        for (int level = 1; level < globalMax - globalMin + 2; level++) {
+            levelStart[level] += levelStart[level - 1];
+        }
+        float vFactor = (float) (2e9 / (globalMax - globalMin)); //same encoding as getSortedMaxPoints
+        long[] maxPoints = getMaxPointBuffer(nMax);
+        for (int iMax = 0; iMax < nMax; iMax++) {
+            int p = offsets[iMax];
+            int level = (bytePixels != null ? bytePixels[p] & 0xff : shortPixels[p] & 0xffff) - globalMin;
+            int iValue = (int) (level * vFactor);
+            maxPoints[levelStart[level]++] = (long) iValue << 32 | p;
+        }
+        return nMax;
+    } //getSortedIntegerMaxPoints
+
+    /**
+     * Get the reused array for sorted maxima.
+     *
+     * @param length The minimum length
+     * @return maxPointBuffer, enlarged if needed
+     */
+    private long[] getMaxPointBuffer(int length) {
+        if (maxPointBuffer == null || maxPointBuffer.length < length) {
+            maxPointBuffer = new long[Math.max(length, maxPointBuffer == null ? 1024 : 2 * maxPointBuffer.length)];
+        }
+        return maxPointBuffer;
+    }
+
+    /**
+     * Find the local maxima above a background level in an uncalibrated 8-bit or 16-bit image, for getMaximaSparse.
+     * Blocks of eight pixels are tested with a single branch, so runs of background pixels are skipped quickly.
+     *
+     * @param ip A ByteProcessor or ShortProcessor without calibration table
+     * @param level Only pixels above this value are considered
+     * @param excludeEdgesNow Whether to exclude edge pixels
+     * @return The number of maxima, which are sorted by value in maxPointBuffer (value in the upper 32 bits, pixel offset
+     * in the lower 32 bits), or -1 if interrupted
+     */
+    int getSparseMaxPoints(ImageProcessor ip, int level, boolean excludeEdgesNow) {
+        Rectangle roi = ip.getRoi();
+        byte[] bytePixels = ip instanceof ByteProcessor ? (byte[]) ip.getPixels() : null;
+        short[] shortPixels = bytePixels == null ? (short[]) ip.getPixels() : null;
+        long[] maxPoints = getMaxPointBuffer(64);
+        int nMax = 0;
+        Thread thread = Thread.currentThread();
+        for (int y = roi.y; y < roi.y + roi.height; y++) {
+            if (y % 50 == 0 && thread.isInterrupted()) {
+                return -1;
+            }
+            int i = roi.x + y * width;
+            int end = i + roi.width;
+            while (i < end) {
+                if (bytePixels != null) {          //skip background, 8 pixels at a time
+                    while (i + 8 <= end && !((bytePixels[i] & 0xff) > level | (bytePixels[i + 1] & 0xff) > level
+                            | (bytePixels[i + 2] & 0xff) > level | (bytePixels[i + 3] & 0xff) > level
+                            | (bytePixels[i + 4] & 0xff) > level | (bytePixels[i + 5] & 0xff) > level
+                            | (bytePixels[i + 6] & 0xff) > level | (bytePixels[i + 7] & 0xff) > level)) {
+                        i += 8;
+                    }
+                } else {
+                    while (i + 8 <= end && !((shortPixels[i] & 0xffff) > level | (shortPixels[i + 1] & 0xffff) > level
+                            | (shortPixels[i + 2] & 0xffff) > level | (shortPixels[i + 3] & 0xffff) > level
+                            | (shortPixels[i + 4] & 0xffff) > level | (shortPixels[i + 5] & 0xffff) > level
+                            | (shortPixels[i + 6] & 0xffff) > level | (shortPixels[i + 7] & 0xffff) > level)) {
+                        i += 8;
+                    }
+                }
+                int blockEnd = Math.min(i + 8, end);
+                for (; i < blockEnd; i++) {         //check the pixels of a block with at least one candidate
+                    int v = bytePixels != null ? bytePixels[i] & 0xff : shortPixels[i] & 0xffff;
+                    if (v > level && isIntegerMaximum(bytePixels, shortPixels, i - y * width, y, i, v, excludeEdgesNow)) {
+                        if (nMax == maxPoints.length) {
+                            maxPoints = Arrays.copyOf(maxPoints, nMax * 2);
+                            maxPointBuffer = maxPoints;
+                        }
+                        maxPoints[nMax++] = (long) v << 32 | i;
+                    }
+                }
+            }
+        }
+        Arrays.sort(maxPoints, 0, nMax);        //only few maxima, no need for a counting sort
+        return nMax;
+    } //getSparseMaxPoints
+
+    /**
+     * Check whether a pixel of an 8-bit or 16-bit image is a local maximum (no neighbor is higher).
+     *
+     * @param bytePixels The pixels of a ByteProcessor, or null
+     * @param shortPixels The pixels of a ShortProcessor, or null
+     * @param x x-position of the point
+     * @param y y-position of the point
+     * @param i The pixel offset of the point
+     * @param v The value of the point
+     * @param excludeEdgesNow Whether edge pixels are never a maximum
+     * @return Whether the point is a local maximum
+     */
+    boolean isIntegerMaximum(byte[] bytePixels, short[] shortPixels, int x, int y, int i, int v,
+            boolean excludeEdgesNow) {
+        boolean isInner = (y != 0 && y != height - 1) && (x != 0 && x != width - 1);
+        if (excludeEdgesNow && !isInner) {
+            return false;
+        }
+        for (int d = 0; d < 8; d++) {
+            if (isInner || isWithin(x, y, d)) {
+                int vNeighbor = bytePixels != null ? bytePixels[i + dirOffset[d]] & 0xff
+                        : shortPixels[i + dirOffset[d]] & 0xffff;
+                if (vNeighbor > v) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Check all maxima in list maxPoints, mark type of the points in typeP
      *
      * @param ip the image to be analyzed
      * @param typeP 8-bit image, here the point types are marked by type: MAX_POINT, etc.
      * @param maxPoints input: a list of all local maxima, sorted by height. Lower 32 bits are pixel offset
+     * @param nMax the number of maxima in maxPoints
      * @param excludeEdgesNow whether to avoid edge maxima
      * @param isEDM whether ip is a (float) Euclidian distance map
      * @param globalMin minimum pixel value in ip
@@ -552,24 +1537,29 @@ public class SilentMaximumFinder implements PlugInFilter {
      * or because sorting does not take the height correction in 'trueEdmHeight' into account
      * @param outputType
      */
-    void analyzeAndMarkMaxima(ImageProcessor ip, ByteProcessor typeP, long[] maxPoints, boolean excludeEdgesNow,
+    void analyzeAndMarkMaxima(ImageProcessor ip, ByteProcessor typeP, long[] maxPoints, int nMax, boolean excludeEdgesNow,
             boolean isEDM, float globalMin, double tolerance, int outputType, float maxSortingError) {
         byte[] types = (byte[]) typeP.getPixels();
         float[] edmPixels = isEDM ? (float[]) ip.getPixels() : null;
-        int nMax = maxPoints.length;
-        int[] pList = new int[width * height];       //here we enter points starting from a maximum
-        Vector xyVector = null;
+        boolean integerPixels = !isEDM && ip.getCalibrationTable() == null;  //read 8-bit and 16-bit pixels directly
+        byte[] bytePixels = integerPixels && ip instanceof ByteProcessor ? (byte[]) ip.getPixels() : null;
+        short[] shortPixels = integerPixels && ip instanceof ShortProcessor ? (short[]) ip.getPixels() : null;
+        if (pList == null || pList.length < width * height) {
+            pList = new int[width * height];        //here we enter points starting from a maximum
+        }
+        int[] pList = this.pList;
+        nMaxima = 0;
+        nProminences = 0;
+        edgeRejections = 0;
         Roi roi = null;
         boolean displayOrCount = outputType == POINT_SELECTION || outputType == LIST || outputType == COUNT;
-        if (displayOrCount) {
-            xyVector = new Vector();
-        }
         if (imp != null) {
             roi = imp.getRoi();
         }
 
         for (int iMax = nMax - 1; iMax >= 0; iMax--) {    //process all maxima now, starting from the highest
             if (iMax % 100 == 0 && Thread.currentThread().isInterrupted()) {
+                nMaxima = 0;
                 return;
             }
             int offset0 = (int) maxPoints[iMax];     //type cast gets 32 lower bits, where pixel index is encoded
@@ -581,7 +1571,14 @@ public class SilentMaximumFinder implements PlugInFilter {
             //we create a list of connected points and start the list at the current maximum
             int x0 = offset0 % width;
             int y0 = offset0 / width;
-            float v0 = isEDM ? trueEdmHeight(x0, y0, ip) : ip.getPixelValue(x0, y0);
+            float v0;
+            if (bytePixels != null) {
+                v0 = bytePixels[offset0] & 0xff;
+            } else if (shortPixels != null) {
+                v0 = shortPixels[offset0] & 0xffff;
+            } else {
+                v0 = isEDM ? trueEdmHeight(x0, y0, ip) : ip.getPixelValue(x0, y0);
+            }
             boolean sortingError;
             do {                                    //repeat if we have encountered a sortingError
                 pList[0] = offset0;
@@ -613,7 +1610,14 @@ public class SilentMaximumFinder implements PlugInFilter {
                             }
                             int x2 = x + DIR_X_OFFSET[d];
                             int y2 = y + DIR_Y_OFFSET[d];
-                            float v2 = isEDM ? trueEdmHeight(x2, y2, ip) : ip.getPixelValue(x2, y2);
+                            float v2;
+                            if (bytePixels != null) {
+                                v2 = bytePixels[offset2] & 0xff;
+                            } else if (shortPixels != null) {
+                                v2 = shortPixels[offset2] & 0xffff;
+                            } else {
+                                v2 = isEDM ? trueEdmHeight(x2, y2, ip) : ip.getPixelValue(x2, y2);
+                            }
                             if (v2 > v0 + maxSortingError) {
                                 maxPossible = false;    //we have reached a higher point, thus it is no maximum
                                 //if(x0<25&&y0<20)IJ.write("x0,y0="+x0+","+y0+":stop at higher neighbor from x,y="+x+","+y+", dir="+d+",value,value2,v2-v="+v0+","+v2+","+(v2-v0));
@@ -633,6 +1637,10 @@ public class SilentMaximumFinder implements PlugInFilter {
                                 if (x2 == 0 || x2 == width - 1 || y2 == 0 || y2 == height - 1) {
                                     isEdgeMaximum = true;
                                     if (excludeEdgesNow) {
+                                        if (maxPossible) {  //remember which edge excluded it (see getLastEdgeRejections)
+                                            edgeRejections |= (x2 == 0 ? EDGE_LEFT : 0) | (x2 == width - 1 ? EDGE_RIGHT : 0)
+                                                    | (y2 == 0 ? EDGE_TOP : 0) | (y2 == height - 1 ? EDGE_BOTTOM : 0);
+                                        }
                                         maxPossible = false;
                                         break;          //we have an edge maximum;
                                     }
@@ -679,11 +1687,11 @@ public class SilentMaximumFinder implements PlugInFilter {
                     if (maxPossible) {
                         int offset = pList[nearestI];
                         types[offset] |= MAX_POINT;
-                        if (displayOrCount && !(this.excludeOnEdges && isEdgeMaximum)) {
+                        if (displayOrCount && !(excludeEdgesNow && isEdgeMaximum)) {
                             int x = offset % width;
                             int y = offset / width;
                             if (roi == null || roi.contains(x, y)) {
-                                xyVector.addElement(new int[]{x, y});
+                                addMaximum(x, y, offset0);
                             }
                         }
                     }
@@ -692,31 +1700,24 @@ public class SilentMaximumFinder implements PlugInFilter {
         } // for all maxima iMax
 
         if (Thread.currentThread().isInterrupted()) {
+            nMaxima = 0;
             return;
         }
-        if (displayOrCount && xyVector != null) {
-            int npoints = xyVector.size();
+        if (displayOrCount) {
+            int npoints = nMaxima;
             if (outputType == POINT_SELECTION && npoints > 0) {
-                int[] xpoints = new int[npoints];
-                int[] ypoints = new int[npoints];
-                for (int i = 0; i < npoints; i++) {
-                    int[] xy = (int[]) xyVector.elementAt(i);
-                    xpoints[i] = xy[0];
-                    ypoints[i] = xy[1];
-                }
                 if (imp != null) {
-                    PointRoi points = new PointRoi(xpoints, ypoints, npoints);
+                    PointRoi points = new PointRoi(Arrays.copyOf(xMaxima, npoints), Arrays.copyOf(yMaxima, npoints),
+                            npoints);
                     imp.setRoi(points);
                 }
-                points = new Polygon(xpoints, ypoints, npoints);
             } else if (outputType == LIST) {
                 Analyzer.resetCounter();
                 ResultsTable rt = ResultsTable.getResultsTable();
                 for (int i = 0; i < npoints; i++) {
-                    int[] xy = (int[]) xyVector.elementAt(i);
                     rt.incrementCounter();
-                    rt.addValue("X", xy[0]);
-                    rt.addValue("Y", xy[1]);
+                    rt.addValue("X", xMaxima[i]);
+                    rt.addValue("Y", yMaxima[i]);
                 }
                 rt.show("Results");
             } else if (outputType == COUNT) {
@@ -751,6 +1752,26 @@ public class SilentMaximumFinder implements PlugInFilter {
         }
     } //void analyzeAndMarkMaxima
 
+    /**
+     * Add a maximum to xMaxima, yMaxima.
+     *
+     * @param x x-position of the maximum
+     * @param y y-position of the maximum
+     * @param start pixel offset where the analysis of the maximum started
+     */
+    private void addMaximum(int x, int y, int start) {
+        if (xMaxima == null || nMaxima == xMaxima.length) {
+            int length = xMaxima == null ? 256 : 2 * nMaxima;
+            xMaxima = xMaxima == null ? new int[length] : Arrays.copyOf(xMaxima, length);
+            yMaxima = yMaxima == null ? new int[length] : Arrays.copyOf(yMaxima, length);
+            startMaxima = startMaxima == null ? new int[length] : Arrays.copyOf(startMaxima, length);
+        }
+        xMaxima[nMaxima] = x;
+        yMaxima[nMaxima] = y;
+        startMaxima[nMaxima] = start;
+        nMaxima++;
+    }
+
     /**
      * Create an 8-bit image by scaling the pixel values of ip to 1-254 (<lower threshold 0) and mark maximum areas as
      * 255. For use as input for watershed segmentation @param ip The original image that should be segmented @param
@@ -858,11 +1879,11 @@ public class SilentMaximumFinder implements PlugInFilter {
      * @param outIp the image containing the pixel values
      * @param typeP the types of the pixels are marked here
      * @param maxPoints array containing the coordinates of all maxima that might be relevant
+     * @param nMax the number of maxima in maxPoints
      */
-    void cleanupMaxima(ByteProcessor outIp, ByteProcessor typeP, long[] maxPoints) {
+    void cleanupMaxima(ByteProcessor outIp, ByteProcessor typeP, long[] maxPoints, int nMax) {
         byte[] pixels = (byte[]) outIp.getPixels();
         byte[] types = (byte[]) typeP.getPixels();
-        int nMax = maxPoints.length;
         int[] pList = new int[width * height];
         for (int iMax = nMax - 1; iMax >= 0; iMax--) {
             int offset0 = (int) maxPoints[iMax];     //type cast gets lower 32 bits where pixel offset is encoded
@@ -1349,8 +2370,7 @@ public class SilentMaximumFinder implements PlugInFilter {
         intEncodeShift = shift;
         //IJ.log("masks (hex):"+Integer.toHexString(xMask)+","+Integer.toHexString(xMask)+"; shift="+shift);
         dirOffset = new int[]{-width, -width + 1, +1, +width + 1, +width, +width - 1, -1, -width - 1};
-        //dirOffset is created last, so check for it being null before makeDirectionOffsets
-        //(in case we have multiple threads using the same MaximumFinder)
+        //dirOffset is created last; instances are not shared between threads (see class notes)
     }
 
     /**
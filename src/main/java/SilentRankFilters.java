@@ -6,6 +6,16 @@ import ij.process.*;
 import ij.plugin.ContrastEnhancer;
 import java.awt.*;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This plugin implements the Mean, Minimum, Maximum, Variance, Median, Open Maxima, Close Maxima, Remove Outliers,
@@ -19,6 +29,8 @@ public class SilentRankFilters implements PlugInFilter {
     public static final int MEAN = 0, MIN = 1, MAX = 2, VARIANCE = 3, MEDIAN = 4, OUTLIERS = 5, DESPECKLE = 6, REMOVE_NAN = 7,
             OPEN = 8, CLOSE = 9;
     public static final int BRIGHT_OUTLIERS = 0, DARK_OUTLIERS = 1;
+    // Parallelization of stacks: several threads for the lines of each slice, or one thread per slice
+    public static final int PARALLEL_AUTO = -1, PARALLEL_LINES = 0, PARALLEL_SLICES = 1;
     private static final String[] outlierStrings = {"Bright", "Dark"};
     private static int HIGHEST_FILTER = CLOSE;
     // Filter parameters
@@ -39,10 +51,24 @@ public class SilentRankFilters implements PlugInFilter {
     private int pass;
     // M u l t i t h r e a d i n g - r e l a t e d
     private int numThreads = Prefs.getThreads();
+    // The helper threads of all instances come from one bounded pool, instead of new threads for each image:
+    // as many threads as processors, minus the one of the caller. They are daemons and stop after a while without work.
+    private static final int N_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final ExecutorService WORKERS = createWorkerPool(N_WORKERS);
+    // A filter only gets the pool threads that are idle, since all its threads must run at the same time
+    private static final Semaphore IDLE_WORKERS = new Semaphore(N_WORKERS);
+    // The number of images being filtered at this moment (by all instances), which share the processors
+    private static final AtomicInteger ACTIVE_FILTERINGS = new AtomicInteger();
+    // The minimum number of lines per thread for the 3x3 median
+    private static final int MIN_3X3_LINES = 64;
+    // Stacks with smaller slices are filtered with one thread per slice, even if there are fewer slices than threads
+    private static final int MIN_LINES_PIXELS = 256 * 256;
+    private int stackStrategy = PARALLEL_AUTO;	// the parallelization of stacks, PARALLEL_AUTO to choose it
+    private int lastStackStrategy = PARALLEL_AUTO;	// the parallelization used for the last stack
     // Current state of processing is in class variables. Thus, stack parallelization must be done
     // ONLY with one thread for the image (not using these class variables):
     private int highestYinCache;		// the highest line read into the cache so far
-    private boolean threadWaiting;		// a thread waits until it may read data
+    private volatile int nThreadsWaiting;	// the number of threads that wait until they may read data
     private boolean copyingToCache;		// whether a thread is currently copying data to the cache
 
     private boolean isMultiStepFilter(int filterType) {
@@ -179,6 +205,118 @@ public class SilentRankFilters implements PlugInFilter {
         }
     }
 
+    /**
+     * Filters all slices of a stack by any method except 'despecle' (for 'despeckle', use 'median' and radius=1).
+     * Virtual stacks are not supported: the filtered slices would not be kept.
+     *
+     * @param stack The stack subject to filtering
+     * @param radius The kernel radius
+     * @param filterType as defined above; DESPECKLE is not a valid type here; use median and a radius of 1.0 instead
+     */
+    public void rank(ImageStack stack, double radius, int filterType) {
+        rank(stack, radius, filterType, 0, 50f);
+    }
+
+    /**
+     * Filters all slices of a stack by any method except 'despecle' (for 'despeckle', use 'median' and radius=1).
+     * The slices are either filtered one after the other, each with several threads for its lines (PARALLEL_LINES),
+     * or several slices at once with one thread each (PARALLEL_SLICES), as set with setStackStrategy. Threads
+     * filtering lines have to wait for each other for each line, which takes more time than filtering the lines of
+     * small slices; with PARALLEL_AUTO, the slices are filtered in parallel if there are at least as many slices as
+     * threads, or if the slices are small. getLastStackStrategy tells which was used.
+     * Virtual stacks are not supported: the filtered slices would not be kept.
+     *
+     * @param stack The stack subject to filtering
+     * @param radius The kernel radius
+     * @param filterType as defined above; DESPECKLE is not a valid type here; use median and a radius of 1.0 instead
+     * @param whichOutliers BRIGHT_OUTLIERS or DARK_OUTLIERS for 'outliers' filter
+     * @param threshold Threshold for 'outliers' filter
+     */
+    public void rank(final ImageStack stack, final double radius, final int filterType, final int whichOutliers,
+            final float threshold) {
+        int nSlices = stack.getSize();
+        int nThreads = threadsForFiltering();
+        if (stackStrategy != PARALLEL_AUTO) {
+            lastStackStrategy = stackStrategy;
+        } else if (nThreads > 1 && nSlices > 1
+                && (nSlices >= nThreads || stack.getWidth() * stack.getHeight() < MIN_LINES_PIXELS)) {
+            lastStackStrategy = PARALLEL_SLICES;
+        } else {
+            lastStackStrategy = PARALLEL_LINES;
+        }
+        if (lastStackStrategy == PARALLEL_LINES) {
+            for (int n = 1; n <= nSlices && !Thread.currentThread().isInterrupted(); n++) {
+                rank(stack.getProcessor(n), radius, filterType, whichOutliers, threshold);
+            }
+            return;
+        }
+
+        final AtomicInteger nextSlice = new AtomicInteger(1);	//threads take the next slice that is not filtered
+        int nWorkers = 0;				// reserve idle pool threads, each filters slices with one thread
+        while (nWorkers < Math.min(nThreads, nSlices) - 1 && IDLE_WORKERS.tryAcquire()) {
+            nWorkers++;
+        }
+        final Future<?>[] helpers = new Future<?>[nWorkers];
+        for (int t = 0; t < nWorkers; t++) {
+            helpers[t] = WORKERS.submit(
+                    new Runnable() {
+                final public void run() {
+                    try {
+                        filterSlices(stack, nextSlice, radius, filterType, whichOutliers, threshold);
+                    } finally {
+                        IDLE_WORKERS.release();
+                    }
+                }
+            });
+        }
+
+        filterSlices(stack, nextSlice, radius, filterType, whichOutliers, threshold);
+        for (final Future<?> helper : helpers) {
+            try {
+                helper.get();
+            } catch (InterruptedException e) {
+                nextSlice.set(nSlices + 1);			// stop the other threads after their current slice
+                Thread.currentThread().interrupt();	  //keep interrupted status (PlugInFilterRunner needs it)
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    // Filter the next slice of the stack with one thread, until all slices are taken or the thread is interrupted
+    private void filterSlices(ImageStack stack, AtomicInteger nextSlice, double radius, int filterType,
+            int whichOutliers, float threshold) {
+        SilentRankFilters filter = new SilentRankFilters();	// the current state of processing is per instance
+        filter.numThreads = 1;
+        for (int n = nextSlice.getAndIncrement(); n <= stack.getSize(); n = nextSlice.getAndIncrement()) {
+            filter.rank(stack.getProcessor(n), radius, filterType, whichOutliers, threshold);
+            if (Thread.currentThread().isInterrupted()) {
+                nextSlice.set(stack.getSize() + 1);	// stop the other threads after their current slice
+            }
+        }
+    }
+
+    /**
+     * Set how stacks are filtered in parallel, see rank(ImageStack, double, int, int, float).
+     *
+     * @param strategy PARALLEL_AUTO (the default), PARALLEL_LINES or PARALLEL_SLICES
+     */
+    public void setStackStrategy(int strategy) {
+        if (strategy < PARALLEL_AUTO || strategy > PARALLEL_SLICES) {
+            throw new IllegalArgumentException("Unknown stack strategy: " + strategy);
+        }
+        stackStrategy = strategy;
+    }
+
+    /**
+     * How the last stack was filtered in parallel, see rank(ImageStack, double, int, int, float).
+     *
+     * @return PARALLEL_LINES or PARALLEL_SLICES, or PARALLEL_AUTO if no stack has been filtered
+     */
+    public int getLastStackStrategy() {
+        return lastStackStrategy;
+    }
+
     // Filter a grayscale image or one channel of an RGB image with several threads
     // Implementation: each thread uses the same input buffer (cache), always works on the next unfiltered line
     // Usually, one thread reads reads several lines into the cache, while the others are processing the data.
@@ -187,57 +325,179 @@ public class SilentRankFilters implements PlugInFilter {
     // by an interrupted preview thread after the main calculation has been started.
     private void doFiltering(final ImageProcessor ip, final int[] lineRadii, final int filterType,
             final float minMaxOutliersSign, final float threshold, final int colorChannel, final boolean[] aborted) {
-        Rectangle roi = ip.getRoi();
-        int width = ip.getWidth();
-        Object pixels = ip.getPixels();
-        int numThreads = Math.min(roi.height, this.numThreads);
+        int numThreads = Math.min(ip.getRoi().height, threadsForFiltering());
         if (numThreads == 0) {
             return;
         }
+        Object pixels = ip.getPixels();
+        boolean median3x3 = filterType == MEDIAN && kHeight(lineRadii) == 3 && kNPoints(lineRadii) == 9
+                && (pixels instanceof byte[] || pixels instanceof short[]);
+        if (median3x3) {				// fast: do not use threads for a few lines
+            numThreads = Math.min(numThreads, (ip.getRoi().height + MIN_3X3_LINES - 1) / MIN_3X3_LINES);
+        }
+        int nWorkers = 0;				// reserve idle pool threads, so they start right away
+        while (nWorkers < numThreads - 1 && IDLE_WORKERS.tryAcquire()) {
+            nWorkers++;
+        }
+        ACTIVE_FILTERINGS.incrementAndGet();
+        try {
+            if (median3x3) {
+                median3x3(ip, aborted, nWorkers + 1);
+            } else {
+                doFiltering(ip, lineRadii, filterType, minMaxOutliersSign, threshold, colorChannel, aborted,
+                        nWorkers + 1);
+            }
+        } finally {
+            ACTIVE_FILTERINGS.decrementAndGet();
+        }
+        pass++;
+    }
+
+    // The number of threads for filtering one image: at most numThreads, shared with the other images that are
+    // filtered at the same time, e.g. the slices of a stack processed in parallel (PARALLELIZE_STACKS) or the frames of
+    // PhotonBatchRunner. Inside a fork/join task the outer parallelism already uses all processors: only one thread.
+    private int threadsForFiltering() {
+        if (ForkJoinTask.inForkJoinPool()) {
+            return 1;
+        }
+        return Math.max(1, numThreads / (ACTIVE_FILTERINGS.get() + 1));
+    }
 
+    // numThreads - 1 pool threads are reserved, they are released when their part is done
+    private void doFiltering(final ImageProcessor ip, final int[] lineRadii, final int filterType,
+            final float minMaxOutliersSign, final float threshold, final int colorChannel, final boolean[] aborted,
+            int numThreads) {
+        Rectangle roi = ip.getRoi();
         int kHeight = kHeight(lineRadii);
         int kRadius = kRadius(lineRadii);
         final int cacheWidth = roi.width + 2 * kRadius;
         final int cacheHeight = kHeight + (numThreads > 1 ? 2 * numThreads : 0);
         // 'cache' is the input buffer. Each line y in the image is mapped onto cache line y%cacheHeight
-        final float[] cache = new float[cacheWidth * cacheHeight];
+        // 8-bit and 16-bit data stay integers for median, min and max: a short cache, half the size of a float cache
+        Object pixels = ip.getPixels();
+        boolean integerCache = (pixels instanceof byte[] || pixels instanceof short[])
+                && (filterType == MEDIAN || filterType == MIN || filterType == MAX);
+        final Object cache = integerCache ? new short[cacheWidth * cacheHeight] : new float[cacheWidth * cacheHeight];
         highestYinCache = Math.max(roi.y - kHeight / 2, 0) - 1; //this line+1 will be read into the cache first 
 
         final int[] yForThread = new int[numThreads];		//threads announce here which line they currently process
         Arrays.fill(yForThread, -1);
         yForThread[numThreads - 1] = roi.y - 1;					//first thread started should begin at roi.y
         //IJ.log("going to filter lines "+roi.y+"-"+(roi.y+roi.height-1)+"; cacheHeight="+cacheHeight);
-        final Thread[] threads = new Thread[numThreads - 1];	//thread number 0 is this one, not in the array
+        final Future<?>[] helpers = new Future<?>[numThreads - 1];	//thread number 0 is this one, not in the array
         for (int t = numThreads - 1; t > 0; t--) {
             final int ti = t;
-            final Thread thread = new Thread(
+            helpers[ti - 1] = WORKERS.submit(
                     new Runnable() {
                 final public void run() {
-                    doFiltering(ip, lineRadii, cache, cacheWidth, cacheHeight,
-                            filterType, minMaxOutliersSign, threshold, colorChannel,
-                            yForThread, ti, aborted);
+                    try {
+                        doFiltering(ip, lineRadii, cache, cacheWidth, cacheHeight,
+                                filterType, minMaxOutliersSign, threshold, colorChannel,
+                                yForThread, ti, aborted);
+                    } finally {
+                        IDLE_WORKERS.release();
+                    }
                 }
-            },
-                    "RankFilters-" + t);
-            thread.setPriority(Thread.currentThread().getPriority());
-            thread.start();
-            threads[ti - 1] = thread;
+            });
         }
 
         doFiltering(ip, lineRadii, cache, cacheWidth, cacheHeight,
                 filterType, minMaxOutliersSign, threshold, colorChannel,
                 yForThread, 0, aborted);
-        for (final Thread thread : threads) {
+        for (final Future<?> helper : helpers) {
             try {
-                if (thread != null) {
-                    thread.join();
+                helper.get();
+            } catch (InterruptedException e) {
+                aborted[0] = true;
+                Thread.currentThread().interrupt();	  //keep interrupted status (PlugInFilterRunner needs it)
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    // 3x3 median (radius 1, e.g. 'despeckle') of an 8-bit or 16-bit image, directly on the pixels, without the
+    // cache and kernel pointers: each thread calculates a band of lines in place with median3x3Line, keeping the
+    // input of the line above in a buffer of one line. The line below a band belongs to the next band, so it is
+    // copied before the threads start. Only the columns of the roi and one column at each side are copied.
+    // numThreads - 1 pool threads are reserved, they are released when their band is done
+    private void median3x3(final ImageProcessor ip, final boolean[] aborted, int numThreads) {
+        final Rectangle roi = ip.getRoi();
+        final Object pixels = ip.getPixels();
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final int x0 = Math.max(roi.x - 1, 0);                 //the columns read: the roi and a border of one pixel
+        final int lineLength = Math.min(roi.x + roi.width + 1, width) - x0;
+        final Object[] borderLines = new Object[numThreads];	//the input of the line below each band
+        for (int t = 0; t < numThreads; t++) {
+            int yEnd = roi.y + roi.height * (t + 1) / numThreads;
+            borderLines[t] = pixels instanceof byte[] ? new byte[lineLength] : new short[lineLength];
+            System.arraycopy(pixels, Math.min(yEnd, height - 1) * width + x0, borderLines[t], 0, lineLength);
+        }
+        final Future<?>[] helpers = new Future<?>[numThreads - 1];	//thread number 0 is this one, not in the array
+        for (int t = numThreads - 1; t > 0; t--) {
+            final int yStart = roi.y + roi.height * t / numThreads;
+            final int yEnd = roi.y + roi.height * (t + 1) / numThreads;
+            final Object borderLine = borderLines[t];
+            final Object lineAbove = pixels instanceof byte[] ? new byte[lineLength] : new short[lineLength];
+            System.arraycopy(pixels, (yStart - 1) * width + x0, lineAbove, 0, lineLength); //yStart > roi.y >= 0
+            helpers[t - 1] = WORKERS.submit(
+                    new Runnable() {
+                final public void run() {
+                    try {
+                        median3x3(ip, pixels, lineAbove, borderLine, x0, yStart, yEnd, aborted, false);
+                    } finally {
+                        IDLE_WORKERS.release();
+                    }
                 }
+            });
+        }
+
+        int yEnd = roi.y + roi.height / numThreads;
+        Object lineAbove = pixels instanceof byte[] ? new byte[lineLength] : new short[lineLength];
+        System.arraycopy(pixels, Math.max(roi.y - 1, 0) * width + x0, lineAbove, 0, lineLength);
+        median3x3(ip, pixels, lineAbove, borderLines[0], x0, roi.y, yEnd, aborted, true);
+        for (final Future<?> helper : helpers) {
+            try {
+                helper.get();
             } catch (InterruptedException e) {
                 aborted[0] = true;
                 Thread.currentThread().interrupt();	  //keep interrupted status (PlugInFilterRunner needs it)
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
             }
         }
-        pass++;
+    }
+
+    // 3x3 median of the lines yStart to yEnd (exclusive) of one thread, in place; the main thread checks for abort.
+    // 'lineAbove' is the input of line yStart - 1 (or of line 0 at the top edge), 'lineBelow' that of line yEnd
+    // (or of the last line at the bottom edge). Both start at column x0; lineAbove is reused as a buffer.
+    private void median3x3(ImageProcessor ip, Object pixels, Object lineAbove, Object lineBelow, int x0, int yStart,
+            int yEnd, boolean[] aborted, boolean mainThread) {
+        Rectangle roi = ip.getRoi();
+        int width = ip.getWidth();
+        int lineLength = Math.min(roi.x + roi.width + 1, width) - x0;
+        Object lineInput = pixels instanceof byte[] ? new byte[lineLength] : new short[lineLength];
+        for (int y = yStart; y < yEnd && !aborted[0]; y++) {
+            if (mainThread && (Thread.currentThread().isInterrupted() || (imp != null && IJ.escapePressed()))) {
+                aborted[0] = true;
+                break;
+            }
+            int p = y * width;
+            System.arraycopy(pixels, p + x0, lineInput, 0, lineLength);   //the input of line y, for line y + 1
+            Object below = y + 1 < yEnd ? pixels : lineBelow;
+            int pBelow = y + 1 < yEnd ? p + width : -x0;
+            if (pixels instanceof byte[]) {
+                median3x3Line((byte[]) lineAbove, -x0, (byte[]) pixels, p, (byte[]) below, pBelow, width,
+                        roi.x, roi.x + roi.width, (byte[]) pixels);
+            } else {
+                median3x3Line((short[]) lineAbove, -x0, (short[]) pixels, p, (short[]) below, pBelow, width,
+                        roi.x, roi.x + roi.width, (short[]) pixels);
+            }
+            Object swap = lineAbove;
+            lineAbove = lineInput;
+            lineInput = swap;
+        }
     }
 
     // Filter a grayscale image or one channel of an RGB image using one thread
@@ -263,7 +523,8 @@ public class SilentRankFilters implements PlugInFilter {
     // For outliers, calculate the median only if the pixel deviates by more than the threshold
     // from any pixel in the area. Therfore min or max is calculated; this is a much faster
     // operation than the median.
-    private void doFiltering(ImageProcessor ip, int[] lineRadii, float[] cache, int cacheWidth, int cacheHeight,
+    // The cache is a float[] array, or a short[] array for the median, min and max of 8-bit and 16-bit images.
+    private void doFiltering(ImageProcessor ip, int[] lineRadii, Object cache, int cacheWidth, int cacheHeight,
             int filterType, float minMaxOutliersSign, float threshold, int colorChannel,
             int[] yForThread, int threadNumber, boolean[] aborted) {
         if (aborted[0] || Thread.currentThread().isInterrupted()) {
@@ -300,7 +561,17 @@ public class SilentRankFilters implements PlugInFilter {
         Object pixels = ip.getPixels();
         boolean isFloat = pixels instanceof float[];
         float maxValue = isFloat ? Float.NaN : (float) ip.maxValue();
-        float[] values = isFloat ? (float[]) pixels : new float[roi.width];
+        float[] floatCache = cache instanceof float[] ? (float[]) cache : null;
+        short[] intCache = cache instanceof short[] ? (short[]) cache : null;
+        float[] values = isFloat ? (float[]) pixels : intCache == null ? new float[roi.width] : null;
+        // Integer filters write 16-bit data directly, 8-bit data via a line of shorts
+        short[] intValues = intCache == null ? null
+                : pixels instanceof short[] ? (short[]) pixels : new short[roi.width];
+        // Median of 8-bit and 16-bit images with a sliding histogram, which is faster than quickselect
+        boolean histogramMedian = intCache != null && filterType == MEDIAN;
+        int[] histogram = histogramMedian ? new int[pixels instanceof byte[] ? 256 : 65536] : null;
+        int[] coarseHistogram = histogramMedian && pixels instanceof short[] ? new int[256] : null;
+        int sign = (int) minMaxOutliersSign;
 
         int numThreads = yForThread.length;
         long lastTime = System.currentTimeMillis();
@@ -312,7 +583,7 @@ public class SilentRankFilters implements PlugInFilter {
             yForThread[threadNumber] = y;
             //IJ.log("thread "+threadNumber+" @y="+y+" needs"+(y-kHeight/2)+"-"+(y+kHeight/2)+" highestYinC="+highestYinCache);
             boolean threadFinished = y >= roi.y + roi.height;
-            if (numThreads > 1 && (threadWaiting || threadFinished)) // 'if' is not synchronized to avoid overhead
+            if (numThreads > 1 && (nThreadsWaiting > 0 || threadFinished)) // 'if' is not synchronized to avoid overhead
             {
                 synchronized (this) {
                     notifyAll();					// we may have blocked another thread
@@ -338,7 +609,7 @@ public class SilentRankFilters implements PlugInFilter {
 
             for (int i = 0; i < cachePointers.length; i++) //shift kernel pointers to new line
             {
-                cachePointers[i] = (cachePointers[i] + cacheWidth * (y - previousY)) % cache.length;
+                cachePointers[i] = (cachePointers[i] + cacheWidth * (y - previousY)) % (cacheWidth * cacheHeight);
             }
             previousY = y;
 
@@ -348,25 +619,27 @@ public class SilentRankFilters implements PlugInFilter {
                     synchronized (this) {
                         slowestThreadY = arrayMinNonNegative(yForThread); //recheck whether we have to wait
                         if (y - slowestThreadY + kHeight > cacheHeight) {
+                            notifyAll();		// avoid deadlock: wake up others waiting (only once: waiting threads that
+                            nThreadsWaiting++;	// keep waking each other could keep the slowest thread from the monitor)
                             do {
-                                notifyAll();			// avoid deadlock: wake up others waiting
-                                threadWaiting = true;
                                 //IJ.log("Thread "+threadNumber+" waiting @y="+y+" slowest@y="+slowestThreadY);
                                 try {
                                     wait();
                                     if (aborted[0]) {
+                                        nThreadsWaiting--;
                                         return;
                                     }
                                 } catch (InterruptedException e) {
                                     aborted[0] = true;
+                                    nThreadsWaiting--;
                                     notifyAll();
                                     Thread.currentThread().interrupt(); //keep interrupted status (PlugInFilterRunner needs it)
                                     return;
                                 }
                                 slowestThreadY = arrayMinNonNegative(yForThread);
                             } while (y - slowestThreadY + kHeight > cacheHeight);
+                            nThreadsWaiting--;
                         } //if
-                        threadWaiting = false;
                     }
                 }
             }
@@ -391,16 +664,45 @@ public class SilentRankFilters implements PlugInFilter {
             }
 
             int cacheLineP = cacheWidth * (y % cacheHeight) + kRadius;	//points to pixel (roi.x, y)
-            filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y, // F I L T E R
-                    sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
-                    smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
-            if (!isFloat) //Float images: data are written already during 'filterLine'
-            {
-                writeLineToPixels(values, pixels, roi.x + y * width, roi.width, colorChannel);	// W R I T E
+            if (intCache != null) {
+                int intValuesP = intValues == pixels ? roi.x + y * width : 0;
+                if (histogramMedian) {
+                    filterLineHistogramMedian(intValues, intValuesP, roi.width, intCache, cachePointers, // F I L T E R
+                            kNPoints, histogram, coarseHistogram);
+                } else {
+                    filterLineMinMax(intValues, intValuesP, roi.width, intCache, cachePointers, smallKernel, sign);
+                }
+                if (intValues != pixels) //16-bit images: data are written already during filtering
+                {
+                    writeLineToPixels(intValues, (byte[]) pixels, roi.x + y * width, roi.width);	// W R I T E
+                }
+            } else {
+                filterLine(values, width, floatCache, cachePointers, kNPoints, cacheLineP, roi, y, // F I L T E R
+                        sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
+                        smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
+                if (!isFloat) //Float images: data are written already during 'filterLine'
+                {
+                    writeLineToPixels(values, pixels, roi.x + y * width, roi.width, colorChannel);	// W R I T E
+                }
             }			//IJ.log("thread "+threadNumber+" @y="+y+" line done");
         } // while (!aborted[0]); loop over y (lines)
     }
 
+    // The pool for the helper threads
+    private static ExecutorService createWorkerPool(int nThreads) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(nThreads, nThreads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RankFilters-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     private int arrayMax(int[] array) {
         int max = Integer.MIN_VALUE;
         for (int i = 0; i < array.length; i++) {
@@ -500,12 +802,17 @@ public class SilentRankFilters implements PlugInFilter {
      * than one line (padding by duplicating the y=0 row).
      */
     private static void readLineToCacheOrPad(Object pixels, int width, int height, int roiY, int xminInside, int widthInside,
-            float[] cache, int cacheWidth, int cacheHeight, int padLeft, int padRight, int colorChannel,
+            Object cache, int cacheWidth, int cacheHeight, int padLeft, int padRight, int colorChannel,
             int kHeight, int y) {
         int lineInCache = y % cacheHeight;
         if (y < height) {
-            readLineToCache(pixels, y * width, xminInside, widthInside,
-                    cache, lineInCache * cacheWidth, padLeft, padRight, colorChannel);
+            if (cache instanceof short[]) {
+                readLineToCache(pixels, y * width, xminInside, widthInside,
+                        (short[]) cache, lineInCache * cacheWidth, padLeft, padRight);
+            } else {
+                readLineToCache(pixels, y * width, xminInside, widthInside,
+                        (float[]) cache, lineInCache * cacheWidth, padLeft, padRight, colorChannel);
+            }
             if (y == 0) {
                 for (int prevY = roiY - kHeight / 2; prevY < 0; prevY++) {	//for y<0, pad with y=0 border pixels 
                     int prevLineInCache = cacheHeight + prevY;
@@ -550,6 +857,28 @@ public class SilentRankFilters implements PlugInFilter {
         }
     }
 
+    /**
+     * Read a line of 8-bit or 16-bit data into the short cache, without conversion. Pad with edge pixels in x if
+     * necessary
+     */
+    private static void readLineToCache(Object pixels, int pixelLineP, int xminInside, int widthInside,
+            short[] cache, int cacheLineP, int padLeft, int padRight) {
+        if (pixels instanceof byte[]) {
+            byte[] bPixels = (byte[]) pixels;
+            for (int pp = pixelLineP + xminInside, cp = cacheLineP + padLeft; pp < pixelLineP + xminInside + widthInside; pp++, cp++) {
+                cache[cp] = (short) (bPixels[pp] & 0xff);
+            }
+        } else {
+            System.arraycopy(pixels, pixelLineP + xminInside, cache, cacheLineP + padLeft, widthInside);
+        }
+        for (int cp = cacheLineP; cp < cacheLineP + padLeft; cp++) {
+            cache[cp] = cache[cacheLineP + padLeft];
+        }
+        for (int cp = cacheLineP + padLeft + widthInside; cp < cacheLineP + padLeft + widthInside + padRight; cp++) {
+            cache[cp] = cache[cacheLineP + padLeft + widthInside - 1];
+        }
+    }
+
     /**
      * Write a line to pixels arrax, converting from float (not for float data!) No checking for overflow/underflow
      */
@@ -574,6 +903,15 @@ public class SilentRankFilters implements PlugInFilter {
         }
     }
 
+    /**
+     * Write a line of an integer filter to an 8-bit pixels array
+     */
+    private static void writeLineToPixels(short[] values, byte[] pixels, int pixelP, int length) {
+        for (int i = 0, p = pixelP; i < length; i++, p++) {
+            pixels[p] = (byte) values[i];
+        }
+    }
+
     /**
      * Get max (or -min if sign=-1) within the kernel area.
      *
@@ -611,6 +949,63 @@ public class SilentRankFilters implements PlugInFilter {
         return max;
     }
 
+    // Min or max filter of one line of an 8-bit or 16-bit image, on the short cache: the same incremental
+    // algorithm as 'filterLine', with integer values (-min if sign=-1), and the result is written without rounding.
+    private static void filterLineMinMax(short[] values, int valuesP, int length, short[] cache, int[] kernel,
+            boolean smallKernel, int sign) {
+        int max = getAreaMax(cache, 0, kernel, 0, Integer.MIN_VALUE, sign);
+        values[valuesP] = (short) (max * sign);
+        for (int x = 1; x < length; x++) {
+            if (smallKernel) {	//for small kernel, always use the full area, not incremental algorithm
+                max = getAreaMax(cache, x, kernel, 0, Integer.MIN_VALUE, sign);
+            } else {
+                int newPointsMax = getSideMax(cache, x, kernel, true, sign);
+                if (newPointsMax >= max) { //compare with previous maximum 'max'
+                    max = newPointsMax;
+                } else {
+                    int removedPointsMax = getSideMax(cache, x, kernel, false, sign);
+                    if (removedPointsMax >= max) {
+                        max = getAreaMax(cache, x, kernel, 1, newPointsMax, sign);
+                    }
+                }
+            }
+            values[valuesP + x] = (short) (max * sign);
+        }
+    }
+
+    /**
+     * Get max (or -min if sign=-1) within the kernel area of the short cache, see getAreaMax for the float cache.
+     */
+    private static int getAreaMax(short[] cache, int xCache0, int[] kernel, int ignoreRight, int max, int sign) {
+        for (int kk = 0; kk < kernel.length; kk++) {	// y within the cache stripe (we have 2 kernel pointers per cache line)
+            for (int p = kernel[kk++] + xCache0; p <= kernel[kk] + xCache0 - ignoreRight; p++) {
+                int v = (cache[p] & 0xffff) * sign;
+                if (max < v) {
+                    max = v;
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Get max (or -min if sign=-1) at the right border inside or left border outside the kernel area of the short
+     * cache, see getSideMax for the float cache.
+     */
+    private static int getSideMax(short[] cache, int xCache0, int[] kernel, boolean isRight, int sign) {
+        int max = Integer.MIN_VALUE;
+        if (!isRight) {
+            xCache0--;
+        }
+        for (int kk = isRight ? 1 : 0; kk < kernel.length; kk += 2) {	// y within the cache stripe (we have 2 kernel pointers per cache line)
+            int v = (cache[xCache0 + kernel[kk]] & 0xffff) * sign;
+            if (max < v) {
+                max = v;
+            }
+        }
+        return max;
+    }
+
     /**
      * Get sum of values and values squared within the kernel area. x between 0 and cacheWidth-1 Output is written to
      * array sums[0] = sum; sums[1] = sum of squares
@@ -649,6 +1044,90 @@ public class SilentRankFilters implements PlugInFilter {
         return;
     }
 
+    // Median filter of one line of an 8-bit or 16-bit image with a sliding histogram (T.S. Huang 1979): when moving
+    // to the next pixel, only the pixels at the left and right side of the kernel change, and the median moves
+    // only a little from the median of the previous pixel. For 16-bit images, 'coarse' counts the values per block
+    // of 256 values; the median is moved to the right block first and then within the block of the 'histogram'
+    // (S. Perreault & P. Hebert 2007). The histograms are empty before and after each line.
+    private static void filterLineHistogramMedian(short[] values, int valuesP, int length, short[] cache, int[] kernel,
+            int kNPoints, int[] histogram, int[] coarse) {
+        int half = kNPoints / 2;
+        int median = 0;				// the median of the previous pixel
+        int nBelow = 0;				// the number of kernel values below 'median'
+        int block = 0;				// the block of 256 values with the median (16-bit only)
+        int nBelowBlock = 0;			// the number of kernel values below 'block' (16-bit only)
+        for (int x = 0; x < length; x++) {
+            for (int kk = 0; kk < kernel.length; kk += 2) {
+                int pStart = kernel[kk] + x;
+                int pEnd = kernel[kk + 1] + x;
+                if (x == 0) {				// the whole kernel at the start of the line
+                    for (int p = pStart; p <= pEnd; p++) {
+                        int v = cache[p] & 0xffff;
+                        histogram[v]++;
+                        if (coarse != null) {
+                            coarse[v >> 8]++;
+                        }
+                    }
+                } else {					// the side pixels that leave and enter the kernel
+                    int v = cache[pStart - 1] & 0xffff;
+                    histogram[v]--;
+                    if (v < median) {
+                        nBelow--;
+                    }
+                    if (coarse != null) {
+                        coarse[v >> 8]--;
+                        if (v >> 8 < block) {
+                            nBelowBlock--;
+                        }
+                    }
+                    v = cache[pEnd] & 0xffff;
+                    histogram[v]++;
+                    if (v < median) {
+                        nBelow++;
+                    }
+                    if (coarse != null) {
+                        coarse[v >> 8]++;
+                        if (v >> 8 < block) {
+                            nBelowBlock++;
+                        }
+                    }
+                }
+            }
+            if (coarse != null) {
+                while (nBelowBlock > half) {		// the median is in a lower block
+                    block--;
+                    nBelowBlock -= coarse[block];
+                }
+                while (nBelowBlock + coarse[block] <= half) { // the median is in a higher block
+                    nBelowBlock += coarse[block];
+                    block++;
+                }
+                if (median >> 8 != block) {		// start at the bottom of the new block
+                    median = block << 8;
+                    nBelow = nBelowBlock;
+                }
+            }
+            while (nBelow > half) {			// the median is lower
+                median--;
+                nBelow -= histogram[median];
+            }
+            while (nBelow + histogram[median] <= half) { // the median is higher
+                nBelow += histogram[median];
+                median++;
+            }
+            values[valuesP + x] = (short) median;
+        }
+        for (int kk = 0; kk < kernel.length; kk += 2) {	// empty the histograms for the next line
+            for (int p = kernel[kk] + length - 1; p <= kernel[kk + 1] + length - 1; p++) {
+                int v = cache[p] & 0xffff;
+                histogram[v]--;
+                if (coarse != null) {
+                    coarse[v >> 8]--;
+                }
+            }
+        }
+    }
+
     /**
      * Get median of values within kernel-sized neighborhood. Kernel size kNPoints should be odd.
      */
@@ -755,6 +1234,132 @@ public class SilentRankFilters implements PlugInFilter {
         return med;
     }
 
+    /**
+     * Calculate one line of the 3x3 median (radius 1, as used for 'despeckle') of an 8-bit image. Out-of-image pixels
+     * are set to the nearest edge pixel, so the result is the same as rank(ip, 1, MEDIAN) without roi. Each column of
+     * 3 pixels is sorted once and used for the 3 medians it contributes to: the median of the 9 values is the median
+     * of the highest column minimum, the median of the column medians and the lowest column maximum.
+     *
+     * @param pixels The input pixels
+     * @param width The image width
+     * @param height The image height
+     * @param y The line to calculate
+     * @param out The output pixels, only line y is written. Must not be the input array
+     */
+    public static void median3x3Line(byte[] pixels, int width, int height, int y, byte[] out) {
+        median3x3Line(pixels, width, height, y, 0, width, out);
+    }
+
+    /**
+     * Calculate a part of one line of the 3x3 median of an 8-bit image, see median3x3Line(byte[], int, int, int,
+     * byte[]). The pixels left and right of the part are used, if they are inside the image.
+     *
+     * @param pixels The input pixels
+     * @param width The image width
+     * @param height The image height
+     * @param y The line to calculate
+     * @param xFrom The first pixel to calculate
+     * @param xTo The pixel after the last pixel to calculate
+     * @param out The output pixels, only line y from xFrom to xTo is written. Must not be the input array
+     */
+    public static void median3x3Line(byte[] pixels, int width, int height, int y, int xFrom, int xTo, byte[] out) {
+        int pA = Math.max(y - 1, 0) * width;                    //line above, or the edge line (padding)
+        int pC = Math.min(y + 1, height - 1) * width;           //line below, or the edge line (padding)
+        median3x3Line(pixels, pA, pixels, y * width, pixels, pC, width, xFrom, xTo, out);
+    }
+
+    // The 3x3 median of the pixels xFrom to xTo (exclusive) of the line at offset pB of 'line', with the line above
+    // at offset pA of 'above' and the line below at offset pC of 'below'; it is written to the same offset of 'out'.
+    // A pixel of the line is only read before the output at its left is written, so 'out' may be 'line' itself.
+    private static void median3x3Line(byte[] above, int pA, byte[] line, int pB, byte[] below, int pC, int width,
+            int xFrom, int xTo, byte[] out) {
+        if (xFrom >= xTo) {
+            return;
+        }
+        int x0 = Math.max(xFrom - 1, 0);                        //column left of xFrom, or the edge column (padding)
+        int a = above[pA + x0] & 0xff, b = line[pB + x0] & 0xff, c = below[pC + x0] & 0xff;
+        int lo0 = Math.min(Math.min(a, b), c), hi0 = Math.max(Math.max(a, b), c), mid0 = a + b + c - lo0 - hi0;
+        a = above[pA + xFrom] & 0xff;
+        b = line[pB + xFrom] & 0xff;
+        c = below[pC + xFrom] & 0xff;
+        int lo1 = Math.min(Math.min(a, b), c), hi1 = Math.max(Math.max(a, b), c), mid1 = a + b + c - lo1 - hi1;
+        for (int x = xFrom; x < xTo; x++) {
+            int x2 = x + 1 < width ? x + 1 : x;
+            a = above[pA + x2] & 0xff;
+            b = line[pB + x2] & 0xff;
+            c = below[pC + x2] & 0xff;
+            int lo2 = Math.min(Math.min(a, b), c), hi2 = Math.max(Math.max(a, b), c), mid2 = a + b + c - lo2 - hi2;
+            out[pB + x] = (byte) median3(Math.max(Math.max(lo0, lo1), lo2), median3(mid0, mid1, mid2),
+                    Math.min(Math.min(hi0, hi1), hi2));
+            lo0 = lo1; mid0 = mid1; hi0 = hi1;
+            lo1 = lo2; mid1 = mid2; hi1 = hi2;
+        }
+    }
+
+    /**
+     * Calculate one line of the 3x3 median of a 16-bit image, see median3x3Line(byte[], int, int, int, byte[])
+     *
+     * @param pixels The input pixels
+     * @param width The image width
+     * @param height The image height
+     * @param y The line to calculate
+     * @param out The output pixels, only line y is written. Must not be the input array
+     */
+    public static void median3x3Line(short[] pixels, int width, int height, int y, short[] out) {
+        median3x3Line(pixels, width, height, y, 0, width, out);
+    }
+
+    /**
+     * Calculate a part of one line of the 3x3 median of a 16-bit image, see median3x3Line(byte[], int, int, int,
+     * int, int, byte[])
+     *
+     * @param pixels The input pixels
+     * @param width The image width
+     * @param height The image height
+     * @param y The line to calculate
+     * @param xFrom The first pixel to calculate
+     * @param xTo The pixel after the last pixel to calculate
+     * @param out The output pixels, only line y from xFrom to xTo is written. Must not be the input array
+     */
+    public static void median3x3Line(short[] pixels, int width, int height, int y, int xFrom, int xTo, short[] out) {
+        int pA = Math.max(y - 1, 0) * width;
+        int pC = Math.min(y + 1, height - 1) * width;
+        median3x3Line(pixels, pA, pixels, y * width, pixels, pC, width, xFrom, xTo, out);
+    }
+
+    // 16-bit version of median3x3Line(byte[], int, byte[], int, byte[], int, int, int, int, byte[])
+    private static void median3x3Line(short[] above, int pA, short[] line, int pB, short[] below, int pC, int width,
+            int xFrom, int xTo, short[] out) {
+        if (xFrom >= xTo) {
+            return;
+        }
+        int x0 = Math.max(xFrom - 1, 0);
+        int a = above[pA + x0] & 0xffff, b = line[pB + x0] & 0xffff, c = below[pC + x0] & 0xffff;
+        int lo0 = Math.min(Math.min(a, b), c), hi0 = Math.max(Math.max(a, b), c), mid0 = a + b + c - lo0 - hi0;
+        a = above[pA + xFrom] & 0xffff;
+        b = line[pB + xFrom] & 0xffff;
+        c = below[pC + xFrom] & 0xffff;
+        int lo1 = Math.min(Math.min(a, b), c), hi1 = Math.max(Math.max(a, b), c), mid1 = a + b + c - lo1 - hi1;
+        for (int x = xFrom; x < xTo; x++) {
+            int x2 = x + 1 < width ? x + 1 : x;
+            a = above[pA + x2] & 0xffff;
+            b = line[pB + x2] & 0xffff;
+            c = below[pC + x2] & 0xffff;
+            int lo2 = Math.min(Math.min(a, b), c), hi2 = Math.max(Math.max(a, b), c), mid2 = a + b + c - lo2 - hi2;
+            out[pB + x] = (short) median3(Math.max(Math.max(lo0, lo1), lo2), median3(mid0, mid1, mid2),
+                    Math.min(Math.min(hi0, hi1), hi2));
+            lo0 = lo1; mid0 = mid1; hi0 = hi1;
+            lo1 = lo2; mid1 = mid2; hi1 = hi2;
+        }
+    }
+
+    /**
+     * The median of three values, without branches
+     */
+    private static int median3(int a, int b, int c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
     /**
      * Reset region between inner rectangle 'roi' and outer rectangle 'roi1' to the snapshot
      */
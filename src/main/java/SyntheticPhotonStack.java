@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * SyntheticPhotonStack
+ *
+ * This class can be used to create single photon event data for load and accuracy tests, without camera
+ * data. Each frame has a background with Gaussian read noise, a Poisson distributed number of photons at
+ * random sub-pixel positions (each a Gaussian light blob with the given PSF width), optional dark counts
+ * (single bright pixels) and optional hot pixels (the same bright pixels in every frame). The true positions
+ * of all photons are kept as ground truth.
+ *
+ * The same seed always gives the same frames. A stack can be processed directly, for instance with
+ * new ImagePlus("Synthetic", generator.createStack(1000)) and 'Process Photon Images', or frame by frame with
+ * Photon_Image_Processor.setupHeadless and run. Instances are not thread safe.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class SyntheticPhotonStack {
+
+    /** The width of the frames. */
+    private final int width;
+    /** The height of the frames. */
+    private final int height;
+    /** The bit depth of the frames, 8 or 16. */
+    private final int bitDepth;
+    /** The seed of the random generator. */
+    private final long seed;
+    /** The mean number of photons per frame. */
+    private double photonsPerFrame = 20;
+    /** The standard deviation of the Gaussian point spread function, in pixels. */
+    private double psfSigma = 1.0;
+    /** The value added to the center of a photon blob. */
+    private double photonAmplitude;
+    /** The mean background value. */
+    private double background;
+    /** The standard deviation of the read noise. */
+    private double readNoise;
+    /** The mean number of dark counts per pixel per frame. */
+    private double darkCountRate = 0;
+    /** The number of hot pixels. */
+    private int hotPixels = 0;
+    /** The value added to dark counts and hot pixels. */
+    private double hotPixelAmplitude;
+    /** The pixel offsets of the hot pixels, created when the first frame is made. */
+    private int[] hotPixelOffsets;
+    /** The frame numbers of the ground truth photons. */
+    private int[] truthFrames = new int[1024];
+    /** The x coordinates of the ground truth photons. */
+    private double[] truthX = new double[1024];
+    /** The y coordinates of the ground truth photons. */
+    private double[] truthY = new double[1024];
+    /** The number of ground truth photons. */
+    private int truthCount = 0;
+
+    /**
+     * Create a new generator with settings that suit the bit depth: a background of 100 with read noise 10
+     * and photon amplitude 1500 for 16-bit, or a background of 10 with read noise 2 and photon amplitude 150
+     * for 8-bit frames.
+     *
+     * @param width    The width of the frames.
+     * @param height   The height of the frames.
+     * @param bitDepth The bit depth of the frames, 8 or 16.
+     * @param seed     The seed of the random generator.
+     */
+    public SyntheticPhotonStack(final int width, final int height, final int bitDepth, final long seed) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Your frame size (" + width + "x" + height + ") should be at least 1x1!");
+        }
+        if (bitDepth != 8 && bitDepth != 16) {
+            throw new IllegalArgumentException("Your bit depth (" + bitDepth + ") should be 8 or 16!");
+        }
+
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.seed = seed;
+        this.background = bitDepth == 8 ? 10 : 100;
+        this.readNoise = bitDepth == 8 ? 2 : 10;
+        this.photonAmplitude = bitDepth == 8 ? 150 : 1500;
+        this.hotPixelAmplitude = this.photonAmplitude;
+    }
+
+    /**
+     * Set the mean number of photons per frame, the number in each frame is Poisson distributed.
+     *
+     * @param photonsPerFrame The mean number of photons.
+     */
+    public void setPhotonsPerFrame(final double photonsPerFrame) {
+        this.photonsPerFrame = Math.max(photonsPerFrame, 0);
+    }
+
+    /**
+     * Set the width of the photon blobs.
+     *
+     * @param psfSigma The standard deviation of the Gaussian point spread function, in pixels.
+     */
+    public void setPsfSigma(final double psfSigma) {
+        if (!(psfSigma > 0)) {
+            throw new IllegalArgumentException("Your PSF width (" + psfSigma + ") should be larger than 0!");
+        }
+        this.psfSigma = psfSigma;
+    }
+
+    /**
+     * Set the value added to the center of a photon blob.
+     *
+     * @param photonAmplitude The amplitude.
+     */
+    public void setPhotonAmplitude(final double photonAmplitude) {
+        this.photonAmplitude = photonAmplitude;
+    }
+
+    /**
+     * Set the background and read noise.
+     *
+     * @param background The mean background value.
+     * @param readNoise  The standard deviation of the Gaussian read noise.
+     */
+    public void setBackground(final double background, final double readNoise) {
+        this.background = background;
+        this.readNoise = Math.max(readNoise, 0);
+    }
+
+    /**
+     * Set the dark count rate. A dark count is a single pixel with the hot pixel amplitude, it is not part of
+     * the ground truth.
+     *
+     * @param darkCountRate The mean number of dark counts per pixel per frame.
+     */
+    public void setDarkCountRate(final double darkCountRate) {
+        this.darkCountRate = Math.max(darkCountRate, 0);
+    }
+
+    /**
+     * Set the hot pixels, which are bright in every frame. Should be called before the first frame is made.
+     *
+     * @param hotPixels         The number of hot pixels.
+     * @param hotPixelAmplitude The value added to hot pixels and dark counts.
+     */
+    public void setHotPixels(final int hotPixels, final double hotPixelAmplitude) {
+        this.hotPixels = Math.max(hotPixels, 0);
+        this.hotPixelAmplitude = hotPixelAmplitude;
+        this.hotPixelOffsets = null;
+    }
+
+    /**
+     * Create a frame. The photons are added to the ground truth.
+     *
+     * @param frame The frame number, starting at 1. The same frame number gives the same frame.
+     * @return ImageProcessor The 8-bit or 16-bit frame.
+     */
+    public ImageProcessor createFrame(final int frame) {
+        Random random = new Random(this.seed * 1000003L + frame);
+        double[] values = new double[this.width * this.height];
+
+        // Background with read noise.
+        for (int i = 0; i < values.length; i++) {
+            values[i] = this.background + random.nextGaussian() * this.readNoise;
+        }
+
+        // Photons at random positions.
+        int nPhotons = poisson(random, this.photonsPerFrame);
+        for (int p = 0; p < nPhotons; p++) {
+            double x = random.nextDouble() * this.width;
+            double y = random.nextDouble() * this.height;
+            this.addBlob(values, x, y);
+            this.addGroundTruth(frame, x, y);
+        }
+
+        // Dark counts at random pixels, hot pixels at the same pixels in every frame.
+        int nDarkCounts = poisson(random, this.darkCountRate * values.length);
+        for (int d = 0; d < nDarkCounts; d++) {
+            values[random.nextInt(values.length)] += this.hotPixelAmplitude;
+        }
+        for (int offset : this.getHotPixelOffsets()) {
+            values[offset] += this.hotPixelAmplitude;
+        }
+
+        ImageProcessor ip = this.bitDepth == 8
+                ? new ByteProcessor(this.width, this.height)
+                : new ShortProcessor(this.width, this.height);
+        int maxValue = this.bitDepth == 8 ? 255 : 65535;
+        for (int i = 0; i < values.length; i++) {
+            ip.set(i, (int) Math.min(Math.max(Math.round(values[i]), 0), maxValue));
+        }
+        return ip;
+    }
+
+    /**
+     * Create a stack with the frames 1 to nFrames.
+     *
+     * @param nFrames The number of frames.
+     * @return ImageStack The stack.
+     */
+    public ImageStack createStack(final int nFrames) {
+        ImageStack stack = new ImageStack(this.width, this.height);
+        for (int frame = 1; frame <= nFrames; frame++) {
+            stack.addSlice("Frame " + frame, this.createFrame(frame));
+        }
+        return stack;
+    }
+
+    /**
+     * Add a Gaussian light blob to the pixel values. Pixel (x, y) covers the area from x to x + 1, so the
+     * blob is evaluated at the pixel centers.
+     *
+     * @param values The pixel values.
+     * @param xBlob  The x coordinate of the center of the blob.
+     * @param yBlob  The y coordinate of the center of the blob.
+     */
+    private void addBlob(final double[] values, final double xBlob, final double yBlob) {
+        int radius = (int) Math.ceil(3 * this.psfSigma);
+        double twoSigmaSquared = 2 * this.psfSigma * this.psfSigma;
+
+        for (int y = Math.max(0, (int) yBlob - radius); y <= Math.min(this.height - 1, (int) yBlob + radius); y++) {
+            double dy = y + 0.5 - yBlob;
+            for (int x = Math.max(0, (int) xBlob - radius); x <= Math.min(this.width - 1, (int) xBlob + radius); x++) {
+                double dx = x + 0.5 - xBlob;
+                values[y * this.width + x] += this.photonAmplitude * Math.exp(-(dx * dx + dy * dy) / twoSigmaSquared);
+            }
+        }
+    }
+
+    /**
+     * Get the hot pixels, chosen with the seed when first needed.
+     *
+     * @return int[] The pixel offsets of the hot pixels.
+     */
+    private int[] getHotPixelOffsets() {
+        if (this.hotPixelOffsets == null) {
+            Random random = new Random(this.seed);
+            this.hotPixelOffsets = new int[Math.min(this.hotPixels, this.width * this.height)];
+            for (int i = 0; i < this.hotPixelOffsets.length; i++) {
+                this.hotPixelOffsets[i] = random.nextInt(this.width * this.height);
+            }
+        }
+        return this.hotPixelOffsets;
+    }
+
+    /**
+     * Add a photon to the ground truth.
+     *
+     * @param frame The frame number.
+     * @param x     The x coordinate.
+     * @param y     The y coordinate.
+     */
+    private void addGroundTruth(final int frame, final double x, final double y) {
+        if (this.truthCount == this.truthFrames.length) {
+            int length = this.truthCount * 2;
+            this.truthFrames = Arrays.copyOf(this.truthFrames, length);
+            this.truthX = Arrays.copyOf(this.truthX, length);
+            this.truthY = Arrays.copyOf(this.truthY, length);
+        }
+        this.truthFrames[this.truthCount] = frame;
+        this.truthX[this.truthCount] = x;
+        this.truthY[this.truthCount] = y;
+        this.truthCount++;
+    }
+
+    /**
+     * Draw a number from a Poisson distribution. Small means are drawn exactly, large means with the normal
+     * approximation.
+     *
+     * @param random The random generator.
+     * @param mean   The mean.
+     * @return int The number.
+     */
+    private static int poisson(final Random random, final double mean) {
+        if (mean <= 0) {
+            return 0;
+        }
+        if (mean > 30) {
+            return (int) Math.max(0, Math.round(mean + random.nextGaussian() * Math.sqrt(mean)));
+        }
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        int count = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of photons in the ground truth.
+     *
+     * @return int The number of photons in all frames made so far.
+     */
+    public int getGroundTruthCount() {
+        return this.truthCount;
+    }
+
+    /**
+     * Get the frame number of a ground truth photon.
+     *
+     * @param index The index of the photon.
+     * @return int The frame number.
+     */
+    public int getGroundTruthFrame(final int index) {
+        return this.truthFrames[index];
+    }
+
+    /**
+     * Get the x coordinate of a ground truth photon.
+     *
+     * @param index The index of the photon.
+     * @return double The x coordinate.
+     */
+    public double getGroundTruthX(final int index) {
+        return this.truthX[index];
+    }
+
+    /**
+     * Get the y coordinate of a ground truth photon.
+     *
+     * @param index The index of the photon.
+     * @return double The y coordinate.
+     */
+    public double getGroundTruthY(final int index) {
+        return this.truthY[index];
+    }
+
+    /**
+     * Save the ground truth as CSV file with the columns frame, x and y.
+     *
+     * @param path The path of the CSV file.
+     * @throws IOException If the file could not be written.
+     */
+    public void saveGroundTruth(final String path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))) {
+            writer.println("frame,x,y");
+            for (int i = 0; i < this.truthCount; i++) {
+                writer.println(String.format(Locale.ROOT, "%d,%.4f,%.4f", this.truthFrames[i], this.truthX[i],
+                        this.truthY[i]));
+            }
+        }
+    }
+
+    /**
+     * Main method, saves a synthetic stack as TIFF file and its ground truth as CSV file.
+     *
+     * Usage: SyntheticPhotonStack frames width height bitDepth photonsPerFrame output.tif truth.csv
+     * [psfSigma] [darkCountRate] [hotPixels] [seed]
+     *
+     * @param args The command line arguments.
+     */
+    public static void main(final String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 7) {
+            System.err.println("Usage: SyntheticPhotonStack <frames> <width> <height> <bit depth> <photons per frame> "
+                    + "<output.tif> <truth.csv> [psf sigma] [dark count rate] [hot pixels] [seed]");
+            System.exit(2);
+        }
+
+        try {
+            int nFrames = Integer.parseInt(args[0]);
+            SyntheticPhotonStack generator = new SyntheticPhotonStack(Integer.parseInt(args[1]),
+                    Integer.parseInt(args[2]), Integer.parseInt(args[3]), args.length > 10 ? Long.parseLong(args[10]) : 1);
+            generator.setPhotonsPerFrame(Double.parseDouble(args[4]));
+            if (args.length > 7) {
+                generator.setPsfSigma(Double.parseDouble(args[7]));
+            }
+            if (args.length > 8) {
+                generator.setDarkCountRate(Double.parseDouble(args[8]));
+            }
+            if (args.length > 9) {
+                generator.setHotPixels(Integer.parseInt(args[9]), generator.hotPixelAmplitude);
+            }
+
+            String output = Paths.get(args[5]).toAbsolutePath().toString();
+            if (!IJ.saveAsTiff(new ImagePlus("Synthetic", generator.createStack(nFrames)), output)) {
+                throw new IOException("Could not save " + output);
+            }
+            generator.saveGroundTruth(args[6]);
+            System.out.println("Saved " + nFrames + " frames with " + generator.getGroundTruthCount()
+                    + " photons to " + output);
+        } catch (IllegalArgumentException | IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
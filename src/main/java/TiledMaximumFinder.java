@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * TiledMaximumFinder
+ *
+ * This class finds the maxima of one large frame on all cores, by splitting the frame into tiles that are
+ * analyzed in parallel with SilentMaximumFinder. Each tile is copied with a halo (a border of surrounding
+ * pixels), and only the candidate maxima in the tile itself are analyzed, so the area within the tolerance
+ * around a maximum can extend into the halo. The result is the same as getMaxima on the whole frame with
+ * excludeOnEdges:
+ *
+ * - A maximum is only found if the area within the tolerance around it does not reach a higher point or an
+ * edge. If this area lies inside the halo, the tile gives the same answer as the whole frame.
+ * - If a possible maximum is excluded because its area reaches an edge of the halo that is not an edge of the
+ * frame (see SilentMaximumFinder.getLastEdgeRejections), the tile is analyzed again with a twice as large halo.
+ * - With several highest points within the tolerance, the point chosen for a maximum depends on where its
+ * analysis starts. A maximum is only kept by the tile where the analysis of the whole frame would start, so
+ * maxima with highest points on both sides of a tile border are found once, at the same point. The maxima of
+ * all tiles are sorted by value and start point, like SilentMaximumFinder does, so the order is the same too.
+ * - getMaxima ignores local maxima at the lowest value of the frame. A tile that has a single value above the
+ * lowest value of the frame can not decide this, so in that (rare) case the whole frame is analyzed without
+ * tiles.
+ *
+ * Frames with too few pixels for more than one tile, and images other than uncalibrated 8-bit and 16-bit
+ * images, are analyzed without tiles. Like SilentMaximumFinder, each thread should use its own instance; the
+ * tiles of a frame are analyzed in the common fork/join pool.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class TiledMaximumFinder {
+
+    /** The width and height of the tiles, without halo. */
+    private final int tileSize;
+    /** The halo width used for the first try of each tile. */
+    private final int halo;
+    /** The maximum finder and tile buffer of each thread. */
+    private final ThreadLocal<TileWorker> workers = ThreadLocal.withInitial(TileWorker::new);
+    /** The pixel offsets of the maxima of the last call, highest first. */
+    private int[] maxima = new int[256];
+    /** The maxima of all tiles, value in the upper 32 bits and frame start offset in the lower 32 bits. */
+    private long[] keys = new long[256];
+    /** The width of the frame of the last call. */
+    private int width = 1;
+    /** The number of maxima of the last call. */
+    private int nMaxima = 0;
+    /** The number of tiles that had to be analyzed again with a larger halo in the last call. */
+    private int nRetries = 0;
+
+    /**
+     * Create a new TiledMaximumFinder.
+     *
+     * @param tileSize The width and height of the tiles.
+     * @param halo     The width of the border around each tile that is analyzed as well, at least 1.
+     */
+    public TiledMaximumFinder(final int tileSize, final int halo) {
+        if (tileSize < 16 || halo < 1) {
+            throw new IllegalArgumentException("Your tile size (" + tileSize + ") should be at least 16 and your "
+                    + "halo (" + halo + ") should be at least 1!");
+        }
+
+        this.tileSize = tileSize;
+        this.halo = halo;
+    }
+
+    /**
+     * Find the maxima of a frame, excluding edge maxima, using all cores. Gives the same maxima as
+     * SilentMaximumFinder.getMaxima (or getMaximaSparse if a background level is given) on the whole frame.
+     *
+     * @param finder          The maximum finder of the calling thread, used for frames that are not tiled.
+     * @param ip              The frame.
+     * @param tolerance       The noise tolerance.
+     * @param backgroundLevel Pixels at or below this level are skipped, 0 to analyze all pixels.
+     * @param xPoints         Output: the x coordinates of the maxima, in the order of SilentMaximumFinder.
+     * @param yPoints         Output: the y coordinates of the maxima.
+     * @return int The number of maxima. If this is larger than the arrays, only the first maxima are stored and
+     * all of them can be copied to larger arrays with getLastMaxima.
+     */
+    public int getMaxima(final SilentMaximumFinder finder, final ImageProcessor ip, final double tolerance,
+                         final double backgroundLevel, final int[] xPoints, final int[] yPoints) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        this.width = width;
+        int tilesX = (width + this.tileSize - 1) / this.tileSize;
+        int tilesY = (height + this.tileSize - 1) / this.tileSize;
+        boolean integerPixels = (ip instanceof ByteProcessor || ip instanceof ShortProcessor)
+                && ip.getCalibrationTable() == null;
+        this.nRetries = 0;
+
+        if (tilesX * tilesY < 2 || !integerPixels || ip.getRoi().width != width || ip.getRoi().height != height) {
+            return this.getUntiledMaxima(finder, ip, tolerance, backgroundLevel, xPoints, yPoints);
+        }
+
+        // Analyze the tiles in parallel, each tile gives its maxima as sorted keys.
+        Tile[] tiles = IntStream.range(0, tilesX * tilesY).parallel()
+                .mapToObj(t -> this.workers.get().analyze(ip, (t % tilesX) * this.tileSize,
+                        (t / tilesX) * this.tileSize, this.tileSize, this.halo, tolerance, backgroundLevel))
+                .toArray(Tile[]::new);
+
+        // A tile with one value above the lowest value of the frame can not be analyzed on its own.
+        int frameMin = Integer.MAX_VALUE;
+        for (Tile tile : tiles) {
+            frameMin = Math.min(frameMin, tile.min);
+        }
+        int total = 0;
+        for (Tile tile : tiles) {
+            if (backgroundLevel <= 0 && tile.min == tile.max && tile.min > frameMin) {
+                return this.getUntiledMaxima(finder, ip, tolerance, backgroundLevel, xPoints, yPoints);
+            }
+            total += tile.keys.length;
+            this.nRetries += tile.retries;
+        }
+
+        // Merge the maxima of all tiles, highest first. The maxima of each tile are in the merged order already,
+        // so the tile of a start point gives the point of the next maximum of that tile.
+        if (this.keys.length < total) {
+            this.keys = new long[total];
+            this.maxima = new int[total];
+        }
+        int n = 0;
+        for (Tile tile : tiles) {
+            System.arraycopy(tile.keys, 0, this.keys, n, tile.keys.length);
+            n += tile.keys.length;
+        }
+        Arrays.sort(this.keys, 0, n);
+        int[] next = new int[tiles.length];
+        for (int i = 0; i < n; i++) {
+            int start = (int) this.keys[n - 1 - i];
+            int t = (start / width / this.tileSize) * tilesX + (start % width) / this.tileSize;
+            this.maxima[i] = tiles[t].points[next[t]++];
+        }
+        this.nMaxima = n;
+        return this.getLastMaxima(xPoints, yPoints);
+    }
+
+    /**
+     * Find the maxima of a frame without tiles.
+     *
+     * @param finder          The maximum finder of the calling thread.
+     * @param ip              The frame.
+     * @param tolerance       The noise tolerance.
+     * @param backgroundLevel Pixels at or below this level are skipped, 0 to analyze all pixels.
+     * @param xPoints         Output: the x coordinates of the maxima.
+     * @param yPoints         Output: the y coordinates of the maxima.
+     * @return int The number of maxima.
+     */
+    private int getUntiledMaxima(final SilentMaximumFinder finder, final ImageProcessor ip, final double tolerance,
+                                 final double backgroundLevel, final int[] xPoints, final int[] yPoints) {
+        int n;
+        if (backgroundLevel > 0) {
+            n = finder.getMaximaSparse(ip, tolerance, backgroundLevel, true, xPoints, yPoints);
+        } else {
+            n = finder.getMaxima(ip, tolerance, true, xPoints, yPoints);
+        }
+
+        // Keep the maxima for getLastMaxima.
+        int[] x = new int[n];
+        int[] y = new int[n];
+        finder.getLastMaxima(x, y);
+        if (this.maxima.length < n) {
+            this.maxima = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            this.maxima[i] = y[i] * this.width + x[i];
+        }
+        this.nMaxima = n;
+        return n;
+    }
+
+    /**
+     * Copies the maxima found by the last call of getMaxima to the given arrays.
+     *
+     * @param xPoints Output: the x coordinates of the maxima.
+     * @param yPoints Output: the y coordinates of the maxima.
+     * @return int The number of maxima, only as many as fit in the arrays are copied.
+     */
+    public int getLastMaxima(final int[] xPoints, final int[] yPoints) {
+        int n = Math.min(this.nMaxima, Math.min(xPoints.length, yPoints.length));
+        for (int i = 0; i < n; i++) {
+            int offset = this.maxima[i];
+            xPoints[i] = offset % this.width;
+            yPoints[i] = offset / this.width;
+        }
+        return this.nMaxima;
+    }
+
+    /**
+     * Get the number of tiles that were analyzed again with a larger halo in the last call, because a maximum
+     * reached the halo edge.
+     *
+     * @return int The number of retries.
+     */
+    public int getLastRetries() {
+        return this.nRetries;
+    }
+
+    /**
+     * Tile
+     *
+     * The result of one tile.
+     */
+    private static final class Tile {
+
+        /** The maxima in the tile, value in the upper 32 bits and frame start offset in the lower 32 bits. */
+        private final long[] keys;
+        /** The frame pixel offsets of the maxima, in the same order. */
+        private final int[] points;
+        /** The lowest pixel value of the tile, without halo. */
+        private final int min;
+        /** The highest pixel value of the tile, without halo. */
+        private final int max;
+        /** The number of times the tile was analyzed again with a larger halo. */
+        private final int retries;
+
+        /**
+         * Create a new Tile.
+         *
+         * @param keys    The maxima.
+         * @param points  The points of the maxima.
+         * @param min     The lowest pixel value.
+         * @param max     The highest pixel value.
+         * @param retries The number of retries.
+         */
+        private Tile(final long[] keys, final int[] points, final int min, final int max, final int retries) {
+            this.keys = keys;
+            this.points = points;
+            this.min = min;
+            this.max = max;
+            this.retries = retries;
+        }
+    }
+
+    /**
+     * TileWorker
+     *
+     * The maximum finder and the tile copy of one thread, reused for every tile.
+     */
+    private static final class TileWorker {
+
+        /** The maximum finder of this thread. */
+        private final SilentMaximumFinder finder = new SilentMaximumFinder();
+        /** The x coordinates of the maxima of a tile, not used: getFrameMaximum gives the frame points. */
+        private final int[] xPoints = new int[256];
+        /** The y coordinates of the maxima of a tile, not used. */
+        private final int[] yPoints = new int[256];
+        /** The tile offsets where the analysis of the maxima of a tile started. */
+        private int[] starts = new int[256];
+        /** The search of getFrameMaximum has visited a tile pixel if it has the current stamp. */
+        private int[] visited;
+        /** The tile pixels found by the search of getFrameMaximum, in the order of SilentMaximumFinder. */
+        private int[] queue;
+        /** The stamp of the current search of getFrameMaximum. */
+        private int stamp = 0;
+        /** The copy of the last tile with halo, reused when the next tile has the same size and type. */
+        private ImageProcessor crop;
+
+        /**
+         * Find the maxima of one tile, with a larger halo if needed.
+         *
+         * @param ip              The frame.
+         * @param tileX           The x coordinate of the tile in the frame.
+         * @param tileY           The y coordinate of the tile in the frame.
+         * @param tileSize        The width and height of the tiles.
+         * @param firstHalo       The halo width of the first try.
+         * @param tolerance       The noise tolerance.
+         * @param backgroundLevel Pixels at or below this level are skipped, 0 to analyze all pixels.
+         * @return Tile The maxima whose point lies in the tile.
+         */
+        private Tile analyze(final ImageProcessor ip, final int tileX, final int tileY, final int tileSize,
+                             final int firstHalo, final double tolerance, final double backgroundLevel) {
+            int width = ip.getWidth();
+            int height = ip.getHeight();
+            Rectangle core = new Rectangle(tileX, tileY, Math.min(tileSize, width - tileX),
+                    Math.min(tileSize, height - tileY));
+            int retries = 0;
+            int haloWidth = firstHalo;
+            while (true) {
+                Rectangle region = new Rectangle(core.x - haloWidth, core.y - haloWidth,
+                        core.width + 2 * haloWidth, core.height + 2 * haloWidth).intersection(
+                        new Rectangle(0, 0, width, height));
+                ImageProcessor tile = this.copyRegion(ip, region);
+                tile.setRoi(core.x - region.x, core.y - region.y, core.width, core.height);
+                int n;
+                if (backgroundLevel > 0) {
+                    n = this.finder.getMaximaSparse(tile, tolerance, backgroundLevel, true, this.xPoints, this.yPoints);
+                } else {
+                    n = this.finder.getMaxima(tile, tolerance, true, this.xPoints, this.yPoints);
+                }
+
+                // The edges of the halo that are not edges of the frame must not have excluded a maximum.
+                int haloEdges = (region.x > 0 ? SilentMaximumFinder.EDGE_LEFT : 0)
+                        | (region.x + region.width < width ? SilentMaximumFinder.EDGE_RIGHT : 0)
+                        | (region.y > 0 ? SilentMaximumFinder.EDGE_TOP : 0)
+                        | (region.y + region.height < height ? SilentMaximumFinder.EDGE_BOTTOM : 0);
+                if ((this.finder.getLastEdgeRejections() & haloEdges) != 0) {
+                    retries++;
+                    haloWidth *= 2;
+                    continue;
+                }
+
+                if (n > this.starts.length) {
+                    this.starts = new int[n * 2];
+                }
+                this.finder.getLastMaximaStarts(this.starts);
+                return this.collect(ip, tile, region, core, n, tolerance, retries);
+            }
+        }
+
+        /**
+         * Convert the maxima of a tile to frame keys and points. A maximum is only kept if the analysis of the
+         * whole frame would start in this tile, so another tile does not give it again.
+         *
+         * @param ip        The frame.
+         * @param tile      The tile copy with halo.
+         * @param region    The position of the tile copy in the frame.
+         * @param core      The tile without halo.
+         * @param n         The number of maxima.
+         * @param tolerance The noise tolerance.
+         * @param retries   The number of retries.
+         * @return Tile The result of the tile.
+         */
+        private Tile collect(final ImageProcessor ip, final ImageProcessor tile, final Rectangle region,
+                             final Rectangle core, final int n, final double tolerance, final int retries) {
+            int frameWidth = ip.getWidth();
+            long[] keys = new long[n];
+            int[] points = new int[n];
+            int nKeys = 0;
+            for (int i = 0; i < n; i++) {
+                int start = this.starts[i];
+                int offset = this.getFrameMaximum(tile, region, core, start, tolerance, frameWidth);
+                if (offset >= 0) {
+                    int frameStart = (start / tile.getWidth() + region.y) * frameWidth + start % tile.getWidth()
+                            + region.x;
+                    keys[nKeys] = (long) tile.get(start) << 32 | frameStart;
+                    points[nKeys++] = offset;
+                }
+            }
+
+            // The lowest and highest value of the tile without halo.
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int y = core.y - region.y; y < core.y - region.y + core.height; y++) {
+                for (int x = core.x - region.x; x < core.x - region.x + core.width; x++) {
+                    int v = tile.get(x, y);
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            }
+            return new Tile(Arrays.copyOf(keys, nKeys), Arrays.copyOf(points, nKeys), min, max, retries);
+        }
+
+        /**
+         * Get the point of a maximum as the analysis of the whole frame would give it. The frame starts its analysis
+         * at the highest point with the highest offset within the tolerance, the tile only at its own points. The
+         * area within the tolerance does not reach the halo edges (or the maximum would have been excluded), so it
+         * is the same in the tile and the frame. It is listed in the same order as SilentMaximumFinder does, and the
+         * highest point nearest to the average of the highest points is calculated with frame coordinates, so ties
+         * are decided the same way.
+         *
+         * @param tile      The tile copy with halo.
+         * @param region    The position of the tile copy in the frame.
+         * @param core      The tile without halo.
+         * @param start     The offset in the tile copy where the analysis of the maximum started.
+         * @param tolerance The noise tolerance.
+         * @param frameWidth The width of the frame.
+         * @return int The frame offset of the maximum, or -1 if the frame would start outside the tile.
+         */
+        private int getFrameMaximum(final ImageProcessor tile, final Rectangle region, final Rectangle core,
+                                    final int start, final double tolerance, final int frameWidth) {
+            int width = tile.getWidth();
+            int height = tile.getHeight();
+            int coreX = core.x - region.x;
+            int coreY = core.y - region.y;
+            if (this.visited == null || this.visited.length < width * height) {
+                this.visited = new int[width * height];
+                this.queue = new int[width * height];
+                this.stamp = 0;
+            }
+            this.stamp++;
+            float v0 = tile.get(start);
+            float minValue = v0 - (float) tolerance;
+            this.visited[start] = this.stamp;
+            this.queue[0] = start;
+            int queueLength = 1;
+            double xEqual = 0;
+            double yEqual = 0;
+            int nEqual = 0;
+            for (int q = 0; q < queueLength; q++) {
+                int offset = this.queue[q];
+                int x = offset % width;
+                int y = offset / width;
+                if (tile.get(offset) == v0) {
+                    if (offset > start && (x < coreX || y < coreY || x >= coreX + core.width
+                            || y >= coreY + core.height)) {
+                        return -1;
+                    }
+                    xEqual += x + region.x;
+                    yEqual += y + region.y;
+                    nEqual++;
+                }
+                for (int d = 0; d < 8; d++) {
+                    int x2 = x + SilentMaximumFinder.DIR_X_OFFSET[d];
+                    int y2 = y + SilentMaximumFinder.DIR_Y_OFFSET[d];
+                    int offset2 = x2 + y2 * width;
+                    if (x2 >= 0 && y2 >= 0 && x2 < width && y2 < height && this.visited[offset2] != this.stamp
+                            && tile.get(offset2) >= minValue) {
+                        this.visited[offset2] = this.stamp;
+                        this.queue[queueLength++] = offset2;
+                    }
+                }
+            }
+
+            // The highest point nearest to the average, the first one if several are equally near.
+            xEqual /= nEqual;
+            yEqual /= nEqual;
+            double minDist2 = 1e20;
+            int nearest = start;
+            for (int q = 0; q < queueLength; q++) {
+                int offset = this.queue[q];
+                if (tile.get(offset) == v0) {
+                    int x = offset % width + region.x;
+                    int y = offset / width + region.y;
+                    double dist2 = (xEqual - x) * (xEqual - x) + (yEqual - y) * (yEqual - y);
+                    if (dist2 < minDist2) {
+                        minDist2 = dist2;
+                        nearest = offset;
+                    }
+                }
+            }
+            return (nearest / width + region.y) * frameWidth + nearest % width + region.x;
+        }
+
+        /**
+         * Copy a region of the frame to the reused tile copy.
+         *
+         * @param ip     The frame.
+         * @param region The region to copy.
+         * @return ImageProcessor The copy of the region.
+         */
+        private ImageProcessor copyRegion(final ImageProcessor ip, final Rectangle region) {
+            if (this.crop == null || this.crop.getWidth() != region.width || this.crop.getHeight() != region.height
+                    || this.crop.getClass() != ip.getClass()) {
+                this.crop = ip.createProcessor(region.width, region.height);
+            }
+            Object source = ip.getPixels();
+            Object target = this.crop.getPixels();
+            for (int y = 0; y < region.height; y++) {
+                System.arraycopy(source, (region.y + y) * ip.getWidth() + region.x, target, y * region.width,
+                        region.width);
+            }
+            return this.crop;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.ImageStack;
+import java.util.Arrays;
+
+/**
+ * TimeBinAccumulator
+ *
+ * This class can be used to count photons per time bin while a stack is processed, resulting in a stack
+ * with one photon count image per bin. A bin contains a number of consecutive frames. When the step between
+ * the first frames of two bins is smaller than the bin size, the bins overlap (a sliding window).
+ *
+ * Frames can be processed by multiple threads in any order. The photons of a frame are collected in a
+ * buffer of the calling thread, and added to all bins that contain the frame when the frame is finished.
+ * A bin only gets a count buffer when its first frame is finished, and the count buffer is converted to a
+ * 16-bit slice as soon as all frames of the bin are finished. When the frames are processed roughly in order,
+ * only a few bins have a count buffer at the same time. When each thread processes its own block of frames,
+ * like ImageJ does for a stack, every bin can have a count buffer until the last frames are finished.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class TimeBinAccumulator {
+
+    /** The width of the count images. */
+    private final int width;
+    /** The height of the count images. */
+    private final int height;
+    /** The number of frames in each bin. */
+    private final int binFrames;
+    /** The number of frames between the first frames of two bins. */
+    private final int binStep;
+    /** The bins, the first frame of bin b is b * binStep + 1. */
+    private final Bin[] bins;
+    /** The photons of the current frame of the calling thread, as pixel offsets (y * width + x). */
+    private final ThreadLocal<PhotonBuffer> framePhotons;
+
+    /**
+     * Create a new TimeBinAccumulator.
+     *
+     * @param width     The width of the count images.
+     * @param height    The height of the count images.
+     * @param nFrames   The number of frames that will be processed.
+     * @param binFrames The number of frames in each bin.
+     * @param binStep   The number of frames between the first frames of two bins, equal to binFrames for
+     *                  bins that do not overlap.
+     */
+    public TimeBinAccumulator(final int width, final int height, final int nFrames, final int binFrames,
+                              final int binStep) {
+        if (width < 1 || height < 1 || nFrames < 1) {
+            throw new IllegalArgumentException("Your count image size (" + width + "x" + height + ") and number of "
+                    + "frames (" + nFrames + ") should be at least 1!");
+        }
+        if (binFrames < 1 || binStep < 1) {
+            throw new IllegalArgumentException("Your bin size (" + binFrames + ") and bin step (" + binStep
+                    + ") should be at least 1!");
+        }
+
+        this.width = width;
+        this.height = height;
+        this.binFrames = binFrames;
+        this.binStep = binStep;
+
+        // The last bins may contain fewer frames, no bin starts after the last full window. When the step is
+        // larger than the bin size, there are frames between the bins, and no bin starts after the last frame.
+        int nBins = nFrames <= binFrames ? 1 : (nFrames - binFrames + binStep - 1) / binStep + 1;
+        nBins = Math.min(nBins, (nFrames - 1) / binStep + 1);
+        this.bins = new Bin[nBins];
+        for (int b = 0; b < nBins; b++) {
+            int firstFrame = b * binStep + 1;
+            this.bins[b] = new Bin(firstFrame, Math.min(firstFrame + binFrames - 1, nFrames));
+        }
+        this.framePhotons = ThreadLocal.withInitial(PhotonBuffer::new);
+    }
+
+    /**
+     * Add a photon to the current frame of the calling thread.
+     *
+     * @param x The x coordinate in the count image.
+     * @param y The y coordinate in the count image.
+     */
+    public void addPhoton(final int x, final int y) {
+        this.framePhotons.get().add(y * this.width + x);
+    }
+
+    /**
+     * Add the photons of the current frame of the calling thread to all bins that contain the frame. Bins
+     * that are complete after this frame are converted to 16-bit slices.
+     *
+     * @param frame The frame number, starting at 1.
+     */
+    public void finishFrame(final int frame) {
+        PhotonBuffer photons = this.framePhotons.get();
+        int firstBin = frame <= this.binFrames ? 0 : (frame - this.binFrames + this.binStep - 1) / this.binStep;
+        int lastBin = Math.min((frame - 1) / this.binStep, this.bins.length - 1);
+
+        for (int b = firstBin; b <= lastBin; b++) {
+            this.bins[b].addFrame(photons, this.width * this.height);
+        }
+        photons.size = 0;
+    }
+
+    /**
+     * Get the stack with one photon count image per bin. Should only be called when all frames have been
+     * processed. Bins with frames that were never finished contain the photons of the finished frames.
+     *
+     * @return ImageStack The stack, each slice is labeled with its frames.
+     */
+    public ImageStack getStack() {
+        ImageStack stack = new ImageStack(this.width, this.height);
+        for (Bin bin : this.bins) {
+            stack.addSlice("Frames " + bin.firstFrame + "-" + bin.lastFrame, bin.getPixels(this.width * this.height));
+        }
+        return stack;
+    }
+
+    /**
+     * Get the highest photon count of all bins, available after getStack.
+     *
+     * @return int The highest count.
+     */
+    public int getMaxCount() {
+        int maxCount = 0;
+        for (Bin bin : this.bins) {
+            maxCount = Math.max(maxCount, bin.maxCount);
+        }
+        return maxCount;
+    }
+
+    /**
+     * Get the number of bins.
+     *
+     * @return int The number of bins.
+     */
+    public int getBinCount() {
+        return this.bins.length;
+    }
+
+    /**
+     * PhotonBuffer
+     *
+     * A growable list of pixel offsets, reused for every frame of a thread.
+     */
+    private static final class PhotonBuffer {
+
+        /** The pixel offsets. */
+        private int[] offsets = new int[256];
+        /** The number of pixel offsets. */
+        private int size = 0;
+
+        /**
+         * Add a pixel offset.
+         *
+         * @param offset The pixel offset.
+         */
+        private void add(final int offset) {
+            if (this.size == this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, this.size * 2);
+            }
+            this.offsets[this.size++] = offset;
+        }
+    }
+
+    /**
+     * Bin
+     *
+     * The photon counts of a range of frames. The count buffer is created when the first frame is added and
+     * released when the last frame is added.
+     */
+    private static final class Bin {
+
+        /** The first frame of the bin. */
+        private final int firstFrame;
+        /** The last frame of the bin. */
+        private final int lastFrame;
+        /** The photon counts while frames are being added, null before the first and after the last frame. */
+        private int[] counts;
+        /** The finished 16-bit slice, null until all frames have been added. */
+        private short[] pixels;
+        /** The number of frames added so far. */
+        private int framesAdded = 0;
+        /** The highest photon count, available when the slice is finished. */
+        private int maxCount = 0;
+
+        /**
+         * Create a new Bin.
+         *
+         * @param firstFrame The first frame of the bin.
+         * @param lastFrame  The last frame of the bin.
+         */
+        private Bin(final int firstFrame, final int lastFrame) {
+            this.firstFrame = firstFrame;
+            this.lastFrame = lastFrame;
+        }
+
+        /**
+         * Add the photons of a frame, and finish the slice if this was the last frame.
+         *
+         * @param photons The photons of the frame.
+         * @param nPixels The number of pixels of the count image.
+         */
+        private synchronized void addFrame(final PhotonBuffer photons, final int nPixels) {
+            if (this.counts == null) {
+                this.counts = new int[nPixels];
+            }
+            for (int i = 0; i < photons.size; i++) {
+                this.counts[photons.offsets[i]]++;
+            }
+
+            this.framesAdded++;
+            if (this.framesAdded == this.lastFrame - this.firstFrame + 1) {
+                this.finish(nPixels);
+            }
+        }
+
+        /**
+         * Convert the counts to a 16-bit slice, counts above 65535 are clipped.
+         *
+         * @param nPixels The number of pixels of the count image.
+         */
+        private void finish(final int nPixels) {
+            this.pixels = new short[nPixels];
+            if (this.counts != null) {
+                for (int i = 0; i < nPixels; i++) {
+                    int count = Math.min(this.counts[i], 65535);
+                    this.pixels[i] = (short) count;
+                    this.maxCount = Math.max(this.maxCount, count);
+                }
+            }
+            this.counts = null;
+        }
+
+        /**
+         * Get the 16-bit slice, finishing it first if not all frames have been added.
+         *
+         * @param nPixels The number of pixels of the count image.
+         * @return short[] The pixels of the slice.
+         */
+        private synchronized short[] getPixels(final int nPixels) {
+            if (this.pixels == null) {
+                this.finish(nPixels);
+            }
+            return this.pixels;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+/**
+ * ToleranceSweep
+ *
+ * This class can be used to make photon count images for a number of noise tolerances, while the stack is
+ * processed only once. Every local maximum of a frame is recorded with its prominence (see
+ * SilentMaximumFinder.getMaximaProminence): the maximum is found with all noise tolerances below its
+ * prominence. Afterwards, the count images for all tolerances are made in a single pass over the recorded
+ * maxima, so different tolerances can be compared without finding the photons again.
+ *
+ * Only the maxima with a prominence above the lowest tolerance are recorded, which keeps the noise maxima of
+ * the background out of memory. The photons are counted at the pixel where the 'Simple' method counts them
+ * with each tolerance. That pixel only depends on the tolerance for a maximum with a plateau or with peaks of
+ * the same height within its prominence, and only for those maxima the pixel is looked up per tolerance. So
+ * each count image is the same as the output image of the 'Simple' method with its tolerance. Frames can be
+ * added by multiple threads at the same time.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class ToleranceSweep {
+
+    /** The width of the count images. */
+    private final int width;
+    /** The height of the count images. */
+    private final int height;
+    /** The noise tolerances, in the order of the count images. */
+    private final double[] tolerances;
+    /** The noise tolerances, sorted from low to high. */
+    private final double[] sorted;
+    /** The maxima found in the current frame of the calling thread, the arrays are reused for the next frame. */
+    private final ThreadLocal<FrameMaxima> frameMaxima;
+    /** The recorded maxima, counted at a pixel for a range of sorted tolerances. */
+    private final Counts recorded = new Counts(1024);
+    /** The highest photon count of the last stack made by getStack. */
+    private int maxCount = 0;
+
+    /**
+     * Create a new ToleranceSweep.
+     *
+     * @param width      The width of the frames.
+     * @param height     The height of the frames.
+     * @param tolerances The noise tolerances to make count images for.
+     */
+    public ToleranceSweep(final int width, final int height, final double... tolerances) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Your count image size (" + width + "x" + height + ") should be at "
+                    + "least 1x1!");
+        }
+        if (tolerances.length == 0) {
+            throw new IllegalArgumentException("Your tolerance sweep should have at least one tolerance!");
+        }
+        for (double tolerance : tolerances) {
+            if (tolerance < 0) {
+                throw new IllegalArgumentException("Your tolerance (" + tolerance + ") should be at least 0!");
+            }
+        }
+
+        this.width = width;
+        this.height = height;
+        this.tolerances = tolerances.clone();
+        this.sorted = tolerances.clone();
+        Arrays.sort(this.sorted);
+        this.frameMaxima = ThreadLocal.withInitial(FrameMaxima::new);
+    }
+
+    /**
+     * Find all maxima of a frame with their prominence, and record the maxima with a prominence above the
+     * lowest tolerance. Edge maxima are excluded, like when the photons are counted.
+     *
+     * @param finder The maximum finder of the calling thread.
+     * @param ip     The frame, an uncalibrated 8-bit or 16-bit image of the size given to the constructor.
+     */
+    public void addFrame(final SilentMaximumFinder finder, final ImageProcessor ip) {
+        if (ip.getWidth() != this.width || ip.getHeight() != this.height) {
+            throw new IllegalArgumentException("Your frame size (" + ip.getWidth() + "x" + ip.getHeight()
+                    + ") should be " + this.width + "x" + this.height + "!");
+        }
+
+        FrameMaxima maxima = this.frameMaxima.get();
+        int nMaxima = finder.getMaximaProminence(ip, true, maxima.xpoints, maxima.ypoints, maxima.prominences);
+        if (nMaxima > maxima.xpoints.length) {
+            maxima.grow(nMaxima * 2);
+            finder.getLastMaxima(maxima.xpoints, maxima.ypoints);
+            finder.getLastProminences(maxima.prominences);
+        }
+        finder.getLastMaximaStarts(maxima.starts);
+        finder.getLastEqualMaxima(maxima.equal);
+
+        // The maxima are sorted from high to low, the prominences are not, so check all of them.
+        Counts counts = maxima.counts;
+        counts.size = 0;
+        for (int i = 0; i < nMaxima; i++) {
+            int nBelow = this.countBelow(maxima.prominences[i]);
+            if (nBelow == 0) {
+                continue;
+            }
+            if (!maxima.equal[i]) {
+                counts.add(maxima.ypoints[i] * this.width + maxima.xpoints[i], 0, nBelow);
+                continue;
+            }
+            // With a plateau or peaks of the same height, the pixel can be different for each tolerance.
+            int first = 0;
+            int offset = finder.getMaximumPosition(ip, maxima.starts[i], this.sorted[0]);
+            for (int k = 1; k < nBelow; k++) {
+                int nextOffset = finder.getMaximumPosition(ip, maxima.starts[i], this.sorted[k]);
+                if (nextOffset != offset) {
+                    counts.add(offset, first, k);
+                    first = k;
+                    offset = nextOffset;
+                }
+            }
+            counts.add(offset, first, nBelow);
+        }
+        this.record(counts);
+    }
+
+    /**
+     * Add the maxima of a frame to the recorded maxima.
+     *
+     * @param counts The maxima of the frame.
+     */
+    private synchronized void record(final Counts counts) {
+        this.recorded.addAll(counts);
+    }
+
+    /**
+     * Get the photon count images for the noise tolerances, made in a single pass over the recorded maxima. A
+     * maximum is counted in the images of all tolerances below its prominence. Should only be called when all
+     * frames have been added.
+     *
+     * @return ImageStack The stack with one 16-bit count image per tolerance, in the order given to the
+     * constructor. Each slice is labeled with its tolerance.
+     */
+    public synchronized ImageStack getStack() {
+        // A maximum is counted at a pixel for the sorted tolerances first to end - 1: add it to slice end - 1,
+        // subtract it from slice first - 1, and add the counts of the higher slices to the lower slices afterwards.
+        int nPixels = this.width * this.height;
+        int[][] counts = new int[this.sorted.length][nPixels];
+        for (int i = 0; i < this.recorded.size; i++) {
+            int offset = this.recorded.offsets[i];
+            counts[this.recorded.ends[i] - 1][offset]++;
+            if (this.recorded.firsts[i] > 0) {
+                counts[this.recorded.firsts[i] - 1][offset]--;
+            }
+        }
+        for (int t = this.sorted.length - 2; t >= 0; t--) {
+            int[] lower = counts[t];
+            int[] higher = counts[t + 1];
+            for (int p = 0; p < nPixels; p++) {
+                lower[p] += higher[p];
+            }
+        }
+
+        ImageStack stack = new ImageStack(this.width, this.height);
+        this.maxCount = 0;
+        for (double tolerance : this.tolerances) {
+            int[] sliceCounts = counts[Arrays.binarySearch(this.sorted, tolerance)];
+            short[] pixels = new short[nPixels];
+            for (int p = 0; p < nPixels; p++) {
+                int count = Math.min(sliceCounts[p], 65535);
+                pixels[p] = (short) count;
+                this.maxCount = Math.max(this.maxCount, count);
+            }
+            String label = IJ.d2s(tolerance, tolerance == Math.rint(tolerance) ? 0 : 2);
+            stack.addSlice("Tolerance " + label, pixels);
+        }
+        return stack;
+    }
+
+    /**
+     * Get the number of sorted tolerances below a prominence.
+     *
+     * @param prominence The prominence of a maximum.
+     * @return int The number of tolerances below the prominence.
+     */
+    private int countBelow(final float prominence) {
+        int low = 0;
+        int high = this.sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.sorted[middle] < prominence) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the highest photon count of the last stack made by getStack.
+     *
+     * @return int The highest count.
+     */
+    public int getMaxCount() {
+        return this.maxCount;
+    }
+
+    /**
+     * Get the number of recorded maxima.
+     *
+     * @return int The number of pixels where maxima with a prominence above the lowest tolerance are counted, a
+     * maximum is recorded more than once when its pixel depends on the tolerance.
+     */
+    public synchronized int getRecordedCount() {
+        return this.recorded.size;
+    }
+
+    /**
+     * Counts
+     *
+     * Maxima that are counted at a pixel for a range of the sorted tolerances.
+     */
+    private static final class Counts {
+
+        /** The pixel offsets (y * width + x). */
+        private int[] offsets;
+        /** The index of the first sorted tolerance the maxima are counted for. */
+        private int[] firsts;
+        /** The index after the last sorted tolerance the maxima are counted for. */
+        private int[] ends;
+        /** The number of maxima. */
+        private int size = 0;
+
+        /**
+         * Create new Counts.
+         *
+         * @param capacity The initial length of the arrays.
+         */
+        private Counts(final int capacity) {
+            this.offsets = new int[capacity];
+            this.firsts = new int[capacity];
+            this.ends = new int[capacity];
+        }
+
+        /**
+         * Add a maximum.
+         *
+         * @param offset The pixel offset.
+         * @param first  The index of the first sorted tolerance the maximum is counted for.
+         * @param end    The index after the last sorted tolerance the maximum is counted for.
+         */
+        private void add(final int offset, final int first, final int end) {
+            this.ensureCapacity(this.size + 1);
+            this.offsets[this.size] = offset;
+            this.firsts[this.size] = first;
+            this.ends[this.size] = end;
+            this.size++;
+        }
+
+        /**
+         * Add all maxima of other counts.
+         *
+         * @param other The maxima to add.
+         */
+        private void addAll(final Counts other) {
+            this.ensureCapacity(this.size + other.size);
+            System.arraycopy(other.offsets, 0, this.offsets, this.size, other.size);
+            System.arraycopy(other.firsts, 0, this.firsts, this.size, other.size);
+            System.arraycopy(other.ends, 0, this.ends, this.size, other.size);
+            this.size += other.size;
+        }
+
+        /**
+         * Make the arrays larger if needed.
+         *
+         * @param capacity The number of maxima the arrays should hold.
+         */
+        private void ensureCapacity(final int capacity) {
+            if (capacity > this.offsets.length) {
+                int length = Math.max(this.offsets.length * 2, capacity);
+                this.offsets = Arrays.copyOf(this.offsets, length);
+                this.firsts = Arrays.copyOf(this.firsts, length);
+                this.ends = Arrays.copyOf(this.ends, length);
+            }
+        }
+    }
+
+    /**
+     * FrameMaxima
+     *
+     * The maxima of one frame with their prominence, reused for every frame of a thread.
+     */
+    private static final class FrameMaxima {
+
+        /** The x coordinates. */
+        private int[] xpoints = new int[256];
+        /** The y coordinates. */
+        private int[] ypoints = new int[256];
+        /** The prominences. */
+        private float[] prominences = new float[256];
+        /** The pixel offsets where the analysis of the maxima starts. */
+        private int[] starts = new int[256];
+        /** Whether the maxima have points of the same height. */
+        private boolean[] equal = new boolean[256];
+        /** The maxima to record. */
+        private final Counts counts = new Counts(256);
+
+        /**
+         * Replace the arrays by larger ones.
+         *
+         * @param capacity The new length of the arrays.
+         */
+        private void grow(final int capacity) {
+            this.xpoints = new int[capacity];
+            this.ypoints = new int[capacity];
+            this.prominences = new float[capacity];
+            this.starts = new int[capacity];
+            this.equal = new boolean[capacity];
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2016 Lonneke Scheffer and Wout van Helvoirt
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorMaximaScanner
+ *
+ * This MaximaScanner compares a whole vector of pixels with their 8 neighbors at once, using the Java Vector
+ * API: the row above, the row itself and the row below are loaded at offsets -1, 0 and +1, and a pixel is a
+ * local maximum if it is not lower than any of the 8 shifted vectors (unsigned). The lanes that are maxima are
+ * marked one by one, which is cheap since only a small part of the pixels are local maxima. The minimum and
+ * maximum are kept per lane, with the sign bit flipped so that signed lanes sort like the unsigned pixel values.
+ * The pixels after the last full vector are checked one by one.
+ *
+ * The Vector API is an incubator module, so this class is only built with the 'vector' profile (Java 17 or
+ * later), and the JVM has to be started with '--add-modules jdk.incubator.vector'. Otherwise
+ * SilentMaximumFinder can not load this class and does not use it.
+ *
+ * @author Lonneke Scheffer and Wout van Helvoirt
+ */
+public final class VectorMaximaScanner implements MaximaScanner {
+
+    /** The widest byte vectors of this CPU. */
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+    /** The widest short vectors of this CPU. */
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+    /** A lane is lower than a neighbor lane, comparing the lanes as unsigned pixel values. */
+    private static final VectorOperators.Comparison BELOW = VectorOperators.UNSIGNED_LT;
+
+    @Override
+    public int scanBytes(final byte[] pixels, final int width, final int from, final int to, final byte[] types,
+                         final int[] minMax) {
+        int nMax = 0;
+        int i = from;
+        ByteVector lowest = ByteVector.broadcast(BYTES, Byte.MAX_VALUE);
+        ByteVector highest = ByteVector.broadcast(BYTES, Byte.MIN_VALUE);
+        for (int end = to - BYTES.length(); i <= end; i += BYTES.length()) {
+            ByteVector v = ByteVector.fromArray(BYTES, pixels, i);
+            VectorMask<Byte> lower = v.compare(BELOW, ByteVector.fromArray(BYTES, pixels, i - 1))
+                    .or(v.compare(BELOW, ByteVector.fromArray(BYTES, pixels, i + 1)))
+                    .or(v.compare(BELOW, ByteVector.fromArray(BYTES, pixels, i - width - 1)))
+                    .or(v.compare(BELOW, ByteVector.fromArray(BYTES, pixels, i - width)))
+                    .or(v.compare(BELOW, ByteVector.fromArray(BYTES, pixels, i - width + 1)))
+                    .or(v.compare(BELOW, ByteVector.fromArray(BYTES, pixels, i + width - 1)))
+                    .or(v.compare(BELOW, ByteVector.fromArray(BYTES, pixels, i + width)))
+                    .or(v.compare(BELOW, ByteVector.fromArray(BYTES, pixels, i + width + 1)));
+            nMax += this.mark(types, i, lower.not());
+            ByteVector signed = v.lanewise(VectorOperators.XOR, (byte) 0x80);
+            lowest = lowest.min(signed);
+            highest = highest.max(signed);
+        }
+        int min = Math.min(minMax[0], (lowest.reduceLanes(VectorOperators.MIN) ^ 0x80) & 0xff);
+        int max = Math.max(minMax[1], (highest.reduceLanes(VectorOperators.MAX) ^ 0x80) & 0xff);
+
+        // The last pixels, one by one.
+        for (; i < to; i++) {
+            int v = pixels[i] & 0xff;
+            if ((pixels[i - 1] & 0xff) <= v && (pixels[i + 1] & 0xff) <= v
+                    && (pixels[i - width - 1] & 0xff) <= v && (pixels[i - width] & 0xff) <= v
+                    && (pixels[i - width + 1] & 0xff) <= v && (pixels[i + width - 1] & 0xff) <= v
+                    && (pixels[i + width] & 0xff) <= v && (pixels[i + width + 1] & 0xff) <= v) {
+                types[i] = SilentMaximumFinder.MAXIMUM;
+                nMax++;
+            }
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        minMax[0] = min;
+        minMax[1] = max;
+        return nMax;
+    }
+
+    @Override
+    public int scanShorts(final short[] pixels, final int width, final int from, final int to, final byte[] types,
+                          final int[] minMax) {
+        int nMax = 0;
+        int i = from;
+        ShortVector lowest = ShortVector.broadcast(SHORTS, Short.MAX_VALUE);
+        ShortVector highest = ShortVector.broadcast(SHORTS, Short.MIN_VALUE);
+        for (int end = to - SHORTS.length(); i <= end; i += SHORTS.length()) {
+            ShortVector v = ShortVector.fromArray(SHORTS, pixels, i);
+            VectorMask<Short> lower = v.compare(BELOW, ShortVector.fromArray(SHORTS, pixels, i - 1))
+                    .or(v.compare(BELOW, ShortVector.fromArray(SHORTS, pixels, i + 1)))
+                    .or(v.compare(BELOW, ShortVector.fromArray(SHORTS, pixels, i - width - 1)))
+                    .or(v.compare(BELOW, ShortVector.fromArray(SHORTS, pixels, i - width)))
+                    .or(v.compare(BELOW, ShortVector.fromArray(SHORTS, pixels, i - width + 1)))
+                    .or(v.compare(BELOW, ShortVector.fromArray(SHORTS, pixels, i + width - 1)))
+                    .or(v.compare(BELOW, ShortVector.fromArray(SHORTS, pixels, i + width)))
+                    .or(v.compare(BELOW, ShortVector.fromArray(SHORTS, pixels, i + width + 1)));
+            nMax += this.mark(types, i, lower.not());
+            ShortVector signed = v.lanewise(VectorOperators.XOR, (short) 0x8000);
+            lowest = lowest.min(signed);
+            highest = highest.max(signed);
+        }
+        int min = Math.min(minMax[0], (lowest.reduceLanes(VectorOperators.MIN) ^ 0x8000) & 0xffff);
+        int max = Math.max(minMax[1], (highest.reduceLanes(VectorOperators.MAX) ^ 0x8000) & 0xffff);
+
+        // The last pixels, one by one.
+        for (; i < to; i++) {
+            int v = pixels[i] & 0xffff;
+            if ((pixels[i - 1] & 0xffff) <= v && (pixels[i + 1] & 0xffff) <= v
+                    && (pixels[i - width - 1] & 0xffff) <= v && (pixels[i - width] & 0xffff) <= v
+                    && (pixels[i - width + 1] & 0xffff) <= v && (pixels[i + width - 1] & 0xffff) <= v
+                    && (pixels[i + width] & 0xffff) <= v && (pixels[i + width + 1] & 0xffff) <= v) {
+                types[i] = SilentMaximumFinder.MAXIMUM;
+                nMax++;
+            }
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        minMax[0] = min;
+        minMax[1] = max;
+        return nMax;
+    }
+
+    /**
+     * Mark the lanes of a vector that are local maxima.
+     *
+     * @param types  The pixel types.
+     * @param offset The offset of the first lane.
+     * @param maxima The lanes that are local maxima.
+     * @return int The number of lanes marked.
+     */
+    private int mark(final byte[] types, final int offset, final VectorMask<?> maxima) {
+        // At most 64 lanes (512-bit byte vectors), so the lanes fit in a long.
+        long lanes = maxima.toLong();
+        while (lanes != 0) {
+            types[offset + Long.numberOfTrailingZeros(lanes)] = SilentMaximumFinder.MAXIMUM;
+            lanes &= lanes - 1;
+        }
+        return maxima.trueCount();
+    }
+}